@@ -14,7 +14,10 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.Button;
 
 import com.playhaven.androidsdk.R;
+import com.playhaven.sampleapp.examples.BatchBenchmarkView;
 import com.playhaven.sampleapp.examples.ExampleView;
+import com.playhaven.sampleapp.examples.MicroBenchmarkView;
+import com.playhaven.sampleapp.examples.PrecacheBenchmarkView;
 import com.playhaven.sampleapp.examples.PublisherContentView;
 import com.playhaven.sampleapp.examples.PublisherIAPView;
 import com.playhaven.sampleapp.examples.PublisherOpenView;
@@ -139,6 +142,15 @@ public class SampleApp extends ListActivity {
 		else if (request.title.equals("IAP"))
 			startExampleActivity(PublisherIAPView.class);
 		
+		else if (request.title.equals("Batch"))
+			startExampleActivity(BatchBenchmarkView.class);
+		
+		else if (request.title.equals("Precache"))
+			startExampleActivity(PrecacheBenchmarkView.class);
+		
+		else if (request.title.equals("Micro"))
+			startExampleActivity(MicroBenchmarkView.class);
+		
 	}
 	
 	private void startExampleActivity(Class<? extends ExampleView> cls) {
@@ -160,6 +172,9 @@ public class SampleApp extends ListActivity {
         requests.add(new DemoRequest("Open", "/publisher/open/", 		"openRequest"));
         requests.add(new DemoRequest("Content", "/publisher/content/", 	"contentRequest"));
         requests.add(new DemoRequest("IAP", "/publisher/iap/", 			"iapRequest"));
+        requests.add(new DemoRequest("Batch", "/publisher/batch/", 		"batchRequest"));
+        requests.add(new DemoRequest("Precache", "/publisher/open/", 		"precacheRequest"));
+        requests.add(new DemoRequest("Micro", "(local, no requests)", 		"microBenchmarks"));
 
     }
     
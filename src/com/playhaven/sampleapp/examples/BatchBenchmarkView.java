@@ -0,0 +1,129 @@
+package com.playhaven.sampleapp.examples;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.json.JSONObject;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.playhaven.src.common.PHAPIRequest;
+import com.playhaven.src.common.PHBatchRequest;
+import com.playhaven.src.common.PHConfig;
+import com.playhaven.src.publishersdk.metadata.PHPublisherMetadataRequest;
+import com.playhaven.src.publishersdk.open.PHPublisherOpenRequest;
+
+/** Compares the wall-clock time of a typical session start (open plus a few badge metadata requests)
+ * sent as separate requests against the same requests packed into a {@link PHBatchRequest}.
+ * Runs against a local {@link BatchStubServer} so the numbers only depend on the simulated latency.
+ */
+public class BatchBenchmarkView extends ExampleView implements PHAPIRequest.Delegate {
+	private static final long SIMULATED_LATENCY = 150;
+
+	private static final int BADGE_COUNT = 4;
+
+	private BatchStubServer server;
+
+	private String realServer;
+
+	private int run;
+
+	private int remaining;
+
+	private long started;
+
+	private boolean batching;
+
+	@Override
+	public void onCreate(Bundle savedInstance) {
+		super.onCreate(savedInstance);
+
+		setTitle("Batch Benchmark");
+	}
+
+	@Override
+	public void startRequest() {
+		super.startRequest();
+
+		try {
+			if (server == null) {
+				server 	   = new BatchStubServer(SIMULATED_LATENCY);
+				
+				PHConfig.ensureLoaded(); // so we remember the configured server
+				realServer = PHConfig.api;
+			}
+
+			PHConfig.api = server.getURL();
+
+			startRun(false);
+
+		} catch (IOException e) {
+			super.addMessage("Could not start stub server: " + e.toString());
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (server != null) {
+			server.close();
+			PHConfig.api = realServer;
+		}
+
+		super.onDestroy();
+	}
+
+	/** Sends a session start either as separate requests or as a batch*/
+	private void startRun(boolean batch) {
+		batching = batch;
+		run++;
+
+		// unique placements so that nothing is served from the response cache
+		ArrayList<PHAPIRequest> requests = new ArrayList<PHAPIRequest>();
+		requests.add(new PHPublisherOpenRequest(this, this));
+
+		for (int i = 0; i < BADGE_COUNT; i++)
+			requests.add(new PHPublisherMetadataRequest(this, this, "badge_" + run + "_" + i));
+
+		remaining = requests.size();
+		server.resetRequestCount();
+		started = SystemClock.elapsedRealtime();
+
+		if (batching) {
+			PHBatchRequest batchRequest = new PHBatchRequest(this);
+
+			for (PHAPIRequest request : requests)
+				batchRequest.add(request);
+
+			batchRequest.send();
+
+		} else {
+			for (PHAPIRequest request : requests)
+				request.send();
+		}
+	}
+
+	private void requestDone() {
+		if (--remaining > 0) return;
+
+		long elapsed = SystemClock.elapsedRealtime() - started;
+
+		super.addMessage(String.format("%s: %d ms, %d round-trips",
+									   (batching ? "Batched" : "Separate"),
+									   elapsed,
+									   server.getRequestCount()));
+
+		if ( ! batching) startRun(true);
+	}
+
+	///////////////////////////////////////////////////////////////
+	////////////////////////// Delegate Methods ///////////////////
+	public void requestSucceeded(PHAPIRequest request, JSONObject responseData) {
+		requestDone();
+	}
+
+	public void requestFailed(PHAPIRequest request, Exception e) {
+		super.addMessage(String.format("Failed with error: %s", e.toString()));
+		requestDone();
+	}
+}
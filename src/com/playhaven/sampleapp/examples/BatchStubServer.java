@@ -0,0 +1,237 @@
+package com.playhaven.sampleapp.examples;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.playhaven.src.common.PHBatchRequest;
+import com.playhaven.src.utils.PHStringUtil;
+
+/** Tiny local HTTP server implementing the {@link PHBatchRequest} batch contract (and answering
+ * every other API request with an empty success). Every request waits the given latency before
+ * it is answered to simulate the round-trip to the real server.
+ * 
+ * Open requests can also be told to precache a number of files (see {@link #setPrecache}), which the
+ * server then serves from {@link #PRECACHE_PATH}.
+ */
+public class BatchStubServer implements Runnable {
+	public static final String PRECACHE_PATH = "/precache/";
+
+	private final ServerSocket socket;
+
+	private final long latency;
+
+	private volatile int requestCount;
+
+	private volatile int precacheCount;
+
+	private volatile int precacheSize;
+
+	private volatile int precacheRun;
+
+	public BatchStubServer(long latency) throws IOException {
+		this.latency = latency;
+		this.socket  = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread thread = new Thread(this, "Batch Stub Server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Use as {@link com.playhaven.src.common.PHConfig#api}*/
+	public String getURL() {
+		return "http://127.0.0.1:" + socket.getLocalPort();
+	}
+
+	/** Number of HTTP requests (round-trips) served*/
+	public int getRequestCount() {
+		return requestCount;
+	}
+
+	public void resetRequestCount() {
+		requestCount = 0;
+	}
+
+	/** Open responses ask for the given number of files of the given size to be precached (fresh URLs every time)*/
+	public void setPrecache(int count, int size) {
+		precacheCount = count;
+		precacheSize  = size;
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// pass
+		}
+	}
+
+	@Override
+	public void run() {
+		while ( ! socket.isClosed()) {
+			try {
+				final Socket client = socket.accept();
+
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				}).start();
+
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket client) {
+		try {
+			InputStream in = client.getInputStream();
+
+			String requestLine = readLine(in);
+			if (requestLine == null) return;
+
+			int contentLength = 0;
+			boolean gzipped = false;
+
+			String header;
+			while ((header = readLine(in)) != null && header.length() > 0) {
+				String lower = header.toLowerCase();
+
+				if (lower.startsWith("content-length:"))
+					contentLength = Integer.parseInt(header.substring(15).trim());
+				else if (lower.startsWith("content-encoding:") && lower.contains("gzip"))
+					gzipped = true;
+			}
+
+			byte[] body = new byte[contentLength];
+			for (int read = 0; read < contentLength; ) {
+				int count = in.read(body, read, contentLength - read);
+				if (count < 0) break;
+				read += count;
+			}
+
+			requestCount++;
+
+			String path = requestLine.split(" ")[1];
+
+			byte[] bytes;
+			String contentType = "application/json";
+
+			if (path.startsWith(PRECACHE_PATH)) {
+				bytes 		= new byte[precacheSize];
+				contentType = "application/octet-stream";
+
+			} else {
+				JSONObject response = (path.startsWith(PHBatchRequest.BATCH_SLUG)
+										? createBatchResponse(readForm(body, gzipped))
+										: createResponse(path));
+
+				bytes = response.toString().getBytes("UTF-8");
+			}
+
+			Thread.sleep(latency);
+
+			OutputStream out = client.getOutputStream();
+			out.write(("HTTP/1.1 200 OK\r\n" +
+					   "Content-Type: " + contentType + "\r\n" +
+					   "Content-Length: " + bytes.length + "\r\n" +
+					   "Connection: close\r\n\r\n").getBytes("UTF-8"));
+			out.write(bytes);
+			out.flush();
+
+		} catch (Exception e) {
+			PHStringUtil.log("Batch stub server could not serve the request: " + e.toString());
+
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// pass
+			}
+		}
+	}
+
+	/** Extracts the batch requests from the (form encoded) post body*/
+	private String readForm(byte[] body, boolean gzipped) throws IOException {
+		InputStream in = new ByteArrayInputStream(body);
+		if (gzipped) in = new GZIPInputStream(in);
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		StringBuilder form = new StringBuilder();
+
+		String line;
+		while ((line = reader.readLine()) != null)
+			form.append(line);
+
+		for (String pair : form.toString().split("&")) {
+			int equals = pair.indexOf('=');
+
+			if (equals > 0 && pair.substring(0, equals).equals(PHBatchRequest.REQUESTS_PARAM))
+				return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+		}
+
+		return "[]";
+	}
+
+	private JSONObject createBatchResponse(String requests) throws Exception {
+		JSONArray responses = new JSONArray();
+
+		for (JSONObject descriptor : PHBatchRequest.parseRequests(requests))
+			responses.put(PHBatchRequest.createResponseEntry(descriptor.getString("id"), 200, createResponse(descriptor.optString("path"))));
+
+		JSONObject batch = new JSONObject();
+		batch.put("responses", responses);
+
+		JSONObject envelope = new JSONObject();
+		envelope.put("response", batch);
+		envelope.put("error", JSONObject.NULL);
+
+		return envelope;
+	}
+
+	private JSONObject createResponse(String path) throws Exception {
+		JSONObject response = new JSONObject();
+
+		if (precacheCount > 0 && path.contains("/publisher/open/")) {
+			JSONArray precache = new JSONArray();
+			int run = ++precacheRun;
+
+			for (int i = 0; i < precacheCount; i++)
+				precache.put(getURL() + PRECACHE_PATH + run + "/" + i);
+
+			response.put("precache", precache);
+		}
+
+		JSONObject envelope = new JSONObject();
+		envelope.put("response", response);
+		envelope.put("error", JSONObject.NULL);
+
+		return envelope;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		int c;
+		while ((c = in.read()) != -1 && c != '\n')
+			if (c != '\r') line.write(c);
+
+		if (c == -1 && line.size() == 0) return null;
+
+		return line.toString("UTF-8");
+	}
+}
@@ -0,0 +1,600 @@
+package com.playhaven.sampleapp.examples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.net.Uri;
+import android.os.Debug;
+import android.util.Base64;
+import dalvik.system.PathClassLoader;
+
+import com.playhaven.src.common.PHAPIRequest;
+import com.playhaven.src.common.PHAsyncRequest;
+import com.playhaven.src.common.PHConfig;
+import com.playhaven.src.common.PHDeviceSnapshot;
+import com.playhaven.src.common.PHLoopbackTransport;
+import com.playhaven.src.common.PHTransport;
+import com.playhaven.src.utils.PHStringUtil;
+
+/** Runs small, CPU bound loops over the hot paths of the SDK and reports the time, allocations and
+ * garbage collections per operation. Every benchmark runs on a background thread, after a warm-up.
+ * Allocations are counted per thread (see {@link Debug#startAllocCounting()}), the GC count is global.
+ */
+public class MicroBenchmarkView extends ExampleView {
+
+	/** A single measured loop*/
+	private static abstract class Benchmark {
+		public final String name;
+
+		public final int iterations;
+
+		public Benchmark(String name, int iterations) {
+			this.name 		= name;
+			this.iterations = iterations;
+		}
+
+		/** Prepares the input (not measured)*/
+		public void setUp() throws Exception {
+			// pass
+		}
+
+		/** A single operation*/
+		public abstract void run() throws Exception;
+
+		/** Restores whatever {@link #setUp()} changed (not measured)*/
+		public void tearDown() {
+			// pass
+		}
+	}
+
+	/** Runs a request on the calling thread, which plays both the AsyncTask's worker and the main looper*/
+	private static class SyncRequest extends PHAsyncRequest {
+		public SyncRequest(Delegate delegate, PHTransport transport) {
+			super(delegate);
+
+			getPHHttpClient().setTransport(transport);
+		}
+
+		public void send(String url) {
+			onPostExecute(doInBackground(Uri.parse(url)));
+		}
+	}
+
+	private final ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+	private AsyncTask<Void, String, Void> runner;
+
+	@Override
+	public void onCreate(Bundle savedInstance) {
+		super.onCreate(savedInstance);
+
+		setTitle("Micro Benchmarks");
+
+		addStringBenchmarks();
+		addJSONBenchmarks();
+		addBufferBenchmarks();
+		addSignedURLBenchmarks();
+		addDigestBenchmarks();
+		addRequestBenchmarks();
+		addConfigBenchmarks();
+	}
+
+	@Override
+	public void startRequest() {
+		super.startRequest();
+
+		if (runner != null && runner.getStatus() != AsyncTask.Status.FINISHED) return; // still running
+
+		runner = new AsyncTask<Void, String, Void>() {
+			@Override
+			protected Void doInBackground(Void... params) {
+				for (Benchmark benchmark : benchmarks) {
+					if (isCancelled()) break;
+
+					publishProgress(measure(benchmark));
+				}
+
+				return null;
+			}
+
+			@Override
+			protected void onProgressUpdate(String... results) {
+				for (String result : results)
+					MicroBenchmarkView.super.addMessage(result);
+			}
+		};
+
+		runner.execute();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (runner != null) runner.cancel(false);
+
+		super.onDestroy();
+	}
+
+	/** Runs the benchmark and formats the result*/
+	private static String measure(Benchmark benchmark) {
+		try {
+			benchmark.setUp();
+
+			// warm up (JIT, lazily created state)
+			for (int i = 0; i < Math.max(1, benchmark.iterations / 10); i++)
+				benchmark.run();
+
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+
+			int gcs 	= Debug.getGlobalGcInvocationCount();
+			long start 	= System.nanoTime();
+
+			for (int i = 0; i < benchmark.iterations; i++)
+				benchmark.run();
+
+			long elapsed = System.nanoTime() - start;
+
+			Debug.stopAllocCounting();
+
+			return String.format("%s: %.1f us/op, %d allocs/op, %d bytes/op, %d GCs",
+								 benchmark.name,
+								 elapsed / 1000.0 / benchmark.iterations,
+								 Debug.getThreadAllocCount() / benchmark.iterations,
+								 Debug.getThreadAllocSize()  / benchmark.iterations,
+								 Debug.getGlobalGcInvocationCount() - gcs);
+
+		} catch (Exception e) {
+			return benchmark.name + " failed: " + e.toString();
+
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	///////////////////////////////////////////////////////////////
+	//////////////////////////// Strings //////////////////////////
+
+	/** Size of the (JSON) content unit context we encode*/
+	private static final int CONTEXT_SIZE = 20 * 1024;
+
+	private void addStringBenchmarks() {
+		final StringBuilder json = new StringBuilder(CONTEXT_SIZE + 128);
+
+		while (json.length() < CONTEXT_SIZE)
+			json.append("{\"url\":\"http://media.example.com/a?b=c&d=e f\",\"tags\":[1,2,3],\"ok\":true},");
+
+		final String context = json.toString();
+
+		benchmarks.add(new Benchmark("weakUrlEncode (20 KB context)", 200) {
+			@Override
+			public void run() {
+				PHStringUtil.weakUrlEncode(context);
+			}
+		});
+
+		benchmarks.add(new Benchmark("weakUrlEncode (20 KB context, previous implementation)", 200) {
+			@Override
+			public void run() {
+				replaceEncode(context);
+			}
+		});
+
+		benchmarks.add(new Benchmark("weakUrlEncode (nothing to escape)", 10000) {
+			@Override
+			public void run() {
+				PHStringUtil.weakUrlEncode("http://media.example.com/content/template.html");
+			}
+		});
+	}
+
+	private static final String[] RESERVED = {";", "?", " ", "&", "=", "$", ",", "[", "]", "#", "!", "'", "(", ")", "*"};
+
+	private static final String[] ESCAPED  = {"%3B", "%3F", "+", "%26", "%3D", "%24", "%2C", "%5B", "%5D", "%23", "%21", "%27", "%28", "%29", "%2A"};
+
+	/** How weakUrlEncode used to work (rescanning the string for every replacement), for comparison*/
+	private static String replaceEncode(String url) {
+		StringBuilder encoded = new StringBuilder(url);
+
+		for (int i = 0; i < RESERVED.length; i++) {
+			int index = encoded.indexOf(RESERVED[i]);
+
+			while (index != -1) {
+				encoded.replace(index, index + 1, ESCAPED[i]);
+				index = encoded.indexOf(RESERVED[i]); // from the start again, as it did
+			}
+		}
+
+		return encoded.toString();
+	}
+
+	///////////////////////////////////////////////////////////////
+	///////////////////////////// JSON ////////////////////////////
+
+	/** Size of the content response we decode*/
+	private static final int RESPONSE_SIZE = 500 * 1024;
+
+	/** Nothing leaves the device, the responses are served by a {@link PHLoopbackTransport}*/
+	private static final String CONTENT_URL = "http://loopback/v3/publisher/content/";
+
+	private void addJSONBenchmarks() {
+		StringBuilder json = new StringBuilder(RESPONSE_SIZE + 256);
+
+		json.append("{\"error\":null,\"errobj\":null,\"response\":{\"url\":\"http://media.example.com/content/template.html\",");
+		json.append("\"frame\":\"PH_FULLSCREEN\",\"context\":{\"items\":[");
+
+		for (int i = 0; json.length() < RESPONSE_SIZE; i++)
+			json.append("{\"id\":").append(i).append(",\"image\":{\"url\":\"http://media.example.com/images/").append(i)
+				.append(".png\",\"width\":320,\"height\":480},\"title\":\"Item number ").append(i).append("\",\"featured\":false},");
+
+		json.setLength(json.length() - 1);
+		json.append("]}},\"debug\":{\"server\":\"benchmark\"}}");
+
+		final PHLoopbackTransport transport = new PHLoopbackTransport();
+		transport.setResponse("/v3/publisher/content/", new PHLoopbackTransport.CannedResponse(200, json.toString()));
+
+		benchmarks.add(new StreamingDecodeBenchmark("Decode 500 KB response (streaming)", true, transport));
+
+		benchmarks.add(new StreamingDecodeBenchmark("Decode 500 KB response (buffered)", false, transport));
+
+		benchmarks.add(new Benchmark("Decode 500 KB response (buffered, previous implementation)", 20) {
+			@Override
+			public void run() throws Exception {
+				PHTransport.Response response = transport.execute(new PHTransport.Request(CONTENT_URL, PHAsyncRequest.RequestType.Get));
+
+				bufferedDecode(response.getContent());
+			}
+		});
+	}
+
+	/** Sends a PHAPIRequest over the loopback, decoding the response as it arrives or once it has been read*/
+	private static class StreamingDecodeBenchmark extends Benchmark {
+		private final boolean streaming;
+
+		private final PHTransport transport;
+
+		private boolean streamingDecode;
+
+		public StreamingDecodeBenchmark(String name, boolean streaming, PHTransport transport) {
+			super(name, 20);
+
+			this.streaming = streaming;
+			this.transport = transport;
+		}
+
+		@Override
+		public void setUp() {
+			ensureCredentials();
+
+			streamingDecode 		  = PHConfig.streaming_decode;
+			PHConfig.streaming_decode = streaming;
+		}
+
+		@Override
+		public void run() {
+			new SyncRequest(new PHAPIRequest(null), transport).send(CONTENT_URL);
+		}
+
+		@Override
+		public void tearDown() {
+			PHConfig.streaming_decode = streamingDecode;
+		}
+	}
+
+	/** How responses used to be decoded: copied into a byte array, then a String, then parsed*/
+	private static JSONObject bufferedDecode(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer 			  = new byte[1024];
+
+		int count;
+		while ((count = in.read(buffer)) != -1)
+			out.write(buffer, 0, count);
+
+		return new JSONObject(new String(out.toByteArray(), "UTF-8"));
+	}
+
+	///////////////////////////////////////////////////////////////
+	//////////////////////////// Buffers //////////////////////////
+
+	/** Number of simulated API responses, one per operation*/
+	private static final int RESPONSE_COUNT = 1000;
+
+	/** Distinct responses the loopback serves (the lookup is linear, so not one per operation)*/
+	private static final int RESPONSE_KINDS = 32;
+
+	private void addBufferBenchmarks() {
+		// typical API responses: mostly a few KB, now and then a large content unit
+		Random random 						= new Random(42);
+		final PHLoopbackTransport transport = new PHLoopbackTransport();
+
+		for (int i = 0; i < RESPONSE_KINDS; i++) {
+			int size = (random.nextInt(10) == 0 ? 16 * 1024 + random.nextInt(48 * 1024) : 512 + random.nextInt(8 * 1024));
+
+			transport.setResponse("/responses/" + i + "/", new PHLoopbackTransport.CannedResponse(200, new byte[size]));
+		}
+
+		// includes the bookkeeping of a whole request (timing, metrics, logging), so compare the allocations rather than the time
+		benchmarks.add(new Benchmark("Read 1,000 responses (PHAsyncRequest, pooled, presized)", RESPONSE_COUNT) {
+			private int next;
+
+			@Override
+			public void run() {
+				// the buffer goes back to the pool once the (missing) delegate is done
+				new SyncRequest(null, transport).send(responseURL(next++));
+			}
+		});
+
+		benchmarks.add(new Benchmark("Read 1,000 responses (previous implementation)", RESPONSE_COUNT) {
+			private int next;
+
+			@Override
+			public void run() throws Exception {
+				PHTransport.Response response = transport.execute(new PHTransport.Request(responseURL(next++), PHAsyncRequest.RequestType.Get));
+
+				copyingRead(response.getContent());
+			}
+		});
+	}
+
+	private static String responseURL(int index) {
+		return "http://loopback/responses/" + (index % RESPONSE_KINDS) + "/";
+	}
+
+	/** How responses used to be read: through a 1 KB buffer into a growing stream, then copied out*/
+	private static ByteBuffer copyingRead(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer 			  = new byte[1024];
+
+		int count;
+		while ((count = in.read(buffer)) != -1)
+			out.write(buffer, 0, count);
+
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	///////////////////////////////////////////////////////////////
+	////////////////////////// Signed URLs ////////////////////////
+
+	private void addSignedURLBenchmarks() {
+		benchmarks.add(new Benchmark("new PHAPIRequest + getURL (static params cached)", 2000) {
+			@Override
+			public void setUp() {
+				ensureCredentials();
+			}
+
+			@Override
+			public void run() throws Exception {
+				new PHAPIRequest(null).getURL();
+			}
+		});
+
+		benchmarks.add(new Benchmark("new PHAPIRequest + getURL (static params rebuilt)", 2000) {
+			@Override
+			public void setUp() {
+				ensureCredentials();
+			}
+
+			@Override
+			public void run() throws Exception {
+				// an identical copy of the snapshot still invalidates the static params, so every request builds them as it used to
+				PHDeviceSnapshot snapshot = PHDeviceSnapshot.getCurrentOrConfig();
+				PHDeviceSnapshot.install(snapshot.withConnection(snapshot.connection));
+
+				new PHAPIRequest(null).getURL();
+			}
+		});
+	}
+
+	/** Nothing is sent, so placeholders will do if no token and secret were configured*/
+	private static void ensureCredentials() {
+		if (PHConfig.token  == null || PHConfig.token.length()  == 0) PHConfig.token  = "benchmark_token";
+		if (PHConfig.secret == null || PHConfig.secret.length() == 0) PHConfig.secret = "benchmark_secret";
+	}
+
+	///////////////////////////////////////////////////////////////
+	//////////////////////////// Digests //////////////////////////
+
+	/** What we sign: token:device:nonce:secret*/
+	private static final String SIGNATURE_INPUT = "2aa7ad9c3f1c4d7e9d8e:9774d56d682e549c:b7a3d02f5c9e4e1fa6c8d9e0:f4c2d8e7a1b5";
+
+	private void addDigestBenchmarks() {
+		final HashMap<String, String> params = new HashMap<String, String>();
+
+		params.put("placement_id", "more_games");
+		params.put("preload", 	   "0");
+		params.put("stime", 	   "125");
+		params.put("nonce", 	   "b7a3d02f5c9e4e1fa6c8d9e0");
+		params.put("signature",    "5e0c2b6e2f9d4c1a8b7e6d5c4b3a2f1e0d9c8b7a");
+
+		benchmarks.add(new Benchmark("hexDigest (signature)", 10000) {
+			@Override
+			public void run() throws Exception {
+				PHStringUtil.hexDigest(SIGNATURE_INPUT);
+			}
+		});
+
+		benchmarks.add(new Benchmark("hexDigest (signature, previous implementation)", 10000) {
+			@Override
+			public void run() throws Exception {
+				formatterHexDigest(SIGNATURE_INPUT);
+			}
+		});
+
+		benchmarks.add(new Benchmark("base64Digest", 10000) {
+			@Override
+			public void run() throws Exception {
+				PHStringUtil.base64Digest(SIGNATURE_INPUT);
+			}
+		});
+
+		benchmarks.add(new Benchmark("base64Digest (previous implementation)", 10000) {
+			@Override
+			public void run() throws Exception {
+				substringBase64Digest(SIGNATURE_INPUT);
+			}
+		});
+
+		benchmarks.add(new Benchmark("createQuery (5 params)", 10000) {
+			@Override
+			public void run() {
+				PHStringUtil.createQuery(params);
+			}
+		});
+
+		benchmarks.add(new Benchmark("createQuery (5 params, previous implementation)", 10000) {
+			@Override
+			public void run() {
+				formatQuery(params);
+			}
+		});
+	}
+
+	/** How hexDigest used to work: a new MessageDigest and a Formatter for every call*/
+	private static String formatterHexDigest(String input) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(input.getBytes("UTF8"));
+
+		StringBuilder hex 	= new StringBuilder(digest.length * 2);
+		Formatter formatter = new Formatter(hex);
+
+		for (byte b : digest)
+			formatter.format("%02x", b);
+
+		return hex.toString();
+	}
+
+	/** How base64Digest used to work: encoded by android.util.Base64, then trimmed*/
+	private static String substringBase64Digest(String input) throws Exception {
+		byte[] digest  = MessageDigest.getInstance("SHA-1").digest(input.getBytes("UTF8"));
+		String encoded = new String(Base64.encode(digest, Base64.URL_SAFE | Base64.NO_PADDING), "UTF8");
+
+		return encoded.substring(0, encoded.length() - 1);
+	}
+
+	/** How createQuery used to work: a String.format per pair*/
+	private static String formatQuery(HashMap<String, String> dict) {
+		StringBuilder query = new StringBuilder();
+
+		for (Map.Entry<String, String> entry : dict.entrySet()) {
+			String key 	 = PHStringUtil.urlEncode(entry.getKey());
+			String value = PHStringUtil.weakUrlEncode(entry.getValue());
+
+			query.append(String.format(query.length() == 0 ? "%s=%s" : "&%s=%s", key, value));
+		}
+
+		return query.toString();
+	}
+
+	///////////////////////////////////////////////////////////////
+	/////////////////////// Request Construction //////////////////
+
+	private void addRequestBenchmarks() {
+		final Context context = getApplicationContext();
+
+		benchmarks.add(new Benchmark("new PHAPIRequest(context)", 1000) {
+			@Override
+			public void setUp() {
+				ensureCredentials();
+			}
+
+			@Override
+			public void run() {
+				new PHAPIRequest(context);
+			}
+		});
+
+		benchmarks.add(new Benchmark("new PHAPIRequest(context) (previous implementation)", 1000) {
+			@Override
+			public void setUp() {
+				ensureCredentials();
+			}
+
+			@Override
+			public void run() {
+				// every request used to query the package manager, display, settings and connectivity under the class lock
+				synchronized (PHAPIRequest.class) {
+					PHConfig.cacheDeviceInfo(context);
+				}
+
+				new PHAPIRequest(context);
+			}
+		});
+	}
+
+	///////////////////////////////////////////////////////////////
+	///////////////////////// Config Loading //////////////////////
+
+	private void addConfigBenchmarks() {
+		// every operation loads a fresh copy of the class from our APK, so its static initializer runs again
+		final String apk 		 = getPackageCodePath();
+		final ClassLoader parent = MicroBenchmarkView.class.getClassLoader().getParent();
+
+		benchmarks.add(new Benchmark("new PathClassLoader (baseline for the class init below)", 20) {
+			@Override
+			public void run() {
+				new PathClassLoader(apk, parent);
+			}
+		});
+
+		benchmarks.add(new Benchmark("PHConfig class init", 20) {
+			@Override
+			public void run() throws Exception {
+				Class.forName(PHConfig.class.getName(), true, new PathClassLoader(apk, parent));
+			}
+		});
+
+		benchmarks.add(new Benchmark("PHConfig class init + ensureLoaded (first request)", 20) {
+			@Override
+			public void run() throws Exception {
+				Class<?> config = Class.forName(PHConfig.class.getName(), true, new PathClassLoader(apk, parent));
+				config.getMethod("ensureLoaded").invoke(null);
+			}
+		});
+
+		benchmarks.add(new Benchmark("PHConfig class init (previous implementation)", 20) {
+			@Override
+			public void run() throws Exception {
+				Class.forName(ReflectiveConfig.class.getName(), true, new PathClassLoader(apk, parent));
+			}
+		});
+	}
+
+	/** How PHConfig used to initialize: the build-time blob parsed and set through reflection when the class was loaded*/
+	private static class ReflectiveConfig {
+		public static String api 			= "";
+
+		public static int 	 protocol 		= -1;
+
+		public static String urgency_level 	= "";
+
+		public static boolean precache 		= true;
+
+		static {
+			try {
+				JSONObject config = new JSONObject(PHConfig.JSON_CONFIG).optJSONObject("prod");
+
+				Iterator<?> keys = config.keys();
+				while (keys.hasNext()) {
+					String key = (String) keys.next();
+
+					ReflectiveConfig.class.getField(key).set(null, config.opt(key));
+				}
+
+			} catch (Exception e) {
+				PHStringUtil.log("Could not load the configuration: " + e.getMessage());
+			}
+		}
+	}
+}
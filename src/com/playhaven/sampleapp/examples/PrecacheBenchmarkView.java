@@ -0,0 +1,125 @@
+package com.playhaven.sampleapp.examples;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+import com.playhaven.src.common.PHAPIRequest;
+import com.playhaven.src.common.PHConfig;
+import com.playhaven.src.common.PHTransferScheduler;
+import com.playhaven.src.publishersdk.open.PHPublisherOpenRequest;
+
+/** Measures the time from the open response until everything it asked for is precached, for a growing number
+ * of files and with the downloads run one at a time versus in parallel. Runs against a local {@link BatchStubServer}
+ * so the numbers only depend on the simulated latency (precaching only runs in parallel on WIFI).
+ */
+public class PrecacheBenchmarkView extends ExampleView implements PHAPIRequest.Delegate, PHPublisherOpenRequest.PrefetchListener {
+	private static final long SIMULATED_LATENCY = 150;
+
+	private static final int FILE_SIZE = 32 * 1024;
+
+	private static final int[] ITEM_COUNTS = {1, 4, 8, 16};
+
+	private static final int[] PARALLELISM = {1, PHTransferScheduler.PARALLEL_JOBS};
+
+	private BatchStubServer server;
+
+	private String realServer;
+
+	private PHTransferScheduler scheduler;
+
+	private int originalParallelJobs;
+
+	private int run;
+
+	@Override
+	public void onCreate(Bundle savedInstance) {
+		super.onCreate(savedInstance);
+
+		setTitle("Precache Benchmark");
+	}
+
+	@Override
+	public void startRequest() {
+		super.startRequest();
+
+		try {
+			if (server == null) {
+				server 	   = new BatchStubServer(SIMULATED_LATENCY);
+
+				PHConfig.ensureLoaded(); // so we remember the configured server
+				realServer = PHConfig.api;
+
+				scheduler 			 = PHTransferScheduler.getSharedScheduler(this);
+				originalParallelJobs = scheduler.getParallelJobs();
+			}
+
+			PHConfig.api 	 = server.getURL();
+			PHConfig.precache = true;
+
+			super.addMessage("Connection: " + scheduler.getConnectionType());
+
+			run = 0;
+			startRun();
+
+		} catch (IOException e) {
+			super.addMessage("Could not start stub server: " + e.toString());
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (server != null) {
+			server.close();
+			PHConfig.api = realServer;
+			scheduler.setParallelJobs(originalParallelJobs);
+		}
+
+		super.onDestroy();
+	}
+
+	/** Sends an open request which precaches the next item count at the next parallelism*/
+	private void startRun() {
+		if (run >= ITEM_COUNTS.length * PARALLELISM.length) return;
+
+		scheduler.setParallelJobs(PARALLELISM[run / ITEM_COUNTS.length]);
+		server.setPrecache(ITEM_COUNTS[run % ITEM_COUNTS.length], FILE_SIZE);
+
+		PHPublisherOpenRequest request = new PHPublisherOpenRequest(this, this);
+		request.setPrefetchListener(this);
+		request.send();
+	}
+
+	///////////////////////////////////////////////////////////////
+	////////////////////////// Prefetch Listener //////////////////
+	@Override
+	public void prefetchFinished(PHPublisherOpenRequest request) {
+		try {
+			// already complete, doesn't block
+			PHPublisherOpenRequest.PrefetchSummary summary = request.getPrefetchFuture().get();
+
+			super.addMessage(String.format("%d files, %d parallel: %d ms (%d failed)",
+										   summary.total,
+										   scheduler.getParallelJobs(),
+										   summary.elapsed,
+										   summary.getFailed()));
+		} catch (Exception e) {
+			super.addMessage("Could not get the summary: " + e.toString());
+		}
+
+		run++;
+		startRun();
+	}
+
+	///////////////////////////////////////////////////////////////
+	////////////////////////// Delegate Methods ///////////////////
+	public void requestSucceeded(PHAPIRequest request, JSONObject responseData) {
+		// pass (we wait for the precaching)
+	}
+
+	public void requestFailed(PHAPIRequest request, Exception e) {
+		super.addMessage(String.format("Failed with error: %s", e.toString()));
+	}
+}
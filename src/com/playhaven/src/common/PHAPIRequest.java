@@ -1,13 +1,20 @@
 package com.playhaven.src.common;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,6 +23,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
 
+import com.playhaven.src.utils.PHJSONStreamReader;
 import com.playhaven.src.utils.PHStringUtil;
 
 /** 
@@ -24,7 +32,7 @@ import com.playhaven.src.utils.PHStringUtil;
  * We make extensive use of the "templating" pattern in this class since it is designed primarily to be overridden.
  * Subclasses should override the getters to customize the behavior of this class instead of calling a million setters.
  */
-public class PHAPIRequest implements PHAsyncRequest.Delegate {
+public class PHAPIRequest implements PHAsyncRequest.StreamDelegate, PHAsyncRequest.RevalidationDelegate {
 
 	public Delegate delegate;
 	
@@ -32,11 +40,40 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	
 	private HashMap<String, String> signedParams;
 	
+	// the shared parameters signedParams was built from
+	private StaticParams signedParamsBase;
+	
+	// device information as of when we were created
+	private final PHDeviceSnapshot deviceSnapshot;
+	
 	private Hashtable<String, String> additionalParams;
 	
 	private String urlPath;
 	
 	private int requestTag;
+	
+	// outcome of parsing the response on the background thread (delivered on the UI thread)
+	private boolean processedInBackground;
+	
+	private JSONObject parsedResponse;
+	
+	private Exception parseError;
+	
+	// in-flight coalescing (see PHRequestCoalescer). Only touched on the UI thread except
+	// when the leader hands its result to the followers on its background thread.
+	private String coalescingKey;
+	
+	private boolean isFollower;
+	
+	private List<PHAPIRequest> followers;
+	
+	// retries (see PHRetryPolicy)
+	private int retryCount;
+	
+	private Runnable pendingRetry;
+	
+	// the clock pendingRetry is scheduled on
+	private PHClock pendingClock;
 		
 	private static WeakReference<SharedPreferences> preferences;
 	
@@ -49,6 +86,18 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	
 	public static final Integer APP_CACHE_VERSION  = 100;
 	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int MAX_URL_BUILDER_CAPACITY = 4 * 1024;
+	
+	// reused for building the urls
+	private static final ThreadLocal<StringBuilder> URL_BUILDER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(512);
+		}
+	};
+	
 	// protected so subclasses can access it. You shouldn't.
 	protected String fullUrl;
 
@@ -62,19 +111,28 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	 */
 	public PHAPIRequest(Context context) {
 		
+		PHConfig.ensureLoaded(); // the build-time configuration is applied on first use
+		
 		if (context != null) {
-			synchronized (PHAPIRequest.class) {
-				PHConfig.cacheDeviceInfo(context); // get all relevant device info
-				
-				preferences = new WeakReference<SharedPreferences>(context.getSharedPreferences(
-																		SESSION_PREFERENCES, 
-																		Context.MODE_WORLD_WRITEABLE) // shared with all apps so beware!
-																  	);
-			}
+			// captured once, then kept up to date in the background
+			deviceSnapshot = PHDeviceSnapshot.get(context);
+			
+			PHResponseCache.getSharedCache(context); // cheap, the disk cache is opened lazily
+			
+			PHRequestSpool.getSharedSpool(context); // replays anything left over from the last run
+			
+			preferences = new WeakReference<SharedPreferences>(context.getSharedPreferences(
+																	SESSION_PREFERENCES, 
+																	Context.MODE_WORLD_WRITEABLE) // shared with all apps so beware!
+															  	);
 			 
+		} else {
+			deviceSnapshot = PHDeviceSnapshot.getCurrentOrConfig();
 		}
 		
 		
+		PHNoncePool.getSharedPool().warmUp(); // have nonces ready by the time we sign
+		
 		if (PHConfig.token == null       || PHConfig.secret == null     ||
 			PHConfig.token.length() == 0 || PHConfig.secret.length() == 0)
 			throw new IllegalArgumentException("You must set your token and secret from the Playhaven dashboard");
@@ -98,6 +156,11 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 		return conn;
 	}
 	
+	/** The device information this request is signed with*/
+	public PHDeviceSnapshot getDeviceSnapshot() {
+		return deviceSnapshot;
+	}
+	
 	///////////////////////////////////////////////
 	
 	public void setRequestTag(int requestTag) {
@@ -113,6 +176,7 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	///// Generating Signed Parameters //////////
 	
 	/** Creates a base "authed" URL + any addditional parameters (usually from subclass). 
+	 * The device and app parameters come from the shared {@link StaticParams}, only the nonce and signature are generated here.
 	 * @throws NoSuchAlgorithmException 
 	 * @throws UnsupportedEncodingException 
 	 * @return HashMap Mapping from query parameters to values
@@ -120,102 +184,154 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	public HashMap<String, String> getSignedParams() throws UnsupportedEncodingException, 
 															  NoSuchAlgorithmException {
 		if(signedParams == null) {
-			String device, 
-			nonce, 
-			sigHash, 
-			sig, 
-			appId, 
-			appVersion, 
-			hardware, 
-			os, 
-			idiom, 
-			sdk_version, 
-			width, 
-			height, 
-			sdk_platform, 
-			orientation,
-			screen_density,
-			connection;
-			
-			device 			= (PHConfig.device_id != null ? PHConfig.device_id : "null");
-			idiom			= String.valueOf(PHConfig.device_size);
-			orientation 	= "0"; // TODO: use actual orientation?
-			
-			// make sure we generate the device id before doing the sighash!
-			// you like that formatting do you?
-			
-			nonce 			= PHStringUtil	.base64Digest  (PHStringUtil.generateUUID	  ());
-			
-			if (PHConfig.token == null || PHConfig.secret == null) throw new UnsupportedOperationException("You must set both the token and secret from the Playhaven Dashboard!");
-			
-			sig		  		= String		.format		   ("%s:%s:%s:%s", 
-															PHConfig.token, 
-															(device != null ? device : ""), 		// in the future we'll add session
-															(nonce  != null ? nonce  : ""), 
-															PHConfig.secret);
-			
-			sigHash         = PHStringUtil	.hexDigest	   (sig);
-			appId           = PHConfig		.app_package;
-			appVersion      = PHConfig		.app_version;
-			hardware        = PHConfig 		.device_model;
-			os              = String		.format		   ("%s %s", 
-															PHConfig.os_name			, 
-													 		PHConfig.os_version			);
-			
-			sdk_version     = PHConfig		.sdk_version;
-			sdk_platform    = 				"android";
-			width           = String		.valueOf	   (PHConfig.screen_size.width  ());
-			height          = String		.valueOf	   (PHConfig.screen_size.height ());
-			screen_density  = String		.valueOf	   (PHConfig.screen_density_type  );
-			
-			connection      = ((PHConfig.connection == PHConfig.ConnectionType.NO_PERMISSION) 
-			                                ? null
-			                                : String.valueOf(PHConfig.connection.ordinal()));
+			StaticParams prefix = StaticParams.get(deviceSnapshot);
+			
+			String nonce 	= createNonce();
+			String sigHash 	= createSignature(prefix.device, nonce);
 			
 			// decide if we add to existing params.
 			Hashtable<String, String> additionalParams = getAdditionalParams(); // only call *once* since might have side effects
 			
-			// makek a copy...
-			HashMap<String, String> add_params 		   = (additionalParams != null 
-																	? new HashMap<String, String>(additionalParams)
-																	: new HashMap<String, String>());
+			// makek a copy... (the signed parameters win)
+			HashMap<String, String> params = (additionalParams != null 
+													? new HashMap<String, String>(additionalParams)
+													: new HashMap<String, String>());
 			
+			params.putAll(prefix.params);
 			
-			signedParams = new HashMap<String, String>();
+			params.put("signature", sigHash);
+			params.put("nonce", 	nonce);
 			
-			signedParams.put("device", 			device);
-			
-			signedParams.put("token", 			PHConfig.token);
-			signedParams.put("signature", 		sigHash);
+			signedParams 	 = params;
+			signedParamsBase = prefix;
+		}
+		
+		return signedParams;
+	}
+	
+	/**
+	 * The signed parameters which are the same for every request (device, app, screen...), generated once and 
+	 * kept as both a map and a pre-encoded query string. Immutable: when the {@link PHDeviceSnapshot}, token 
+	 * or language it was built from change, the next request simply builds a new one.
+	 */
+	private static final class StaticParams {
+		private static volatile StaticParams current;
+		
+		// what we were built from
+		private final PHDeviceSnapshot snapshot;
+		
+		private final String token;
+		
+		private final String language;
+		
+		public final String device;
+		
+		/** Unmodifiable, no null values*/
+		public final Map<String, String> params;
+		
+		/** The parameters as a query string (without leading or trailing '&')*/
+		public final String encoded;
+		
+		/** Gets the parameters for the given snapshot, rebuilding them if anything changed*/
+		public static StaticParams get(PHDeviceSnapshot snapshot) {
+			StaticParams prefix = current;
 			
-			signedParams.put("nonce", 			nonce);
-			signedParams.put("app", 			appId);
+			if (prefix == null || ! prefix.isCurrent(snapshot)) {
+				prefix  = new StaticParams(snapshot);
+				current = prefix;
+			}
 			
-			signedParams.put("app_version", 	appVersion);
-			signedParams.put("hardware", 		hardware);
+			return prefix;
+		}
+		
+		private StaticParams(PHDeviceSnapshot snapshot) {
+			this.snapshot = snapshot;
 			
-			signedParams.put("os", 				os);
-			signedParams.put("idiom", 			idiom);
+			token 	 = PHConfig.token;
+			language = Locale.getDefault().getLanguage();
+			device 	 = (snapshot.device_id != null ? snapshot.device_id : "null");
 			
-			signedParams.put("width", 			width);
-			signedParams.put("height", 			height);
+			LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
 			
-			signedParams.put("sdk_version", 	sdk_version);
-			signedParams.put("sdk_platform", 	sdk_platform);
+			values.put("device", 		device);
+			values.put("token", 		token);
+			values.put("app", 			snapshot.app_package);
+			values.put("app_version", 	snapshot.app_version);
+			values.put("hardware", 		snapshot.device_model);
+			values.put("os", 			snapshot.os_name + " " + snapshot.os_version);
+			values.put("idiom", 		String.valueOf(snapshot.device_size));
+			values.put("width", 		String.valueOf(snapshot.screen_width));
+			values.put("height", 		String.valueOf(snapshot.screen_height));
+			values.put("sdk_version", 	snapshot.sdk_version);
+			values.put("sdk_platform", 	"android");
+			values.put("orientation", 	"0"); // TODO: use actual orientation?
+			values.put("dpi", 			String.valueOf(snapshot.screen_density_type));
+			values.put("languages", 	language);
 			
-			signedParams.put("orientation", 	orientation);
-			signedParams.put("dpi", 			screen_density);
+			if (snapshot.connection != null && snapshot.connection != PHConfig.ConnectionType.NO_PERMISSION)
+				values.put("connection", String.valueOf(snapshot.connection.ordinal()));
 			
-			signedParams.put("languages", 		Locale.getDefault().getLanguage());
+			StringBuilder query = new StringBuilder();
 			
-			if (connection != null) 
-				signedParams.put("connection",	connection);
+			for (Iterator<Map.Entry<String, String>> it = values.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String, String> entry = it.next();
+				
+				if (entry.getValue() == null) {
+					it.remove();
+					continue;
+				}
+				
+				PHStringUtil.appendQueryParam(query, entry.getKey(), entry.getValue());
+			}
 			
-			add_params.putAll(signedParams);
-			signedParams 	= add_params;
+			params  = Collections.unmodifiableMap(values);
+			encoded = query.toString();
 		}
 		
-		return signedParams;
+		/** Still valid? Cheap (no allocations) since it runs for every request.*/
+		private boolean isCurrent(PHDeviceSnapshot snapshot) {
+			return (this.snapshot == snapshot 						&&
+					same(token, 	PHConfig.token) 				&&
+					same(language, 	Locale.getDefault().getLanguage()));
+		}
+		
+		private static boolean same(String a, String b) {
+			return (a == b || (a != null && a.equals(b)));
+		}
+	}
+	
+	/** Takes a pre-generated nonce from the {@link PHNoncePool} so signing doesn't block on the random generator*/
+	private static String createNonce() throws UnsupportedEncodingException, 
+											   NoSuchAlgorithmException {
+		return PHNoncePool.getSharedPool().take();
+	}
+	
+	private static String createSignature(String device, String nonce) throws UnsupportedEncodingException, 
+																			  NoSuchAlgorithmException {
+		if (PHConfig.token == null || PHConfig.secret == null) throw new UnsupportedOperationException("You must set both the token and secret from the Playhaven Dashboard!");
+		
+		String sig = String.format("%s:%s:%s:%s", 
+									PHConfig.token, 
+									(device != null ? device : ""), 		// in the future we'll add session
+									(nonce  != null ? nonce  : ""), 
+									PHConfig.secret);
+		
+		return PHStringUtil.hexDigest(sig);
+	}
+	
+	/** Signs the (already generated) parameters again with a fresh nonce so that a retry isn't a replay.
+	 * We keep all the other parameters since generating them might have side effects.
+	 */
+	private void refreshSignature() throws UnsupportedEncodingException, 
+										   NoSuchAlgorithmException {
+		if (signedParams == null) return;
+		
+		String nonce = createNonce();
+		
+		signedParams.put("nonce", 	  nonce);
+		signedParams.put("signature", createSignature(signedParamsBase.device, nonce));
+		
+		fullUrl = null;
 	}
 	
 	/** Sets the additional parameters (mostly for testing)*/
@@ -238,16 +354,43 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	}
 	
 	public void send() {
-		conn = new PHAsyncRequest(this);
+		retryCount = 0;
+		cancelPendingRetry();
+		
+		willSend();
+		
+		send(createConnection());	
+	}
+	
+	/** Override point for subclasses. Called on the UI thread just before the request goes out,
+	 * either on its own or as part of a {@link PHBatchRequest}.
+	 */
+	protected void willSend() {
+		// pass (nothing to do by default)
+	}
+	
+	private PHAsyncRequest createConnection() {
+		PHAsyncRequest client = new PHAsyncRequest(this);
 		
 		if (PHConfig.username != null && PHConfig.password != null) { 
-			conn.setUsername(PHConfig.username);
-			conn.setPassword(PHConfig.password);
+			client.setUsername(PHConfig.username);
+			client.setPassword(PHConfig.password);
 		}
 		
-		conn.request_type = getRequestType();
-			
-		send(conn);	
+		client.request_type = getRequestType();
+		
+		String idempotencyKey = getIdempotencyKey();
+		if (idempotencyKey != null)
+			client.setHeader("Idempotency-Key", idempotencyKey);
+		client.setCompressPostBody(shouldCompressPostBody());
+		
+		client.setConnectTimeout(getConnectTimeout());
+		client.setReadTimeout   (getReadTimeout());
+		client.setDeadline      (getDeadline());
+		
+		client.setMetricsEndpoint(getEndpoint());
+		
+		return client;
 	}
 	
 	/** Actually kicks off the request*/
@@ -258,12 +401,29 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 		// explicitly set the post params if a post request
 		if (conn.request_type == PHAsyncRequest.RequestType.Post)
 			conn.addPostParams(getPostParams());
+		
+		if (conn.request_type == PHAsyncRequest.RequestType.Get && shouldCacheResponse()) {
+			conn.setResponseCache(PHResponseCache.getSharedCache(), getCoalescingKey(), baseURL());
+			conn.setStaleWhileRevalidate(getStaleWhileRevalidate());
+		}
 					
+			if (joinInFlight()) {
+				PHStringUtil.log("Coalescing with identical in-flight request: " + getURL());
+				return; // the leader will hand us the result
+			}
+			
+			PHCircuitBreaker breaker = getCircuitBreaker();
+			
+			if ( ! breaker.allowRequest()) {
+				PHStringUtil.log("Failing fast, circuit open for: " + breaker.getEndpoint());
+				failLater(new PHCircuitOpenException("Endpoint is failing, not sending: " + breaker.getEndpoint()));
+				return;
+			}
 					
 			PHStringUtil.log("Sending PHAPIRequest of type: " + getRequestType().toString());
 			PHStringUtil.log("PHAPIRequest URL: " + getURL());
 					
-			conn.execute(Uri.parse(getURL()));
+			PHNetworkExecutor.execute(conn, getPriority(), Uri.parse(getURL()));
 					
 		} catch (Exception e) {
 			PHCrashReport.reportCrash(e, "PHAPIRequest - send()", PHCrashReport.Urgency.critical);
@@ -277,14 +437,122 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 		return PHAsyncRequest.RequestType.Get;
 	}
 	
+	/** Gets the priority on the {@link PHNetworkExecutor}. Subclasses should override if the request is more (or less) urgent than metadata.*/
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Metadata;
+	}
+	
+	/** Time (ms) to establish a connection. Subclasses should override to customize.*/
+	public int getConnectTimeout() {
+		return PHAsyncRequest.DEFAULT_CONNECT_TIMEOUT;
+	}
+	
+	/** Time (ms) to wait on a stalled connection. Subclasses should override to customize.*/
+	public int getReadTimeout() {
+		return PHAsyncRequest.DEFAULT_READ_TIMEOUT;
+	}
+	
+	/** Overall time (ms) for the request, including all redirects. When it passes,
+	 * the delegate receives a {@link PHTimeoutException}. Subclasses should override to customize.
+	 */
+	public int getDeadline() {
+		return PHAsyncRequest.DEFAULT_DEADLINE;
+	}
+	
+	/** Should large post bodies be gzipped? Subclasses with big payloads should override.*/
+	public boolean shouldCompressPostBody() {
+		return false;
+	}
+	
+	/** Can identical concurrent requests share a single network round-trip? Subclasses whose responses 
+	 * are safe to share (no side effects on the server) should override. Only GET requests are ever coalesced.
+	 */
+	public boolean isCoalescable() {
+		return false;
+	}
+	
+	/** Decides if failed requests are retried. Subclasses may override (return {@link PHRetryPolicy#NONE} to never retry).*/
+	public PHRetryPolicy getRetryPolicy() {
+		return PHRetryPolicy.getDefault();
+	}
+	
+	/** Key which lets the server recognize a repeated POST. POST requests are only retried if they have one.
+	 * Sent as the <code>Idempotency-Key</code> header. Must stay the same across retries.
+	 */
+	public String getIdempotencyKey() {
+		return null;
+	}
+	
+	/** The endpoint path (such as "/v3/publisher/open/") used to group requests for the {@link PHCircuitBreaker}*/
+	public String getEndpoint() {
+		String url = baseURL();
+		if (url == null) return "";
+		
+		String path = Uri.parse(url).getPath();
+		
+		return (path != null ? path : url);
+	}
+	
+	/** Can the request travel inside a {@link PHBatchRequest}? Subclasses whose {@link #send()} does more than
+	 * send the request should override and return false, they are then sent on their own.
+	 */
+	public boolean isBatchable() {
+		return true;
+	}
+	
+	/** Should the request be written to the {@link PHRequestSpool} and replayed later if it can't reach the server?
+	 * Subclasses whose data must not be lost (and which don't depend on the response) should override.
+	 */
+	public boolean isSpoolable() {
+		return false;
+	}
+	
+	public PHCircuitBreaker getCircuitBreaker() {
+		return PHCircuitBreaker.forEndpoint(getEndpoint());
+	}
+	
+	/** Should responses be kept in the {@link PHResponseCache}? The server still decides what (and for how long)
+	 * via its caching headers. Only GET requests are ever cached. Subclasses should override to opt in.
+	 */
+	public boolean shouldCacheResponse() {
+		return false;
+	}
+	
+	/** How long (ms) past its freshness a cached response may be served immediately while it is revalidated 
+	 * in the background (unless the server specifies a window). Subclasses should override if a slightly stale
+	 * response is better than waiting.
+	 */
+	public long getStaleWhileRevalidate() {
+		return 0;
+	}
+	
+	/** Key identifying identical requests (see {@link PHRequestCoalescer#createKey}). Also identifies the response in the {@link PHResponseCache}.
+	 * Subclasses may override to ignore parameters which don't affect the response.
+	 */
+	public String getCoalescingKey() throws UnsupportedEncodingException, 
+											NoSuchAlgorithmException {
+		return PHRequestCoalescer.createKey(baseURL(), getSignedParams());
+	}
+	
 	/** Gets the post parameters if the request type is POST. Subclasses should override to provide parameters.*/
 	public Hashtable<String, String> getPostParams() {
 		return null; // just empty
 	}
 	/** Should only be overridden and not called directly from external class.*/
 	protected void finish() {
-		conn.cancel(true);
+		cancelPendingRetry();
+		
+		// actually abort the network request instead of just cancelling the task
+		if (conn != null) conn.abort();
+		
+		if (isFollower) {
+			PHRequestCoalescer.leave(coalescingKey, this);
+			clearCoalescing();
+		}
 		
+		// nobody will hand our followers a result now, so they have to go it alone
+		for (PHAPIRequest follower : takeFollowers())
+			follower.resendAlone();
 	}
 	
 	public void cancel() {
@@ -299,8 +567,28 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	 */
 	public String getURL() throws UnsupportedEncodingException, 
 								  NoSuchAlgorithmException {
-		if(fullUrl == null)
-			fullUrl = String.format("%s?%s", this.baseURL(), signedParamsStr());
+		if(fullUrl == null) {
+			HashMap<String, String> params = getSignedParams();
+			StaticParams prefix 		   = signedParamsBase;
+			
+			// the shared parameters are already encoded, we only append the rest
+			StringBuilder url = URL_BUILDER.get();
+			url.setLength(0);
+			
+			url.append(baseURL()).append('?').append(prefix.encoded);
+			
+			for (Map.Entry<String, String> entry : params.entrySet()) {
+				if (entry.getKey() == null || entry.getValue() == null || prefix.params.containsKey(entry.getKey())) 
+					continue;
+				
+				PHStringUtil.appendQueryParam(url, entry.getKey(), entry.getValue());
+			}
+			
+			fullUrl = url.toString();
+			
+			// don't hold onto huge urls
+			if (url.capacity() > MAX_URL_BUILDER_CAPACITY) URL_BUILDER.remove();
+		}
 
 		return fullUrl;
 	}
@@ -320,6 +608,218 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 		this.urlPath = url;
 	}
 	
+	///////////////////////////////////////////////////////
+	//////////////////// Retries /////////////////////////
+	
+	/** The clock retries (and deferred failures) are scheduled on, the retry policy's so tests can drive it*/
+	private PHClock getRetryClock() {
+		PHRetryPolicy policy = getRetryPolicy();
+		
+		return (policy != null ? policy.getClock() : PHClock.SYSTEM);
+	}
+	
+	/** Schedules another attempt if the retry policy allows it.
+	 * @return true if we will retry (and the failure should not be reported)
+	 */
+	private boolean retryLater(Exception e) {
+		PHRetryPolicy policy = getRetryPolicy();
+		if (policy == null) return false;
+		
+		long delay = policy.getRetryDelay(this, e, retryCount + 1);
+		if (delay == PHRetryPolicy.NO_RETRY) return false;
+		
+		retryCount++;
+		
+		PHStringUtil.log(String.format("Retrying %s in %d ms (retry %d) after: %s", getEndpoint(), delay, retryCount, e.getMessage()));
+		
+		pendingRetry = new Runnable() {
+			@Override
+			public void run() {
+				pendingRetry = null;
+				
+				try {
+					refreshSignature();
+				} catch (Exception e) {
+					PHCrashReport.reportCrash(e, "PHAPIRequest - retry", PHCrashReport.Urgency.critical);
+				}
+				
+				send(createConnection());
+			}
+		};
+		
+		pendingClock = getRetryClock();
+		pendingClock.postDelayed(pendingRetry, delay);
+		return true;
+	}
+	
+	/** Reports the failure on the next pass through the UI thread (so never from within {@link #send()})*/
+	private void failLater(final Exception e) {
+		pendingRetry = new Runnable() {
+			@Override
+			public void run() {
+				pendingRetry = null;
+				requestFailed(e);
+			}
+		};
+		
+		pendingClock = getRetryClock();
+		pendingClock.postDelayed(pendingRetry, 0);
+	}
+	
+	private void cancelPendingRetry() {
+		if (pendingRetry == null) return;
+		
+		pendingClock.removeCallbacks(pendingRetry);
+		pendingRetry = null;
+	}
+	
+	/** Number of retries for the current send*/
+	public int getRetryCount() {
+		return retryCount;
+	}
+	
+	///////////////////////////////////////////////////////
+	//////////// In-flight Coalescing ////////////////////
+	
+	/** Attaches us to an identical request already on the wire (if any).
+	 * @return true if we are now a follower and must not be sent
+	 */
+	private boolean joinInFlight() throws UnsupportedEncodingException, 
+										  NoSuchAlgorithmException {
+		clearCoalescing();
+		
+		if (conn.request_type != PHAsyncRequest.RequestType.Get || ! isCoalescable()) 
+			return false;
+		
+		coalescingKey = getCoalescingKey();
+		isFollower 	  = PHRequestCoalescer.join(coalescingKey, this);
+		
+		return isFollower;
+	}
+	
+	private void clearCoalescing() {
+		coalescingKey = null;
+		isFollower 	  = false;
+		followers 	  = null;
+	}
+	
+	/** Stops accepting followers. Safe to call more than once.
+	 * @return the followers which are still waiting on us (never null)
+	 */
+	private List<PHAPIRequest> takeFollowers() {
+		if (coalescingKey == null || isFollower) 
+			return Collections.emptyList();
+		
+		List<PHAPIRequest> pending = (followers != null 
+										? followers 
+										: PHRequestCoalescer.complete(coalescingKey, this));
+		clearCoalescing();
+		
+		return pending;
+	}
+	
+	/** Hands a copy of our result to the followers. Called on the background thread once we have parsed the response.*/
+	private void prepareFollowersInBackground() {
+		if (coalescingKey == null || isFollower) return;
+		
+		followers = PHRequestCoalescer.complete(coalescingKey, this);
+		
+		for (PHAPIRequest follower : followers)
+			follower.prepareCoalescedResponse(parsedResponse, parseError);
+	}
+	
+	/** Prepares the leader's result as if we had received it ourselves.
+	 * Every follower gets its own copy since subclasses are free to modify the response.
+	 */
+	private void prepareCoalescedResponse(JSONObject res, Exception error) {
+		resetParsedResponse();
+		
+		try {
+			if (error != null) {
+				parseError = error;
+				
+			} else if (res != null) {
+				JSONObject copy = new JSONObject(res.toString());
+				
+				prepareRequestSuccess(copy);
+				parsedResponse = copy;
+			}
+			
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHAPIRequest - prepareCoalescedResponse", PHCrashReport.Urgency.critical);
+		}
+		
+		processedInBackground = true;
+	}
+	
+	/** Delivers the result prepared by {@link #prepareCoalescedResponse} on the UI thread*/
+	private void deliverCoalesced() {
+		if ( ! isFollower) return; // cancelled in the meantime
+		
+		clearCoalescing();
+		requestFinished(null, 200);
+	}
+	
+	private void deliverCoalescedFailure(Exception e) {
+		if ( ! isFollower) return;
+		
+		clearCoalescing();
+		resetParsedResponse();
+		requestFailed(e);
+	}
+	
+	/** Sends a follower over the network after all (the leader was cancelled or couldn't share its result)*/
+	private void resendAlone() {
+		if ( ! isFollower) return;
+		
+		clearCoalescing();
+		resetParsedResponse();
+		send(createConnection());
+	}
+	
+	///////////////////////////////////////////////////////
+	//////////////////// Batching ////////////////////////
+	
+	/** Prepares our part of a {@link PHBatchRequest} response as if we had received it ourselves.
+	 * Called on the batch's background thread.
+	 */
+	void prepareBatchedResponse(JSONObject envelope, int responseCode) {
+		resetParsedResponse();
+		
+		if (responseCode != 200 || envelope == null) 
+			return; // deliverBatched() reports the failure
+		
+		try {
+			prepareInBackground(envelope);
+			
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHAPIRequest - prepareBatchedResponse", PHCrashReport.Urgency.critical);
+		}
+		
+		processedInBackground = true;
+	}
+	
+	/** Sends a request which was already prepared for a {@link PHBatchRequest} on its own after all 
+	 * (with a fresh signature, but without calling {@link #willSend()} again)
+	 */
+	void sendUnbatched() {
+		retryCount = 0;
+		cancelPendingRetry();
+		
+		try {
+			refreshSignature();
+		} catch (Exception e) {
+			PHCrashReport.reportCrash(e, "PHAPIRequest - sendUnbatched", PHCrashReport.Urgency.critical);
+		}
+		
+		send(createConnection());
+	}
+	
+	/** Delivers the result prepared by {@link #prepareBatchedResponse} on the UI thread*/
+	void deliverBatched(int responseCode) {
+		requestFinished(null, responseCode);
+	}
+	
 	///////////////////////////////////////////////////////
 	//////////// Response Handling ///////////////////////
 	
@@ -334,17 +834,43 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 		
 	}
 	
+	/** Override point for subclasses (template pattern) to do any heavy lifting with a successful response.
+	 * Called on the *background* thread just before {@link #handleRequestSuccess(JSONObject)} is called on the main UI thread.
+	 * Subclasses should not touch the UI or call out to delegates from here.
+	 */
+	public void prepareRequestSuccess(JSONObject res) {
+		// pass (nothing to do by default)
+	}
+	
 	/** Processes response. Broken into its own method to make the code more readable (and testable).*/
 	public void processRequestResponse(JSONObject response) {
+		Exception error = getResponseError(response);
+		
+		if (error != null) {
+			requestFailed(error);
+			return;
+		}
+		
+		// if all the above conditions pass, we actually handle the request
+		handleRequestSuccess(getResponseBody(response));
+	}
+	
+	/** Checks the response envelope for an error.
+	 * @return the error or null if the request succeeded
+	 */
+	private Exception getResponseError(JSONObject response) {
 		String errmsg 	  = response.optString("error");
 		JSONObject errobj = response.optJSONObject("errobj");
 		
 		// decide if there is an error
-		if ((! JSONObject.NULL.equals(errobj) && errobj.length() > 0) || (! response.isNull("error") && errmsg.length() > 0)) {		
-			requestFailed(new Exception("Request failed with error: " + errmsg));
-			return;
-		}
+		if ((! JSONObject.NULL.equals(errobj) && errobj.length() > 0) || (! response.isNull("error") && errmsg.length() > 0))		
+			return new Exception("Request failed with error: " + errmsg);
 		
+		return null;
+	}
+	
+	/** Grabs the actual response from the envelope. Never returns null.*/
+	private JSONObject getResponseBody(JSONObject response) {
 		JSONObject res = response.optJSONObject("response");
 		
 		if (JSONObject.NULL.equals(res) || res.equals("") || res.equals("undefined") || res.length() == 0) {
@@ -353,34 +879,185 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 			res = new JSONObject();
 		}
 		
-		// if all the above conditions pass, we actually handle the request
-		handleRequestSuccess(res);
+		return res;
+	}
+	
+	/** Reads only the envelope keys we care about directly from the stream. 
+	 * Anything else is skipped without being parsed into memory.
+	 */
+	private JSONObject readEnvelope(InputStream in) throws IOException, JSONException {
+		PHJSONStreamReader reader = new PHJSONStreamReader(in);
+		JSONObject envelope = new JSONObject();
+		
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			
+			if (name.equals("error") || name.equals("errobj") || name.equals("response"))
+				envelope.put(name, reader.readValue());
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+		
+		return envelope;
+	}
+	
+	/** Decodes the raw response into JSON. The buffer may be read-only so we never touch its backing array.*/
+	private JSONObject parseResponse(ByteBuffer response) throws UnsupportedEncodingException, JSONException {
+		String res_str = UTF8.decode(response.duplicate()).toString();
+		PHStringUtil.log("Unparsed JSON: "+res_str);
+		
+		return new JSONObject(res_str);
 	}
 
 	///////////////////////////////////////////////////////////////
 	/////////////// PHAsyncRequest Delegate Methods ///////////////
 	
+	/** Override point for subclasses. Should the response be decoded straight from the network stream?
+	 * Called on the background thread.
+	 */
+	@Override
+	public boolean shouldStreamResponse() {
+		return PHConfig.streaming_decode;
+	}
+	
+	/** Signs the revalidation of a stale cached response with a fresh nonce, the server rejects a replayed one*/
+	@Override
+	public Uri getRevalidationUri(PHAsyncRequest request) {
+		try {
+			refreshSignature();
+			
+			return Uri.parse(getURL());
+			
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHAPIRequest - getRevalidationUri", PHCrashReport.Urgency.low);
+		}
+		
+		return null;
+	}
+	
+	/** Decodes, validates and prepares the response on the background thread without ever buffering the whole response*/
+	@Override
+	public void processStreamInBackground(InputStream in, int responseCode) throws IOException {
+		resetParsedResponse();
+		
+		try {
+			PHStringUtil.log("Streaming JSON response");
+			
+			prepareInBackground(readEnvelope(in));
+			
+		} catch (JSONException e) {
+			parseError = new JSONException("Could not parse JSON: " + e.getMessage());
+			
+		} catch (IOException e) {
+			throw e; // let PHAsyncRequest report the network failure
+			
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHAPIRequest - processStreamInBackground", PHCrashReport.Urgency.critical);
+		}
+		
+		processedInBackground = true;
+		
+		prepareFollowersInBackground();
+	}
+	
+	/** Decodes, validates and prepares the response on the background thread 
+	 * so that {@link #requestFinished} only has to deliver the result on the UI thread.
+	 */
+	@Override
+	public void processResponseInBackground(ByteBuffer response, int responseCode) {
+		resetParsedResponse();
+		
+		if (responseCode != 200 || response == null) 
+			return; // nothing to parse, requestFinished() handles it
+		
+		try {
+			prepareInBackground(parseResponse(response));
+			
+		} catch (JSONException e) {
+			parseError = new JSONException("Could not parse JSON: " + e.getMessage());
+			
+		} catch (UnsupportedEncodingException e) {
+			PHCrashReport.reportCrash(e, "PHAPIRequest - processResponseInBackground", PHCrashReport.Urgency.low);
+			
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHAPIRequest - processResponseInBackground", PHCrashReport.Urgency.critical);
+		}
+		
+		processedInBackground = true;
+		
+		prepareFollowersInBackground();
+	}
+	
+	private void resetParsedResponse() {
+		processedInBackground = false;
+		parsedResponse 		  = null;
+		parseError 			  = null;
+	}
+	
+	/** Validates the envelope and lets subclasses prepare the response*/
+	private void prepareInBackground(JSONObject json) {
+		parseError = getResponseError(json);
+		
+		if (parseError == null) {
+			JSONObject res = getResponseBody(json);
+			
+			prepareRequestSuccess(res);
+			parsedResponse = res;
+		}
+	}
+	
 	@Override
 	public void requestFinished(ByteBuffer response, int responseCode) {
 		PHStringUtil.log("Received response code: " + responseCode);
 		
 		if(responseCode != 200) {
-			requestFailed(new IOException("Request failed with code: " + responseCode));
+			requestFailed(new PHHttpStatusException(responseCode));
 			return;
 		}
 		
-		if (response == null || response.array() == null) 
-			return;
+		getCircuitBreaker().recordSuccess();
+		
+		// we're back online, send anything we spooled while we weren't
+		PHRequestSpool spool = PHRequestSpool.getSharedSpool();
+		if (spool != null && spool.getPendingCount() > 0) spool.drain();
+		
+		// followers only have a result if we parsed on the background thread
+		boolean followersPrepared 		= (followers != null);
+		List<PHAPIRequest> pending 		= takeFollowers();
 		
-		// parse into json
 		try {
 			
-			String res_str = new String(response.array(), "UTF8");
-			PHStringUtil.log("Unparsed JSON: "+res_str);
+			// already parsed on the background thread? Simply deliver the result.
+			if (processedInBackground) {
+				processedInBackground = false;
+				
+				if (parseError != null)
+					requestFailed(parseError);
+				else if (parsedResponse != null)
+					handleRequestSuccess(parsedResponse);
+				
+				return;
+			}
+			
+			if (response == null) 
+				return;
+			
+			// parse into json (only when not called via PHAsyncRequest)
+			JSONObject json = parseResponse(response);
 			
-			JSONObject json = new JSONObject(res_str);
+			Exception error = getResponseError(json);
+			
+			if (error != null) {
+				requestFailed(error);
+				return;
+			}
 			
-			processRequestResponse(json);
+			JSONObject res = getResponseBody(json);
+			
+			prepareRequestSuccess(res);
+			handleRequestSuccess(res);
 			
 		} catch (UnsupportedEncodingException e) {
 			PHCrashReport.reportCrash(e, "PHAPIRequest - requestFinished", PHCrashReport.Urgency.low);
@@ -391,6 +1068,14 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 			
 		} catch (Exception e) { // swallow all exceptions
 			PHCrashReport.reportCrash(e, "PHAPIRequest - requestFinished", PHCrashReport.Urgency.critical);
+			
+		} finally {
+			for (PHAPIRequest follower : pending) {
+				if (followersPrepared)
+					follower.deliverCoalesced();
+				else
+					follower.resendAlone();
+			}
 		}
 		
 	}
@@ -399,6 +1084,25 @@ public class PHAPIRequest implements PHAsyncRequest.Delegate {
 	public void requestFailed(Exception e) {
 		// PHCrashReport.reportCrash(e, "PHAPIRequest - requestFailed", PHCrashReport.Urgency.low);
 		
+		// network level failures (not bad responses) count against the endpoint and may be retried
+		if (e instanceof IOException && ! (e instanceof PHCircuitOpenException)) {
+			if (e instanceof PHHttpStatusException && ! ((PHHttpStatusException)e).isServerError())
+				getCircuitBreaker().recordSuccess(); // the server is fine, our request isn't
+			else
+				getCircuitBreaker().recordFailure();
+			
+			if (retryLater(e)) return; // followers keep waiting on the retry
+		}
+		
+		// out of retries, keep it on disk until we can reach the server again
+		if (isSpoolable() && PHRequestSpool.isDeliveryFailure(e)) {
+			PHRequestSpool spool = PHRequestSpool.getSharedSpool();
+			if (spool != null) spool.enqueue(this);
+		}
+		
+		for (PHAPIRequest follower : takeFollowers())
+			follower.deliverCoalescedFailure(e);
+		
 		if (delegate != null) delegate.requestFailed(this, e);
 		
 	}
@@ -0,0 +1,146 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * {@link PHTransport} on top of the Apache http client bundled with Android. Connections come from
+ * (and go back to) the shared {@link PHHttpClientPool}. This is the default transport.
+ */
+public class PHApacheTransport implements PHTransport {
+
+	@Override
+	public Response execute(Request request) throws IOException {
+		// the client is lightweight, the sockets come from the shared pool
+		DefaultHttpClient client = PHHttpClientPool.createClient(createParams());
+
+		final HttpUriRequest httpRequest = createRequest(request);
+		
+		client.addRequestInterceptor(new ConnectionInterceptor(request));
+
+		request.setAbortHandler(new Runnable() {
+			@Override
+			public void run() {
+				httpRequest.abort();
+			}
+		});
+
+		HttpResponse httpResponse = client.execute(httpRequest);
+
+		return new ApacheResponse(httpRequest, httpResponse);
+	}
+
+	private static HttpParams createParams() {
+		HttpParams params = PHHttpClientPool.createParams();
+
+		params.setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, true);
+
+		return params;
+	}
+
+	private static HttpUriRequest createRequest(Request request) {
+		HttpUriRequest httpRequest;
+
+		switch (request.getMethod()) {
+			case Post:
+				HttpPost post = new HttpPost(request.getURL());
+
+				if (request.getBody() != null)
+					post.setEntity(new ByteArrayEntity(request.getBody()));
+
+				httpRequest = post;
+				break;
+
+			case Head:
+				httpRequest = new HttpHead(request.getURL());
+				break;
+
+			default:
+				httpRequest = new HttpGet(request.getURL());
+				break;
+		}
+
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+			httpRequest.setHeader(header.getKey(), header.getValue());
+
+		// request parameters take precedence over the (shared) client parameters
+		HttpConnectionParams.setConnectionTimeout(httpRequest.getParams(), request.getConnectTimeout());
+		HttpConnectionParams.setSoTimeout		 (httpRequest.getParams(), request.getReadTimeout());
+		HttpClientParams.setRedirecting			 (httpRequest.getParams(), request.isFollowRedirects());
+
+		return httpRequest;
+	}
+
+	/** Runs once the connection is established (or taken from the pool) and tells the request about it*/
+	private static class ConnectionInterceptor implements HttpRequestInterceptor {
+		private final Request request;
+		
+		public ConnectionInterceptor(Request request) {
+			this.request = request;
+		}
+		
+		@Override
+		public void process(HttpRequest httpRequest, HttpContext context) throws HttpException, IOException {
+			HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			
+			if (connection == null) {
+				request.markConnected(Request.CONNECTION_UNKNOWN);
+				return;
+			}
+			
+			// the metrics count the requests sent over the connection so far
+			request.markConnected(connection.getMetrics().getRequestCount() > 0 
+									? Request.CONNECTION_REUSED 
+									: Request.CONNECTION_NEW);
+		}
+	}
+	
+	/** Releasing or aborting goes through the Apache entity and request so the pool stays consistent*/
+	private static class ApacheResponse extends Response {
+		private final HttpUriRequest request;
+
+		private final HttpEntity entity;
+
+		public ApacheResponse(HttpUriRequest request, HttpResponse response) throws IOException {
+			super(response.getStatusLine().getStatusCode(),
+				  (response.getEntity() != null ? response.getEntity().getContent() : null),
+				  (response.getEntity() != null ? response.getEntity().getContentLength() : -1));
+
+			this.request = request;
+			this.entity  = response.getEntity();
+
+			for (Header header : response.getAllHeaders())
+				addHeader(header.getName(), header.getValue());
+		}
+
+		@Override
+		public void release() throws IOException {
+			if (entity != null) entity.consumeContent();
+		}
+
+		@Override
+		public void abort() {
+			request.abort();
+		}
+	}
+}
@@ -3,36 +3,29 @@ package com.playhaven.src.common;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.client.params.HttpClientParams;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.DefaultRedirectHandler;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.HttpContext;
 
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Base64;
 
+import com.playhaven.src.utils.PHBufferPool;
+import com.playhaven.src.utils.PHCountingInputStream;
 import com.playhaven.src.utils.PHStringUtil;
 
 /**
@@ -48,6 +41,9 @@ import com.playhaven.src.utils.PHStringUtil;
  * always give priority to the PHHttpCon client.
  * 
  * You can also utilize basic http auth using the {@link setUsername} and {@link setPassword}.
+ * 
+ * All requests go through the {@link PHTransport} of the {@link PHHttpConn} (by default the {@link PHApacheTransport},
+ * which draws its connections from the process-wide {@link PHHttpClientPool} so keep-alive connections are reused).
  * @author samuelstewart
  * 
  */
@@ -55,10 +51,22 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 	
 	public static final int INFINITE_REDIRECTS = Integer.MAX_VALUE;
 	
+	/** Default time to establish a connection (ms)*/
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	
+	/** Default time we wait for data before giving up on a stalled connection (ms)*/
+	public static final int DEFAULT_READ_TIMEOUT 	= 20 * 1000;
+	
+	/** Default overall time for a request including redirects and reading the response (ms)*/
+	public static final int DEFAULT_DEADLINE 		= 60 * 1000;
+	
+	/** Disables the deadline or a timeout*/
+	public static final int NO_TIMEOUT 				= 0;
+	
 	public Uri url;
 
 	public enum RequestType {
-		Post, Get, Put, Delete
+		Post, Get, Put, Delete, Head
 	};
 
 	public RequestType request_type;
@@ -67,27 +75,89 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 
 	private int responseCode;
 	
+	private boolean streamedResponse;
+	
+	private boolean compressPostBody;
+	
+	private int connectTimeout 	= DEFAULT_CONNECT_TIMEOUT;
+	
+	private int readTimeout 	= DEFAULT_READ_TIMEOUT;
+	
+	private int deadline 		= DEFAULT_DEADLINE;
+	
+	// set by the watchdog when the deadline passes
+	private volatile boolean deadlineExpired;
+	
+	// writable view on the pooled response buffer (the delegate gets a read-only view)
+	private ByteBuffer pooledBuffer;
+	
+	// counts the response bytes as received and after decompression
+	private PHCountingInputStream wireCounter;
+	
+	private PHCountingInputStream decodedCounter;
+	
+	// optional response cache (GET only)
+	private PHResponseCache responseCache;
+	
+	private String cacheKey;
+	
+	private String cacheEndpoint;
+	
+	private long staleWhileRevalidate;
+	
+	// background revalidations skip the cache lookup and always ask the server
+	private boolean revalidating;
+	
+	private CacheStatus cacheStatus = CacheStatus.None;
+	
+	private Uri requestUri;
+	
+	/** How the response cache was involved in the last response*/
+	public enum CacheStatus {
+		None, 		 // no cache
+		Miss, 		 // full response from the network
+		Hit, 		 // fresh response from the cache, the network wasn't touched
+		Stale, 		 // stale response from the cache, revalidating in the background
+		Revalidated  // the server confirmed our cached response (304)
+	};
+	
+	/** Post bodies smaller than this (in bytes) are never compressed*/
+	public static final int GZIP_POST_THRESHOLD = 1024;
+	
+	/** When only resolving, bodies up to this size (in bytes) are drained so the connection can be reused. Larger ones are cut off.*/
+	public static final int RESOLVE_DRAIN_LIMIT = 4 * 1024;
+	
+	// only interested in where the request ends up, never read the body
+	private boolean resolveOnly;
+	
 	private ArrayList<NameValuePair> postParams = new ArrayList<NameValuePair>();
 	
+	private Hashtable<String, String> headers = new Hashtable<String, String>();
+	
 	private boolean isDownloading;
 		
 	private PHHttpConn client;
 
-	@SuppressWarnings("unused")
 	private String username;
 	
-	@SuppressWarnings("unused")
 	private String password;
 
 	public HttpParams params;
 
-	private long requestStart;
+	private final PHRequestTiming timing = new PHRequestTiming();
+	
+	private String metricsEndpoint = PHNetworkMetrics.OTHER_ENDPOINT;
 	
 	/** Simple class that provides our http connection. We use it to divorce dependencies
 	 * and for unit testing (Dependancy Injection). PHHttpConn supports basic HTTP Auth as well.
+	 * 
+	 * The actual traffic goes through a {@link PHTransport}, PHHttpConn follows (and tracks) the 
+	 * redirects itself so that this works the same on every transport.
 	 */
 	public static class PHHttpConn {
-		protected DefaultHttpClient client;
+		private static PHTransport defaultTransport = new PHApacheTransport();
+		
+		protected PHTransport transport;
 		
 		private int max_redirects = INFINITE_REDIRECTS;
 		
@@ -101,20 +171,7 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		
 		private ArrayList<String> redirectUrls = new ArrayList<String>();
 		
-		private HttpUriRequest cur_request;
-		
-		/** Our custom redirect handler. On some android versions, this doesn't work
-		 * which is why we move our main logic to {@link shouldRedirect} so clients can call
-		 * directly.
-		 * @author samuelstewart
-		 *
-		 */
-		private class PHRedirectHandler extends DefaultRedirectHandler {
-			@Override
-			public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
-				return shouldRedirect(response);
-			}
-		}
+		private volatile PHTransport.Request cur_request;
 		
 		/** We must use this wrapper so that we can utilize different scheme registries.
 		 * when testing.
@@ -127,6 +184,15 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 			}
 		}
 		
+		/** The transport used by all connections created from now on (mostly for testing and benchmarks)*/
+		public static synchronized void setDefaultTransport(PHTransport transport) {
+			defaultTransport = (transport != null ? transport : new PHApacheTransport());
+		}
+		
+		public static synchronized PHTransport getDefaultTransport() {
+			return defaultTransport;
+		}
+		
 		public void setMaxRedirect(int max) {
 			max_redirects = max;
 		}
@@ -137,17 +203,23 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		
 		///////////////////////////
 		public PHHttpConn() {
-			client = new DefaultHttpClient(enableRedirecting(null));
-			//set our hook into the redirect handler
-			client.setRedirectHandler(new PHRedirectHandler());
+			this(getDefaultTransport());
+		}
+		
+		public PHHttpConn(PHTransport transport) {
+			this.transport = transport;
 		}
 		
 		public void setSchemeRegistry(PHSchemeRegistry reg) {
 			this.mSchemeReg = reg;
 		}
 		
-		public DefaultHttpClient getHTTPClient() {
-			return client;
+		public PHTransport getTransport() {
+			return transport;
+		}
+		
+		public void setTransport(PHTransport transport) {
+			this.transport = transport;
 		}
 
 		////////////////////////////////////////
@@ -180,14 +252,12 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		 * @param response the http response from the server
 		 * @return true if we should redirect, false otherwise
 		 */
-		public boolean shouldRedirect(HttpResponse response) {
-			if(isRedirectResponse(response.getStatusLine().getStatusCode())) {
+		public boolean shouldRedirect(PHTransport.Response response) {
+			if(isRedirectResponse(response.getStatusCode())) {
 				// first check to make sure a valid scheme (avoid market:// urls)
-				if (response.getHeaders("Location").length == 0) return false; // not a redirect
-				
-				String redirectURL = response.getHeaders("Location")[0].getValue();
+				String redirectURL = response.getHeader("Location");
 				
-				if (redirectURL == null) return false;
+				if (redirectURL == null) return false; // not a redirect
 				
 				Uri uri = Uri.parse(redirectURL);
 				
@@ -212,17 +282,6 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 			return false;
 		}
 		
-		/** Turn on redirecting using existing parameters or new ones*/
-		private HttpParams enableRedirecting(HttpParams params) {
-			if(params == null)
-				params = new BasicHttpParams();
-
-			params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
-			params.setBooleanParameter(ClientPNames.ALLOW_CIRCULAR_REDIRECTS, true); //force circular redirects...
-			HttpClientParams.setRedirecting(params, true);
-			return params;
-		}
-		
 		public void setUsername(String username) {
 			this.username = username;
 		}
@@ -239,8 +298,8 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 			this.password = password;
 		}
 		
-		/** Wrapper method so that we can mock if necessary*/
-		public HttpResponse start(HttpUriRequest request) throws IOException {
+		/** Sends the request, following the redirects we allow. Wrapper method so that we can mock if necessary.*/
+		public PHTransport.Response start(PHTransport.Request request) throws IOException {
 			cur_request = request;
 
 			totalRedirects = 0;
@@ -254,21 +313,71 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 				request.setHeader("Authorization", authStr);
 			}
 			
-			return client.execute(request);
+			request.setFollowRedirects(false); // we track them ourselves
+			
+			PHTransport.Response response = transport.execute(request);
+			
+			while (shouldRedirect(response)) {
+				response.release(); // redirect bodies are tiny, keep the connection
+				
+				PHTransport.Request next = cur_request.redirect(getLastRedirect());
+				
+				PHTransport.Request previous = cur_request;
+				cur_request = next;
+				
+				// aborted while we were switching over?
+				if (previous.isAborted()) next.abort();
+				
+				response = transport.execute(next);
+			}
+			
+			return response;
 		}
 		
-		public HttpUriRequest getCurrentRequest() {
+		/** The request (or redirect hop) currently on the wire*/
+		public PHTransport.Request getCurrentRequest() {
 			return cur_request;
 		}
 	}
 	
-	/** Delegate interface. All calls will be on the main UI thread */
+	/** Delegate interface. All calls will be on the main UI thread.
+	 * The response buffer is a read-only view on a pooled buffer and is only valid until {@link #requestFinished} returns.
+	 * Copy anything you need to hold onto.
+	 */
 	public static interface Delegate {
 		public void requestFinished(ByteBuffer response, int responseCode);
 
 		public void requestFailed(Exception e);
 				
 	}
+	
+	/** Optional delegate extension for expensive response handling (such as parsing). 
+	 * {@link #processResponseInBackground} is called on the *background* thread once the response
+	 * has been downloaded and always before {@link Delegate#requestFinished} is called on the main UI thread.
+	 * It is not called if the request failed or was cancelled.
+	 */
+	public static interface BackgroundDelegate extends Delegate {
+		public void processResponseInBackground(ByteBuffer response, int responseCode);
+	}
+	
+	/** Optional delegate extension for decoding a successful response directly from the network stream
+	 * instead of buffering it first. If {@link #shouldStreamResponse()} returns true, {@link #processStreamInBackground} is called
+	 * on the background thread *instead* of {@link BackgroundDelegate#processResponseInBackground} and
+	 * {@link Delegate#requestFinished} receives a null buffer.
+	 */
+	public static interface StreamDelegate extends BackgroundDelegate {
+		public boolean shouldStreamResponse();
+		
+		public void processStreamInBackground(InputStream in, int responseCode) throws IOException;
+	}
+	
+	/** Optional delegate extension for requests which can't simply be replayed (such as signed ones).
+	 * {@link #getRevalidationUri} is called on the main UI thread when a stale cached response was served
+	 * and should return the URL to revalidate with (or null to skip the revalidation).
+	 */
+	public static interface RevalidationDelegate extends Delegate {
+		public Uri getRevalidationUri(PHAsyncRequest request);
+	}
 
 	private Delegate delegate;
 
@@ -305,6 +414,15 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		
 	}
 	
+	/** Adds an extra request header*/
+	public void setHeader(String name, String value) {
+		headers.put(name, value);
+	}
+	
+	public Hashtable<String, String> getHeaders() {
+		return headers;
+	}
+	
 	/** Get the final url we arrived at */
 	public String getLastRedirectURL() {
 		return client.getLastRedirect();
@@ -314,10 +432,31 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		return client;
 	}
 	
+	@Override
+	protected void onPreExecute() {
+		timing.reset();
+		timing.markQueued();
+	}
+	
 	/** We only take the first uri, so don't bother passing in more than one. */
 	@Override
 	protected ByteBuffer doInBackground(Uri... urls) {
-		return execRequest(urls);
+		timing.markStarted();
+		
+		ByteBuffer buffer = execRequest(urls);
+		
+		if (lastError == null && !isCancelled() && !streamedResponse && delegate instanceof BackgroundDelegate) {
+			try { // swallow *all* exceptions (safety)
+				((BackgroundDelegate)delegate).processResponseInBackground(buffer, responseCode);
+				timing.markDecoded();
+			} catch (Exception e) {
+				PHCrashReport.reportCrash(e, "PHAsyncRequest - processResponseInBackground", PHCrashReport.Urgency.critical);
+			}
+		}
+		
+		timing.markFinished();
+		
+		return buffer;
 	}
 	
 	/** Moved into supporting method so that we can call ourselves recursively on redirects.*/
@@ -325,13 +464,17 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		ByteBuffer buffer = null;
 		responseCode = -1;
 		lastError = null;
+		pooledBuffer = null;
+		streamedResponse = false;
+		wireCounter = null;
+		decodedCounter = null;
+		deadlineExpired = false;
+		cacheStatus = CacheStatus.None;
 		
 		synchronized (this) {
 		try { // this block swallows *all* worst case exceptions
 			isDownloading = true;
 			
-			requestStart = System.currentTimeMillis();
-			
 			client.clearRedirects();
 			
 			if (urls.length > 0) {
@@ -341,34 +484,73 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 				if(!url.equals(this.url) && this.url != null)
 					url = this.url;
 				
-				HttpResponse response = null;
+				requestUri = url;
+				
+				PHResponseCache.Entry cached = null;
+				
+				if (isCaching()) {
+					cached = responseCache.get(cacheKey);
+					long now = System.currentTimeMillis();
+					
+					if (cached != null && ! revalidating && cached.isFresh(now)) {
+						responseCache.recordHit(cacheEndpoint);
+						return serveCached(cached, CacheStatus.Hit);
+					}
+					
+					if (cached != null && ! revalidating && cached.isUsableWhileRevalidating(now, staleWhileRevalidate)) {
+						// onPostExecute kicks off the revalidation
+						responseCache.recordStaleHit(cacheEndpoint);
+						return serveCached(cached, CacheStatus.Stale);
+					}
+				}
+				
+				PHTransport.Response response = null;
+				ScheduledFuture<?> watchdog = null;
 				try {
 					if (isCancelled()) return null;
 					
-					// convert to java.net.uri (b/c we already have escaped the url and Http*** will encode it again.
+					// we already have escaped the url so pass it on as is
 					String net_uri = url.toString();
 					
-					// decide what time of connection this is
-					if (request_type == RequestType.Post) {
-						HttpPost request = new HttpPost(net_uri);
-						// set the post fields..
-						request.setEntity(new UrlEncodedFormEntity(postParams));
-
-						response = client.start(request);
-
-					} else if (request_type == RequestType.Get) {
-						HttpGet request = new HttpGet(net_uri);
-						response = client.start(request);
-					} else {
-						HttpGet request = new HttpGet(net_uri);
-						response = client.start(request);
+					// decide what type of connection this is (Put and Delete are sent as Get)
+					RequestType method = (request_type == RequestType.Post || request_type == RequestType.Head 
+											? request_type 
+											: RequestType.Get);
+					
+					PHTransport.Request request = new PHTransport.Request(net_uri, method);
+					
+					// set the post fields..
+					if (method == RequestType.Post)
+						setPostBody(request);
+					
+					for (Map.Entry<String, String> header : headers.entrySet())
+						request.setHeader(header.getKey(), header.getValue());
+					
+					// we can always handle compressed responses
+					request.setHeader("Accept-Encoding", "gzip");
+					
+					if (cached != null) {
+						if (cached.etag != null) 		 request.setHeader("If-None-Match", cached.etag);
+						if (cached.lastModified != null) request.setHeader("If-Modified-Since", cached.lastModified);
 					}
-
-					// try to grab http response entity (maybe json or image?)
-					HttpEntity entity = response.getEntity();
+					
+					request.setConnectTimeout(connectTimeout);
+					request.setReadTimeout	 (readTimeout);
+					
+					// the deadline spans all redirects and reading the response
+					watchdog = scheduleDeadline();
+					
+					if (isCancelled()) return null; // last chance before we hit the network
+					
+					timing.markSent();
+					
+					response = client.start(request);
+					
+					timing.markConnected(request);
+					timing.markFirstByte();
 					
 					// grab the response code
-					responseCode = response.getStatusLine().getStatusCode();
+					responseCode = response.getStatusCode();
 					
 					// Note: if the response code is a redirect, we should clamp it to a 200
 					// since we often stop redirecting (such as when we find a market:// url).
@@ -376,18 +558,72 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 					if (responseCode == 302 && getLastRedirectURL() != null)
 						responseCode = 200;
 					
-					if (isCancelled()) return null;
+					if (isCancelled()) {
+						abortConnection();
+						return null;
+					}
+					
+					if (resolveOnly) {
+						releaseUnread(response);
+						return null;
+					}
+					
+					if (responseCode == 304 && cached != null) {
+						// still good, release the connection and serve what we have
+						response.release();
+						
+						cached = cached.revalidated(response, System.currentTimeMillis());
+						responseCache.put(cacheKey, cached);
+						responseCache.recordRevalidation(cacheEndpoint);
+						
+						return serveCached(cached, CacheStatus.Revalidated);
+					}
 					
-					if (entity != null) {
-						InputStream in_stream = entity.getContent();
+					// try to grab http response body (maybe json or image?)
+					if (response.getContent() != null) {
+						InputStream in_stream = decodeContent(response);
 
-						buffer = readStream(in_stream);
+						try {
+							if (shouldStream(response)) {
+								// decode straight from the network, no buffering
+								streamedResponse = true;
+								
+								if (isCaching()) dropCachedResponse();
+								
+								((StreamDelegate)delegate).processStreamInBackground(in_stream, responseCode);
+								timing.markDownloaded();
+							} else {
+								// only trust the length as a size hint if the content isn't compressed
+								long lengthHint = (decodedCounter == wireCounter ? response.getContentLength() : -1);
+								
+								pooledBuffer = readStream(in_stream, lengthHint);
+								buffer 		 = pooledBuffer.asReadOnlyBuffer();
+								
+								timing.markDownloaded();
+								
+								if (isCaching() && responseCode == 200)
+									storeResponse(response);
+							}
+						} catch (IOException e) {
+							// don't hand a half read connection back to the pool
+							abortConnection();
+							throw e;
+						}
 
+						// closing the stream returns the connection to the shared pool
 						in_stream.close();
 					}
 
 				} catch (IOException e) {
-					lastError = e;
+					if (deadlineExpired)
+						lastError = new PHTimeoutException("Request exceeded its deadline of " + deadline + " ms");
+					else if (e instanceof InterruptedIOException) // socket and connect timeouts
+						lastError = new PHTimeoutException("Request timed out: " + e.getMessage());
+					else
+						lastError = e;
+					
+				} finally {
+					if (watchdog != null) watchdog.cancel(false);
 				}
 			}
 		} catch (Exception e) {
@@ -402,13 +638,20 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 	protected void onPostExecute(ByteBuffer result) {
 		super.onPostExecute(result);
 		
+		timing.markDelivered();
+		
 		try { // swallow *all* exceptions (safety)
 			isDownloading = false;
 			
-			long elapsedTimeMillis = System.currentTimeMillis() - requestStart;
-			String outTime = "PHAsyncRequest elapsed time (ms) = " + elapsedTimeMillis;
+			PHNetworkMetrics.record(metricsEndpoint, timing, lastError != null);
+			
+			long elapsedTimeMillis = timing.getDuration(PHNetworkMetrics.Phase.Total) / 1000;
+			String outTime = "PHAsyncRequest elapsed time (ms) = " + elapsedTimeMillis + " (" + timing + ")";
 			PHStringUtil.log(outTime);
 			
+			if (getCompressedBytes() != getDecompressedBytes())
+				PHStringUtil.log("PHAsyncRequest received " + getCompressedBytes() + " compressed bytes (" + getDecompressedBytes() + " decompressed)");
+			
 			if(lastError != null && delegate != null)
 				delegate.requestFailed(lastError);
 			else if (delegate != null)
@@ -418,6 +661,16 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 			PHCrashReport.reportCrash(e, "PHAsyncRequest - onPostExecute", PHCrashReport.Urgency.critical);
 		}
 		
+		if (cacheStatus == CacheStatus.Stale)
+			revalidateInBackground();
+		
+		// the delegate is done with the response, recycle the buffer.
+		// Note: we never recycle when cancelled since the background thread may still be reading into it.
+		if (pooledBuffer != null) {
+			PHBufferPool.release(pooledBuffer.array());
+			pooledBuffer = null;
+		}
+		
 	}
 	
 	public void setUsername(String username) {
@@ -446,6 +699,105 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 		this.client = client;
 	}
 	
+	/** Time to establish a connection (ms). Use {@link #NO_TIMEOUT} to wait forever.*/
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/** Time to wait for data on a stalled connection (ms). Use {@link #NO_TIMEOUT} to wait forever.*/
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	
+	/** Overall time for the request including redirects and reading the response (ms). 
+	 * Use {@link #NO_TIMEOUT} to disable.
+	 */
+	public void setDeadline(int deadline) {
+		this.deadline = deadline;
+	}
+	
+	public int getDeadline() {
+		return deadline;
+	}
+	
+	/** Only follow the redirects and never read the final response body. The delegate
+	 * receives a null buffer and should use {@link #getLastRedirectURL()}.
+	 */
+	public void setResolveOnly(boolean resolveOnly) {
+		this.resolveOnly = resolveOnly;
+	}
+	
+	public boolean isResolveOnly() {
+		return resolveOnly;
+	}
+	
+	/** Enables the response cache for this (GET) request.
+	 * @param cache the cache or null to disable caching
+	 * @param key identifies the response in the cache
+	 * @param endpoint the endpoint the statistics are recorded under
+	 */
+	public void setResponseCache(PHResponseCache cache, String key, String endpoint) {
+		this.responseCache = cache;
+		this.cacheKey 	   = key;
+		this.cacheEndpoint = endpoint;
+	}
+	
+	/** How long (ms) past its freshness a cached response may be served while it is revalidated in the background, 
+	 * unless the server says otherwise. Defaults to 0.
+	 */
+	public void setStaleWhileRevalidate(long staleWhileRevalidate) {
+		this.staleWhileRevalidate = staleWhileRevalidate;
+	}
+	
+	public long getStaleWhileRevalidate() {
+		return staleWhileRevalidate;
+	}
+	
+	public CacheStatus getCacheStatus() {
+		return cacheStatus;
+	}
+	
+	/** Enables gzip compression of large post bodies. Only use if the endpoint accepts compressed bodies.*/
+	public void setCompressPostBody(boolean compress) {
+		this.compressPostBody = compress;
+	}
+	
+	public boolean getCompressPostBody() {
+		return compressPostBody;
+	}
+	
+	/** The milestones of the last execution. Complete once the delegate has been called.*/
+	public PHRequestTiming getTiming() {
+		return timing;
+	}
+	
+	/** Groups the request in the {@link PHNetworkMetrics} (such as "/v3/publisher/open/"), {@link PHNetworkMetrics#OTHER_ENDPOINT} by default*/
+	public void setMetricsEndpoint(String endpoint) {
+		this.metricsEndpoint = (endpoint != null ? endpoint : PHNetworkMetrics.OTHER_ENDPOINT);
+	}
+	
+	public String getMetricsEndpoint() {
+		return metricsEndpoint;
+	}
+	
+	/** Number of response body bytes actually received over the network (compressed if gzipped)*/
+	public long getCompressedBytes() {
+		return (wireCounter != null ? wireCounter.getCount() : 0);
+	}
+	
+	/** Number of response body bytes after decompression*/
+	public long getDecompressedBytes() {
+		return (decodedCounter != null ? decodedCounter.getCount() : 0);
+	}
+	
 	public boolean isDownloading() {
 		return isDownloading;
 	}
@@ -457,24 +809,212 @@ public class PHAsyncRequest extends AsyncTask<Uri, Integer, ByteBuffer> {
 	}
 	
 
-	/** public, static utility method for converting input stream to ByteBuffer */
-	private static ByteBuffer readStream(InputStream inputStream) throws IOException {
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-		int bufferSize = 1024;
-		byte[] buffer = new byte[bufferSize];
-
-		int len = 0;
-		while ((len = inputStream.read(buffer)) != -1) {
+	/** Aborts the request once the deadline passes (if we have one)*/
+	private ScheduledFuture<?> scheduleDeadline() {
+		if (deadline <= NO_TIMEOUT) return null;
+		
+		return PHNetworkExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				deadlineExpired = true;
+				abortConnection();
+			}
+		}, deadline);
+	}
+	
+	/** Actually cancels the request. Unlike {@link #cancel(boolean)} this also aborts the underlying 
+	 * http request (which would otherwise block until it finishes) and releases its pooled connection.
+	 * Safe to call from any thread.
+	 */
+	public void abort() {
+		cancel(true);
+		abortConnection();
+	}
+	
+	/** Wraps the response content so that we transparently decompress and count the bytes.*/
+	private InputStream decodeContent(PHTransport.Response response) throws IOException {
+		wireCounter 	= new PHCountingInputStream(response.getContent());
+		decodedCounter 	= wireCounter;
+		
+		String encoding = response.getContentEncoding();
+		
+		if (encoding != null && encoding.equalsIgnoreCase("gzip"))
+			decodedCounter = new PHCountingInputStream(new GZIPInputStream(wireCounter));
+		
+		return decodedCounter;
+	}
+	
+	/** Form encodes the post parameters as the request body, gzipping it if enabled and large enough to be worth it*/
+	private void setPostBody(PHTransport.Request request) throws IOException {
+		UrlEncodedFormEntity form = new UrlEncodedFormEntity(postParams);
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		form.writeTo(body);
+		
+		request.setHeader("Content-Type", form.getContentType().getValue());
+		
+		if ( ! compressPostBody || body.size() < GZIP_POST_THRESHOLD) {
+			request.setBody(body.toByteArray());
+			return;
+		}
+		
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		body.writeTo(gzip);
+		gzip.close();
+		
+		request.setHeader("Content-Encoding", "gzip");
+		request.setBody(compressed.toByteArray());
+		
+		PHStringUtil.log("Compressed post body from " + body.size() + " to " + compressed.size() + " bytes");
+	}
+	
+	private boolean isCaching() {
+		return (responseCache != null && cacheKey != null && request_type == RequestType.Get);
+	}
+	
+	/** Hands out the cached body. It isn't pooled, so there is nothing to release.*/
+	private ByteBuffer serveCached(PHResponseCache.Entry entry, CacheStatus status) {
+		cacheStatus  = status;
+		responseCode = 200;
+		
+		timing.markCached();
+		timing.markDownloaded();
+		
+		return ByteBuffer.wrap(entry.body).asReadOnlyBuffer();
+	}
+	
+	/** Stores a copy of the fresh response if the server allows it*/
+	private void storeResponse(PHTransport.Response response) {
+		cacheStatus = CacheStatus.Miss;
+		responseCache.recordMiss(cacheEndpoint);
+		
+		byte[] body = new byte[pooledBuffer.limit()];
+		System.arraycopy(pooledBuffer.array(), 0, body, 0, body.length);
+		
+		PHResponseCache.Entry entry = PHResponseCache.Entry.fromResponse(response, body, System.currentTimeMillis());
+		
+		if (entry != null)
+			responseCache.put(cacheKey, entry);
+		else
+			responseCache.remove(cacheKey);
+	}
+	
+	/** The fresh response can't be stored, so whatever we had cached is out of date*/
+	private void dropCachedResponse() {
+		cacheStatus = CacheStatus.Miss;
+		responseCache.recordMiss(cacheEndpoint);
+		
+		responseCache.remove(cacheKey);
+	}
+	
+	/** We served a stale response so quietly fetch a fresh one (or a 304) for next time. 
+	 * The delegate only gets to supply the URL (see {@link RevalidationDelegate}), it never sees the result.
+	 */
+	private void revalidateInBackground() {
+		Uri uri = requestUri;
+		
+		if (delegate instanceof RevalidationDelegate)
+			uri = ((RevalidationDelegate)delegate).getRevalidationUri(this);
+		
+		if (uri == null) return;
+		
+		PHAsyncRequest revalidation = new PHAsyncRequest(null);
+		
+		revalidation.request_type = request_type;
+		revalidation.url 		  = uri;
+		revalidation.revalidating = true; // otherwise it would just serve the stale entry again
+		
+		revalidation.setUsername	   (username);
+		revalidation.setPassword	   (password);
+		revalidation.setConnectTimeout (connectTimeout);
+		revalidation.setReadTimeout	   (readTimeout);
+		revalidation.setDeadline	   (deadline);
+		revalidation.setResponseCache  (responseCache, cacheKey, cacheEndpoint);
+		revalidation.setMetricsEndpoint(metricsEndpoint);
+		
+		PHStringUtil.log("Revalidating stale response for: " + cacheEndpoint);
+		
+		PHNetworkExecutor.execute(revalidation, PHNetworkExecutor.Priority.Precache, uri);
+	}
+	
+	/** Should we hand the raw stream of a successful response to the delegate? 
+	 * Responses the cache would keep are buffered instead, we need the body to store it.
+	 */
+	private boolean shouldStream(PHTransport.Response response) {
+		return (responseCode == 200 && 
+				delegate instanceof StreamDelegate && 
+				((StreamDelegate)delegate).shouldStreamResponse() &&
+				! (isCaching() && PHResponseCache.Entry.isStorable(response)));
+	}
+	
+	/** Gets rid of a response body we don't want. Small bodies are drained so the 
+	 * connection goes back to the pool, anything else (or of unknown length) closes the connection.
+	 */
+	private void releaseUnread(PHTransport.Response response) throws IOException {
+		if (response.getContent() == null) return;
+		
+		long length = response.getContentLength();
+		
+		if (length >= 0 && length <= RESOLVE_DRAIN_LIMIT)
+			response.release();
+		else
+			abortConnection();
+	}
+	
+	/** Aborts the current request so that its pooled connection is closed
+	 * instead of being handed back to the pool in an unknown state.
+	 */
+	private void abortConnection() {
+		try {
+			PHTransport.Request request = client.getCurrentRequest();
+			if (request != null) request.abort();
 			
-			output.write(buffer, 0, len);
+		} catch (Exception e) {
+			// pass (connection is closed anyway)
 		}
-
-		output.flush();
-		return ByteBuffer.wrap(output.toByteArray());
+	}
+	
+	/** Reads the stream into a pooled buffer presized from the length hint (if any). The presize is capped at
+	 * {@link PHBufferPool#MAX_BUFFER_SIZE} so a bogus Content-Length can't make us allocate up front, larger
+	 * responses grow the buffer as the data actually arrives. The returned buffer wraps the pooled array and its limit marks the end of the data.
+	 * The caller is responsible for handing the array back to the {@link PHBufferPool}.
+	 */
+	private static ByteBuffer readStream(InputStream inputStream, long lengthHint) throws IOException {
+		int size = (lengthHint > 0 ? (int)Math.min(lengthHint, PHBufferPool.MAX_BUFFER_SIZE) : PHBufferPool.MIN_BUFFER_SIZE);
+		byte[] buffer = PHBufferPool.acquire(size);
+		
+		int total = 0;
+		while (true) {
+			if (total == buffer.length) {
+				// full? Check for the end of the stream before growing (the length hint is usually exact)
+				int next = inputStream.read();
+				if (next == -1) break;
+				
+				byte[] larger = PHBufferPool.acquire(buffer.length * 2);
+				System.arraycopy(buffer, 0, larger, 0, total);
+				PHBufferPool.release(buffer);
+				
+				buffer = larger;
+				buffer[total++] = (byte)next;
+			}
+			
+			int len = inputStream.read(buffer, total, buffer.length - total);
+			if (len == -1) break;
+			
+			total += len;
+		}
+		
+		return ByteBuffer.wrap(buffer, 0, total);
 	}
 	
 	public static String streamToString(InputStream inputStream) throws IOException, UnsupportedEncodingException {
-		return new String(readStream(inputStream).array(), "UTF-8");
+		ByteBuffer buffer = readStream(inputStream, -1);
+		
+		try {
+			return new String(buffer.array(), 0, buffer.limit(), "UTF-8");
+		} finally {
+			PHBufferPool.release(buffer.array());
+		}
 	}
 }
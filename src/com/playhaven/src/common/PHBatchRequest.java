@@ -0,0 +1,283 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Packs several {@link PHAPIRequest}s into a single POST so that a session start (open, badge metadata,
+ * IAP tracking...) costs one round-trip instead of one per request. Every request keeps its own parameters
+ * (and signature) and gets its own result through its usual {@link PHAPIRequest#handleRequestSuccess}
+ * or {@link PHAPIRequest#requestFailed}.
+ *
+ * The batch contract: the requests are posted as the <code>requests</code> parameter
+ * <pre>
+ * [{"id":"0","method":"GET","path":"/v3/publisher/open/","params":{...signed...},"post":{...}}, ...]
+ * </pre>
+ * and the server answers with the usual envelope around one envelope per request
+ * <pre>
+ * {"response":{"responses":[{"id":"0","code":200,"body":{"response":{...},"error":null}}, ...]}, "error":null}
+ * </pre>
+ * Requests missing from the response, requests which are not {@link PHAPIRequest#isBatchable() batchable} and
+ * all requests of a batch which failed as a whole are simply sent on their own.
+ */
+public class PHBatchRequest extends PHAPIRequest {
+
+	public static final String BATCH_SLUG 		= "/v3/publisher/batch/";
+
+	public static final String REQUESTS_PARAM 	= "requests";
+
+	private final ArrayList<PHAPIRequest> requests = new ArrayList<PHAPIRequest>();
+
+	// the requests we actually packed (written on the UI thread before the batch goes out)
+	private ArrayList<PHAPIRequest> batched = new ArrayList<PHAPIRequest>();
+
+	// response code for each batched request (written on the background thread), 0 if missing
+	private int[] responseCodes;
+
+	private String requestsJSON;
+
+	public PHBatchRequest(Context context) {
+		super(context);
+	}
+
+	/** Adds a request to the batch. Must be called before {@link #send()}.*/
+	public void add(PHAPIRequest request) {
+		requests.add(request);
+	}
+
+	public List<PHAPIRequest> getRequests() {
+		return requests;
+	}
+
+	@Override
+	public void send() {
+		batched 	 = new ArrayList<PHAPIRequest>();
+		requestsJSON = null;
+
+		ArrayList<PHAPIRequest> alone = new ArrayList<PHAPIRequest>();
+
+		for (PHAPIRequest request : requests)
+			(request.isBatchable() ? batched : alone).add(request);
+
+		for (PHAPIRequest request : alone)
+			request.send();
+
+		if (batched.size() == 0) return;
+
+		if (batched.size() == 1) { // not worth the envelope
+			batched.get(0).send();
+			return;
+		}
+
+		try {
+			JSONArray descriptors = new JSONArray();
+
+			for (int i = 0; i < batched.size(); i++) {
+				PHAPIRequest request = batched.get(i);
+
+				request.willSend();
+				descriptors.put(describe(String.valueOf(i), request));
+			}
+
+			requestsJSON = descriptors.toString();
+
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHBatchRequest - send", PHCrashReport.Urgency.critical);
+
+			sendUnbatched(batched);
+			return;
+		}
+
+		super.send();
+	}
+
+	@Override
+	public void cancel() {
+		super.cancel();
+
+		for (PHAPIRequest request : requests)
+			request.cancel();
+	}
+
+	/** Describes a single request for the batch contract*/
+	private static JSONObject describe(String id, PHAPIRequest request) throws Exception {
+		JSONObject descriptor = new JSONObject();
+
+		descriptor.put("id", 	 id);
+		descriptor.put("method", request.getRequestType() == PHAsyncRequest.RequestType.Post ? "POST" : "GET");
+		descriptor.put("path", 	 Uri.parse(request.baseURL()).getPath());
+		descriptor.put("params", new JSONObject(request.getSignedParams()));
+
+		Hashtable<String, String> post = request.getPostParams();
+		if (request.getRequestType() == PHAsyncRequest.RequestType.Post && post != null)
+			descriptor.put("post", new JSONObject(post));
+
+		return descriptor;
+	}
+
+	/** Sends requests we already prepared on their own after all*/
+	private static void sendUnbatched(List<PHAPIRequest> requests) {
+		for (PHAPIRequest request : requests)
+			request.sendUnbatched();
+	}
+
+	//////////////////////////////////////////////////
+	/////////// PHAPIRequest Override Methods ////////
+
+	@Override
+	public String baseURL() {
+		return super.createAPIURL(BATCH_SLUG);
+	}
+
+	@Override
+	public PHAsyncRequest.RequestType getRequestType() {
+		return PHAsyncRequest.RequestType.Post;
+	}
+
+	@Override
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Open; // usually carries the open request
+	}
+
+	@Override
+	public Hashtable<String, String> getPostParams() {
+		Hashtable<String, String> params = new Hashtable<String, String>();
+		params.put(REQUESTS_PARAM, requestsJSON);
+
+		return params;
+	}
+
+	@Override
+	public boolean shouldCompressPostBody() {
+		return true; // lots of repeated parameter names
+	}
+
+	@Override
+	public boolean shouldStreamResponse() {
+		return false; // we need the whole response to split it up
+	}
+
+	@Override
+	public boolean isBatchable() {
+		return false;
+	}
+
+	@Override
+	public PHRetryPolicy getRetryPolicy() {
+		return PHRetryPolicy.NONE; // the requests retry on their own once we give up
+	}
+
+	/** Splits the response up and lets every request prepare its part (on the background thread)*/
+	@Override
+	public void prepareRequestSuccess(JSONObject res) {
+		int[] codes = new int[batched.size()];
+
+		JSONArray responses = res.optJSONArray("responses");
+
+		for (int i = 0; responses != null && i < responses.length(); i++) {
+			JSONObject response = responses.optJSONObject(i);
+			if (response == null) continue;
+
+			int index = indexOf(response.optString("id"));
+			JSONObject body = response.optJSONObject("body");
+			int code = response.optInt("code", 200);
+
+			if (index < 0 || (code == 200 && body == null)) continue; // treated as missing
+
+			codes[index] = code;
+			batched.get(index).prepareBatchedResponse(body, code);
+		}
+
+		responseCodes = codes;
+	}
+
+	private int indexOf(String id) {
+		try {
+			int index = Integer.parseInt(id);
+
+			return (index >= 0 && index < batched.size() ? index : -1);
+
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** The batch failed as a whole: every request gets its own chance (on the UI thread)*/
+	@Override
+	public void requestFailed(Exception e) {
+		PHStringUtil.log("Batch failed, sending requests on their own: " + e.getMessage());
+
+		sendUnbatched(batched);
+
+		super.requestFailed(e);
+	}
+
+	/** Hands every request its result (on the UI thread)*/
+	@Override
+	public void handleRequestSuccess(JSONObject res) {
+		int[] codes = responseCodes;
+		responseCodes = null;
+
+		if (codes == null) { // parsed on the UI thread, prepare now
+			prepareRequestSuccess(res);
+			codes = responseCodes;
+			responseCodes = null;
+		}
+
+		ArrayList<PHAPIRequest> missing = new ArrayList<PHAPIRequest>();
+
+		for (int i = 0; i < batched.size(); i++) {
+			PHAPIRequest request = batched.get(i);
+
+			if (codes[i] == 0) {
+				missing.add(request);
+				continue;
+			}
+
+			try {
+				request.deliverBatched(codes[i]);
+
+			} catch (Exception e) { // swallow all exceptions
+				PHCrashReport.reportCrash(e, "PHBatchRequest - handleRequestSuccess", PHCrashReport.Urgency.critical);
+			}
+		}
+
+		if (missing.size() > 0)
+			PHStringUtil.log("Batch response missing " + missing.size() + " requests, sending them on their own");
+
+		sendUnbatched(missing);
+	}
+
+	/** Builds a response entry for the batch contract (used by stub servers)*/
+	public static JSONObject createResponseEntry(String id, int code, JSONObject body) throws JSONException {
+		JSONObject entry = new JSONObject();
+
+		entry.put("id",   id);
+		entry.put("code", code);
+
+		if (body != null) entry.put("body", body);
+
+		return entry;
+	}
+
+	/** Parses the <code>requests</code> parameter of a batch (used by stub servers)*/
+	public static List<JSONObject> parseRequests(String requestsParam) throws JSONException {
+		JSONArray array = new JSONArray(requestsParam);
+		ArrayList<JSONObject> descriptors = new ArrayList<JSONObject>(array.length());
+
+		for (int i = 0; i < array.length(); i++)
+			descriptors.add(array.getJSONObject(i));
+
+		return descriptors;
+	}
+}
@@ -0,0 +1,148 @@
+package com.playhaven.src.common;
+
+import java.util.HashMap;
+
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Per endpoint circuit breaker. Once an endpoint fails {@link #FAILURE_THRESHOLD} times in a row
+ * the circuit "opens" and we fail requests to it immediately (with a {@link PHCircuitOpenException})
+ * instead of adding to the load on a struggling server. After a cool down a single trial request is let
+ * through ("half open"): if it succeeds the circuit closes again, if not the cool down doubles (up to
+ * {@link #MAX_OPEN_DURATION}).
+ *
+ * Only failures which are the server's fault count (see {@link PHAPIRequest#requestFailed}).
+ */
+public class PHCircuitBreaker {
+
+	/** Consecutive failures before the circuit opens*/
+	public static final int FAILURE_THRESHOLD 	 = 5;
+
+	/** Initial cool down (ms) before we try the endpoint again*/
+	public static final long OPEN_DURATION 		 = 30 * 1000;
+
+	public static final long MAX_OPEN_DURATION 	 = 5 * 60 * 1000;
+
+	public static enum State {
+		Closed,   // all good, requests go through
+		Open, 	  // failing fast
+		HalfOpen  // letting a single trial request through
+	}
+
+	private static final HashMap<String, PHCircuitBreaker> breakers = new HashMap<String, PHCircuitBreaker>();
+
+	private static PHClock clock = PHClock.SYSTEM;
+
+	private final String endpoint;
+
+	private State state 			= State.Closed;
+
+	private int consecutiveFailures = 0;
+
+	private long openDuration 		= OPEN_DURATION;
+
+	// when we opened (or started the trial while half open)
+	private long stateChanged;
+
+	private long rejectedCount;
+
+	/** Gets the breaker for the given endpoint (such as "/v3/publisher/open/")*/
+	public static PHCircuitBreaker forEndpoint(String endpoint) {
+		synchronized (breakers) {
+			PHCircuitBreaker breaker = breakers.get(endpoint);
+
+			if (breaker == null) {
+				breaker = new PHCircuitBreaker(endpoint);
+				breakers.put(endpoint, breaker);
+			}
+
+			return breaker;
+		}
+	}
+
+	/** Forgets about all endpoints (mostly for testing)*/
+	public static void resetAll() {
+		synchronized (breakers) {
+			breakers.clear();
+		}
+	}
+
+	/** Only meant for testing*/
+	public static synchronized void setClock(PHClock newClock) {
+		clock = (newClock != null ? newClock : PHClock.SYSTEM);
+	}
+
+	private static synchronized long now() {
+		return clock.currentTimeMillis();
+	}
+
+	public PHCircuitBreaker(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/** Should we send a request to the endpoint? Call once per attempt.*/
+	public synchronized boolean allowRequest() {
+		long now = now();
+
+		switch (state) {
+			case Open:
+				if (now - stateChanged < openDuration) break;
+
+				// cooled down, let one trial through
+				state 		 = State.HalfOpen;
+				stateChanged = now;
+				return true;
+
+			case HalfOpen:
+				// the trial never reported back (cancelled?), so allow another
+				if (now - stateChanged < openDuration) break;
+
+				stateChanged = now;
+				return true;
+
+			default:
+				return true;
+		}
+
+		rejectedCount++;
+		return false;
+	}
+
+	public synchronized void recordSuccess() {
+		state 				= State.Closed;
+		consecutiveFailures = 0;
+		openDuration 		= OPEN_DURATION;
+	}
+
+	public synchronized void recordFailure() {
+		if (state == State.HalfOpen) {
+			// still broken, back off further
+			openDuration = Math.min(openDuration * 2, MAX_OPEN_DURATION);
+			open();
+			return;
+		}
+
+		if (++consecutiveFailures >= FAILURE_THRESHOLD && state == State.Closed)
+			open();
+	}
+
+	private void open() {
+		PHStringUtil.log("Circuit opened for " + endpoint + " for " + openDuration + " ms");
+
+		state 		 = State.Open;
+		stateChanged = now();
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/** Number of requests we failed fast*/
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+}
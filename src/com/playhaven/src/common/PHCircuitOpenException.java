@@ -0,0 +1,15 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+
+/**
+ * Passed to {@link PHAPIRequest.Delegate#requestFailed} when we didn't even try the request
+ * because its endpoint has been failing (see {@link PHCircuitBreaker}).
+ */
+public class PHCircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public PHCircuitOpenException(String message) {
+		super(message);
+	}
+}
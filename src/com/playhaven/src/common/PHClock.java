@@ -0,0 +1,37 @@
+package com.playhaven.src.common;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/** Source of the current time. Anything which makes time based decisions (backoff, circuit breakers)
+ * takes a clock so that tests can control time instead of sleeping. The clock also schedules the delayed
+ * work (such as retries) so that a test clock can run it when it moves time forward.
+ */
+public class PHClock {
+	
+	/** The real (wall clock) time*/
+	public static final PHClock SYSTEM = new PHClock();
+	
+	private Handler mainHandler;
+	
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+	/** Runs the runnable on the main UI thread once the delay (ms) has passed*/
+	public void postDelayed(Runnable runnable, long delay) {
+		getMainHandler().postDelayed(runnable, delay);
+	}
+	
+	/** Drops the runnable if it hasn't run yet*/
+	public void removeCallbacks(Runnable runnable) {
+		getMainHandler().removeCallbacks(runnable);
+	}
+	
+	private synchronized Handler getMainHandler() {
+		if (mainHandler == null)
+			mainHandler = new Handler(Looper.getMainLooper());
+		
+		return mainHandler;
+	}
+}
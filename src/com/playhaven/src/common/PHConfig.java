@@ -1,28 +1,17 @@
 package com.playhaven.src.common;
 
-import java.lang.reflect.Field;
-import java.util.Iterator;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.res.Configuration;
 import android.graphics.Rect;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
-import android.os.Build;
-import android.provider.Settings.System;
-import android.util.DisplayMetrics;
 
 /** 
  * Lightweight class for managing configuration details of the SDK. 
  * You should call {@link PHConfig#cacheDeviceInfo} to cache information about the device from a given context. 
  * We do *not* want to hold onto the context as this creates all sorts of leaks and null-pointer badness.
- * To ensure the content is up-to-date, you should call this before
- * every content request. We avoid getters and setters to keep things lightweight. 
+ * The SDK keeps the device fields up to date itself (see {@link PHDeviceSnapshot}), they are only
+ * a copy of the current snapshot. We avoid getters and setters to keep things lightweight. 
  * 
  * Note: We refactored the version out so the build scripts could update it without influencing the rest of the application.
  * */
@@ -79,6 +68,9 @@ public class PHConfig {
 	
 	public static boolean precache 			   = true;
 	
+	// decode API responses straight from the network stream (see PHAPIRequest)
+	public static boolean streaming_decode	   = true;
+	
 	public static boolean runningTests		   = false;
 	
 	public static String environment = "prod";
@@ -93,47 +85,14 @@ public class PHConfig {
 	
 	
 	/** Caches the live device info but anything in JSON_CONFIG
-	 * overrides it.
+	 * overrides it. Captures a new {@link PHDeviceSnapshot} (which also updates the fields here).
+	 * The SDK itself keeps the snapshot up to date, there is no need to call this before every request anymore.
 	 * @param context
 	 */
 	public static void cacheDeviceInfo(Context context) {
 		if (context == null) throw new IllegalArgumentException("Must supply a valid Context when extracting device info");
 		
-		try {
-			// set all values from context
-			PackageInfo pinfo 	= context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-			
-			app_package 		= pinfo.packageName;
-			
-			app_version 		= pinfo.versionName;
-			
-			os_name 			= Build.VERSION.RELEASE;
-			
-			os_version 			= Build.VERSION.SDK_INT;
-			
-			DisplayMetrics dm 	= context.getResources().getDisplayMetrics();
-			
-			screen_size 		= new Rect(0, 0, dm.widthPixels, dm.heightPixels);
-			
-			screen_density_type = dm.densityDpi;
-			
-			screen_density 		= dm.density;
-			
-			device_size 		= context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK;
-			
-			device_id 			= System.getString(context.getContentResolver(), System.ANDROID_ID);
-			
-			device_model 		= Build.MODEL;
-			
-			// updated by build scripts
-			sdk_version 		= PHSDKVersion.getCurrentVersion();
-			
-			connection          = PHConnectionManager.getConnectionType(context);
-
-		} catch (Exception e) {
-			PHCrashReport.reportCrash(e, PHCrashReport.Urgency.low);
-		}
-		
+		PHDeviceSnapshot.install(PHDeviceSnapshot.capture(context));
 	}
 	
 	
@@ -150,59 +109,45 @@ public class PHConfig {
 						"   \"dev\":null\n" + 
 						"}";
 	
-	static {
-		loadConfig(JSON_CONFIG, environment);
+	private static volatile boolean loaded;
+	
+	/** 
+	 * Applies the build-time {@link #JSON_CONFIG} for the current {@link #environment} if we haven't yet. 
+	 * Done lazily (instead of when the class is loaded) to keep it off the app's startup path. Fields set
+	 * by the app in the meantime are kept (see {@link PHConfigBinder}). Cheap after the first call.
+	 */
+	public static void ensureLoaded() {
+		if (loaded) return;
+		
+		synchronized (PHConfig.class) {
+			if (loaded) return;
+			
+			PHConfigBinder.bind(JSON_CONFIG, environment, true);
+			loaded = true;
+		}
 	}
 	
 	/** 
 	 * Loads the configuration from a JSON blob. This method
 	 * allows us to load from files and change via build settings.
-	 * Uses java reflection to set the properties. Will overwrite the keys
-	 * set by cacheDeviceInfo.
+	 * Unlike the build-time configuration, the values always overwrite the current ones
+	 * (values of the wrong type are logged and skipped). 
 	 * 
 	 *  @param jsonConfig The JSON configuration dictionary blob
 	 *  @param environment The configuration environment. If null is passed we use 'prod'
 	 */
 	public static void loadConfig(String jsonConfig, String environment) {
-		try {
-			JSONObject environments = new JSONObject(jsonConfig);
-			
-			JSONObject config = environments.optJSONObject(environment == null ? "prod" : environment);
-			
- 			if ( ! JSONObject.NULL.equals(config)) {
- 				
- 				String key = null;
- 				Iterator keys = config.keys();
- 				
- 				// try to set public variable to json values (using reflection)
- 				while (keys.hasNext()) {
- 					key = (String)keys.next();
- 					
- 					try {
- 						Field field = PHConfig.class.getField(key);
- 						field.set(key, config.opt(key)); // update the field value from the JSON blob *hopes types match*
- 						
- 					} catch (NoSuchFieldException e) {
- 						// pass (continue)
- 						e.printStackTrace();
- 					} catch (IllegalArgumentException e) {
-						// pass
- 						e.printStackTrace();
-					} catch (IllegalAccessException e) {
-						// pass
-						e.printStackTrace();
-					} catch (Exception e) {
-						// finally swallow all exceptions
-						e.printStackTrace();
-					}
- 					
- 					
- 				}
- 			}
-			
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
+		ensureLoaded();
+		
+		PHConfigBinder.bind(jsonConfig, environment, false);
+	}
+	
+	/** Overrides a single value at runtime (same as assigning the field but type checked)
+	 * @throws IllegalArgumentException if the value has the wrong type
+	 */
+	public static void override(PHConfigBinder.Key key, Object value) {
+		ensureLoaded();
 		
+		PHConfigBinder.set(key, value);
 	}
 }
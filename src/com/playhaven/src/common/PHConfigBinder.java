@@ -0,0 +1,218 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Binds configuration values (such as the {@link PHConfig#JSON_CONFIG} blob) to the {@link PHConfig} fields.
+ * Every bindable field is a {@link Key} with a fixed type and a hand-written getter and setter, so there is no
+ * reflection and values of the wrong type are rejected (and logged) instead of silently ignored.
+ *
+ * The configuration is layered, from lowest to highest priority:
+ * <ol>
+ * <li>the built-in defaults (the field initializers in {@link PHConfig})</li>
+ * <li>the build-time blob ({@link PHConfig#JSON_CONFIG}, applied lazily by {@link PHConfig#ensureLoaded()})</li>
+ * <li>runtime overrides: {@link PHConfig#loadConfig}, {@link PHConfig#override} or simply assigning the field.
+ * The build-time blob never replaces a field which no longer has its built-in default.</li>
+ * </ol>
+ */
+public class PHConfigBinder {
+
+	/** The fields which can be configured: every scalar field of {@link PHConfig}, the same ones the old reflective
+	 * loader could set. The device fields are overwritten again whenever a new {@link PHDeviceSnapshot} is captured.
+	 */
+	public static enum Key {
+		sdk_version 		(String.class,  PHSDKVersion.getCurrentVersion()),
+		token 				(String.class,  ""),
+		secret 				(String.class,  ""),
+		os_name 			(String.class,  ""),
+		os_version 			(Integer.class, 0),
+		device_id 			(String.class,  ""),
+		device_model 		(String.class,  ""),
+		api 				(String.class,  ""),
+		username 			(String.class,  null),
+		password 			(String.class,  null),
+		protocol 			(Integer.class, -1),
+		screen_density_type (Integer.class, 0),
+		screen_size_type 	(Integer.class, 0),
+		device_size 		(Integer.class, 0),
+		urgency_level 		(String.class,  ""),
+		app_package 		(String.class,  ""),
+		app_version 		(String.class,  ""),
+		cache 				(Boolean.class, false),
+		precache_size 		(Integer.class, 1024 * 1024 * 8),
+		precache 			(Boolean.class, true),
+		streaming_decode 	(Boolean.class, true),
+		runningTests 		(Boolean.class, false),
+		environment 		(String.class,  "prod");
+
+		/** The type of the value (boxed)*/
+		public final Class<?> type;
+
+		/** The built-in default (must match the field initializer)*/
+		public final Object defaultValue;
+
+		private Key(Class<?> type, Object defaultValue) {
+			this.type 		  = type;
+			this.defaultValue = defaultValue;
+		}
+
+		/** Looks up the key by its JSON name, null if there is no such key*/
+		public static Key forName(String name) {
+			for (Key key : values()) {
+				if (key.name().equals(name)) return key;
+			}
+
+			return null;
+		}
+	}
+
+	/** Gets the current value of the field*/
+	public static Object get(Key key) {
+		switch (key) {
+			case sdk_version: 			return PHConfig.sdk_version;
+			case token: 				return PHConfig.token;
+			case secret: 				return PHConfig.secret;
+			case os_name: 				return PHConfig.os_name;
+			case os_version: 			return PHConfig.os_version;
+			case device_id: 			return PHConfig.device_id;
+			case device_model: 			return PHConfig.device_model;
+			case api: 					return PHConfig.api;
+			case username: 				return PHConfig.username;
+			case password: 				return PHConfig.password;
+			case protocol: 				return PHConfig.protocol;
+			case screen_density_type: 	return PHConfig.screen_density_type;
+			case screen_size_type: 		return PHConfig.screen_size_type;
+			case device_size: 			return PHConfig.device_size;
+			case urgency_level: 		return PHConfig.urgency_level;
+			case app_package: 			return PHConfig.app_package;
+			case app_version: 			return PHConfig.app_version;
+			case cache: 				return PHConfig.cache;
+			case precache_size: 		return PHConfig.precache_size;
+			case precache: 				return PHConfig.precache;
+			case streaming_decode: 		return PHConfig.streaming_decode;
+			case runningTests: 			return PHConfig.runningTests;
+			case environment: 			return PHConfig.environment;
+			default: 					return null;
+		}
+	}
+
+	/**
+	 * Sets the field after checking the type of the value. JSON numbers are accepted for
+	 * integers as long as they have no fraction, strings may be null.
+	 * @throws IllegalArgumentException if the value has the wrong type
+	 */
+	public static void set(Key key, Object value) {
+		Object checked = convert(key, value);
+
+		switch (key) {
+			case sdk_version: 			PHConfig.sdk_version 		 = (String) checked;  break;
+			case token: 				PHConfig.token 				 = (String) checked;  break;
+			case secret: 				PHConfig.secret 			 = (String) checked;  break;
+			case os_name: 				PHConfig.os_name 			 = (String) checked;  break;
+			case os_version: 			PHConfig.os_version 		 = (Integer) checked; break;
+			case device_id: 			PHConfig.device_id 			 = (String) checked;  break;
+			case device_model: 			PHConfig.device_model 		 = (String) checked;  break;
+			case api: 					PHConfig.api 				 = (String) checked;  break;
+			case username: 				PHConfig.username 			 = (String) checked;  break;
+			case password: 				PHConfig.password 			 = (String) checked;  break;
+			case protocol: 				PHConfig.protocol 			 = (Integer) checked; break;
+			case screen_density_type: 	PHConfig.screen_density_type = (Integer) checked; break;
+			case screen_size_type: 		PHConfig.screen_size_type 	 = (Integer) checked; break;
+			case device_size: 			PHConfig.device_size 		 = (Integer) checked; break;
+			case urgency_level: 		PHConfig.urgency_level 		 = (String) checked;  break;
+			case app_package: 			PHConfig.app_package 		 = (String) checked;  break;
+			case app_version: 			PHConfig.app_version 		 = (String) checked;  break;
+			case cache: 				PHConfig.cache 				 = (Boolean) checked; break;
+			case precache_size: 		PHConfig.precache_size 		 = (Integer) checked; break;
+			case precache: 				PHConfig.precache 			 = (Boolean) checked; break;
+			case streaming_decode: 		PHConfig.streaming_decode 	 = (Boolean) checked; break;
+			case runningTests: 			PHConfig.runningTests 		 = (Boolean) checked; break;
+			case environment: 			PHConfig.environment 		 = (String) checked;  break;
+		}
+	}
+
+	/** Does the field still have its built-in default?*/
+	public static boolean isDefault(Key key) {
+		Object value = get(key);
+
+		return (value == null ? key.defaultValue == null : value.equals(key.defaultValue));
+	}
+
+	/**
+	 * Applies the given environment of a JSON blob (see {@link PHConfig#JSON_CONFIG}).
+	 * @param environment the environment or null for "prod"
+	 * @param keepOverrides if true, fields which no longer have their built-in default are left alone
+	 * @return the problems we found (unknown keys, wrong types), empty if everything was applied
+	 */
+	public static List<String> bind(String jsonConfig, String environment, boolean keepOverrides) {
+		ArrayList<String> errors = new ArrayList<String>();
+
+		try {
+			JSONObject environments = new JSONObject(jsonConfig);
+
+			JSONObject config = environments.optJSONObject(environment == null ? "prod" : environment);
+
+			if (config != null)
+				bind(config, keepOverrides, errors);
+
+		} catch (JSONException e) {
+			errors.add("Invalid configuration: " + e.getMessage());
+		}
+
+		for (String error : errors)
+			PHStringUtil.log("Configuration error: " + error);
+
+		return errors;
+	}
+
+	private static void bind(JSONObject config, boolean keepOverrides, List<String> errors) {
+		Iterator<?> names = config.keys();
+
+		while (names.hasNext()) {
+			String name = (String) names.next();
+			Key key 	= Key.forName(name);
+
+			if (key == null) {
+				errors.add("Unknown key: " + name);
+				continue;
+			}
+
+			if (keepOverrides && ! isDefault(key)) continue; // set at runtime, that wins
+
+			try {
+				set(key, config.opt(name));
+			} catch (IllegalArgumentException e) {
+				errors.add(e.getMessage());
+			}
+		}
+	}
+
+	/** Checks (and if necessary converts) the value to the type of the key*/
+	private static Object convert(Key key, Object value) {
+		if (value == JSONObject.NULL) value = null;
+
+		if (key.type == String.class) {
+			if (value == null || value instanceof String) return value;
+
+		} else if (key.type == Boolean.class) {
+			if (value instanceof Boolean) return value;
+
+		} else if (key.type == Integer.class) {
+			if (value instanceof Number) {
+				Number number = (Number) value;
+
+				if (number.doubleValue() == number.intValue()) return number.intValue();
+			}
+		}
+
+		throw new IllegalArgumentException(String.format("%s must be a %s but was: %s",
+														 key.name(), key.type.getSimpleName(), value));
+	}
+}
@@ -1,6 +1,11 @@
 package com.playhaven.src.common;
 
+import java.util.ArrayList;
+
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
@@ -14,6 +19,15 @@ import com.playhaven.src.common.PHConfig.ConnectionType;
  */
 public class PHConnectionManager {
 	
+	/** Notified (on the main UI thread) whenever the connectivity changes*/
+	public static interface ConnectivityListener {
+		public void connectivityChanged(ConnectionType type);
+	}
+	
+	private static final ArrayList<ConnectivityListener> listeners = new ArrayList<ConnectivityListener>();
+	
+	private static BroadcastReceiver receiver;
+	
 	// get the data connection type
     static ConnectionType getConnectionType(Context context) {
         try {
@@ -44,4 +58,46 @@ public class PHConnectionManager {
         
         return ConnectionType.NO_NETWORK;
     }
+    
+    /** Do we (probably) have a working data connection? Without the permission we simply have to assume so.*/
+    public static boolean isConnected(Context context) {
+    	ConnectionType type = getConnectionType(context);
+    	
+    	return (type == ConnectionType.MOBILE || type == ConnectionType.WIFI || type == ConnectionType.NO_PERMISSION);
+    }
+    
+    /** Starts listening for connectivity changes (we register a single receiver with the application context)*/
+    public static synchronized void addConnectivityListener(Context context, ConnectivityListener listener) {
+    	if ( ! listeners.contains(listener))
+    		listeners.add(listener);
+    	
+    	if (receiver != null || context == null) return;
+    	
+    	final Context appContext = context.getApplicationContext();
+    	
+    	receiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				ConnectionType type = getConnectionType(appContext);
+				
+				for (ConnectivityListener listener : getListeners())
+					listener.connectivityChanged(type);
+			}
+		};
+		
+		try {
+			appContext.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHConnectionManager - addConnectivityListener", PHCrashReport.Urgency.low);
+		}
+    }
+    
+    public static synchronized void removeConnectivityListener(ConnectivityListener listener) {
+    	listeners.remove(listener);
+    }
+    
+    // copy so listeners may remove themselves
+    private static synchronized ArrayList<ConnectivityListener> getListeners() {
+    	return new ArrayList<ConnectivityListener>(listeners);
+    }
 }
@@ -6,6 +6,8 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Hashtable;
 
+import com.playhaven.src.utils.PHStringUtil;
+
 
 
 /**
@@ -16,7 +18,6 @@ import java.util.Hashtable;
  * all together via {@see PHConstants#etUseCrashReporting()}.
  * 
  * TODO: I'd like to transition the codebase towards googles naming conventions.
- * TODO: implement GZIP compression before sending to the server? How slow is it? We need benchmarks 
  * TODO: We should always *save* the reports immediately then uplaod them at the next opportunity
  * TODO: watch out for the infinite loop where PHAPIRequest crashes, we send a crash report (which of course
  * extends PHAPIRequest), which crashes again, and so forth.
@@ -39,6 +40,9 @@ public class PHCrashReport extends PHAPIRequest {
 	
 	private Date reportTime = new Date();
 	
+	// identifies this report across retries
+	private final String reportId = PHStringUtil.generateUUID();
+	
 	////////////////////////////////////////////////
 	///////////// Static Handlers //////////////////
 	//TODO.....
@@ -141,6 +145,21 @@ public class PHCrashReport extends PHAPIRequest {
 		return PHAsyncRequest.RequestType.Post;
 	}
 	
+	@Override
+	public String getIdempotencyKey() {
+		return reportId; // lets us retry the post without filing the report twice
+	}
+	
+	@Override
+	public boolean isSpoolable() {
+		return true; // crashes while offline are still worth knowing about
+	}
+	
+	@Override
+	public boolean shouldCompressPostBody() {
+		return true; // stack traces compress really well
+	}
+	
 	@Override
 	public Hashtable<String, String> getPostParams() {
 		Hashtable<String, String> params = new Hashtable<String, String>();
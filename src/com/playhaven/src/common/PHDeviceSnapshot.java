@@ -0,0 +1,300 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.res.Configuration;
+import android.graphics.Rect;
+import android.os.Build;
+import android.provider.Settings.System;
+import android.util.DisplayMetrics;
+
+import com.playhaven.src.common.PHConfig.ConnectionType;
+
+/**
+ * Immutable snapshot of the device and app information we send with every request. Gathering it means
+ * querying the package manager, the display, the settings provider and the connectivity manager, so we only do
+ * that once and then again (on a background thread) when the configuration changes. Connectivity changes simply
+ * copy the snapshot with the new connection type.
+ *
+ * Requests capture the current snapshot by reference when created, the snapshot is swapped atomically so a request
+ * never sees half of an update. For compatibility, every new snapshot is also copied into the {@link PHConfig} fields.
+ */
+public final class PHDeviceSnapshot {
+
+	public final String app_package;
+
+	public final String app_version;
+
+	public final String os_name;
+
+	public final int 	os_version;
+
+	public final int 	screen_width;
+
+	public final int 	screen_height;
+
+	public final float 	screen_density;
+
+	public final int 	screen_density_type;
+
+	public final int 	device_size;
+
+	public final String device_id;
+
+	public final String device_model;
+
+	public final String sdk_version;
+
+	public final ConnectionType connection;
+
+	private static final AtomicReference<PHDeviceSnapshot> current = new AtomicReference<PHDeviceSnapshot>();
+
+	// snapshot of the PHConfig fields for requests without a context (see fromConfig)
+	private static volatile PHDeviceSnapshot configSnapshot;
+
+	private static Refresher refresher;
+
+	private PHDeviceSnapshot(String app_package, String app_version, String os_name, int os_version,
+							 int screen_width, int screen_height, float screen_density, int screen_density_type,
+							 int device_size, String device_id, String device_model, String sdk_version,
+							 ConnectionType connection) {
+		this.app_package 		 = app_package;
+		this.app_version 		 = app_version;
+		this.os_name 			 = os_name;
+		this.os_version 		 = os_version;
+		this.screen_width 		 = screen_width;
+		this.screen_height 		 = screen_height;
+		this.screen_density 	 = screen_density;
+		this.screen_density_type = screen_density_type;
+		this.device_size 		 = device_size;
+		this.device_id 			 = device_id;
+		this.device_model 		 = device_model;
+		this.sdk_version 		 = sdk_version;
+		this.connection 		 = connection;
+	}
+
+	/** Copy with a different connection type*/
+	public PHDeviceSnapshot withConnection(ConnectionType connection) {
+		return new PHDeviceSnapshot(app_package, app_version, os_name, os_version,
+									screen_width, screen_height, screen_density, screen_density_type,
+									device_size, device_id, device_model, sdk_version,
+									connection);
+	}
+
+	////////////////////////////////////////////////////
+
+	/** Gets the current snapshot, capturing it first (on this thread) if there isn't one yet.
+	 * Also starts listening for configuration and connectivity changes.
+	 */
+	public static PHDeviceSnapshot get(Context context) {
+		PHDeviceSnapshot snapshot = current.get();
+		if (snapshot != null) return snapshot;
+
+		snapshot = capture(context);
+
+		// someone else may have been quicker
+		if (current.compareAndSet(null, snapshot)) {
+			snapshot.applyToConfig();
+			startListening(context);
+		}
+
+		return current.get();
+	}
+
+	/** The current snapshot or null if we never had a context to capture one*/
+	public static PHDeviceSnapshot getCurrent() {
+		return current.get();
+	}
+
+	/** Replaces the current snapshot (and updates the {@link PHConfig} fields)*/
+	public static void install(PHDeviceSnapshot snapshot) {
+		if (snapshot == null) return;
+
+		current.set(snapshot);
+		snapshot.applyToConfig();
+	}
+
+	/** The current snapshot or, without one, a snapshot of the {@link PHConfig} fields (which may have been set by hand)*/
+	public static PHDeviceSnapshot getCurrentOrConfig() {
+		PHDeviceSnapshot snapshot = current.get();
+
+		return (snapshot != null ? snapshot : fromConfig());
+	}
+
+	/** Snapshot of whatever is in the {@link PHConfig} fields. Only rebuilt when they change.*/
+	public static PHDeviceSnapshot fromConfig() {
+		PHDeviceSnapshot snapshot = configSnapshot;
+
+		if (snapshot == null || ! snapshot.matchesConfig()) {
+			snapshot = new PHDeviceSnapshot(PHConfig.app_package, PHConfig.app_version, PHConfig.os_name, PHConfig.os_version,
+											PHConfig.screen_size.width(), PHConfig.screen_size.height(),
+											PHConfig.screen_density, PHConfig.screen_density_type, PHConfig.device_size,
+											PHConfig.device_id, PHConfig.device_model, PHConfig.sdk_version,
+											PHConfig.connection);
+			configSnapshot = snapshot;
+		}
+
+		return snapshot;
+	}
+
+	/** Gathers all the information from the given context. Slow, avoid calling on the UI thread.*/
+	public static PHDeviceSnapshot capture(Context context) {
+		if (context == null) throw new IllegalArgumentException("Must supply a valid Context when extracting device info");
+
+		// anything we fail to get keeps its current value
+		PHDeviceSnapshot previous = getCurrentOrConfig();
+
+		String app_package 		= previous.app_package;
+		String app_version 		= previous.app_version;
+		String os_name 			= previous.os_name;
+		int os_version 			= previous.os_version;
+		int screen_width 		= previous.screen_width;
+		int screen_height 		= previous.screen_height;
+		float screen_density 	= previous.screen_density;
+		int screen_density_type = previous.screen_density_type;
+		int device_size 		= previous.device_size;
+		String device_id 		= previous.device_id;
+		String device_model 	= previous.device_model;
+		String sdk_version 		= previous.sdk_version;
+		ConnectionType connection = previous.connection;
+
+		try {
+			// set all values from context
+			PackageInfo pinfo 	= context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+
+			app_package 		= pinfo.packageName;
+
+			app_version 		= pinfo.versionName;
+
+			os_name 			= Build.VERSION.RELEASE;
+
+			os_version 			= Build.VERSION.SDK_INT;
+
+			DisplayMetrics dm 	= context.getResources().getDisplayMetrics();
+
+			screen_width 		= dm.widthPixels;
+
+			screen_height 		= dm.heightPixels;
+
+			screen_density_type = dm.densityDpi;
+
+			screen_density 		= dm.density;
+
+			device_size 		= context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK;
+
+			device_id 			= System.getString(context.getContentResolver(), System.ANDROID_ID);
+
+			device_model 		= Build.MODEL;
+
+			// updated by build scripts
+			sdk_version 		= PHSDKVersion.getCurrentVersion();
+
+			connection          = PHConnectionManager.getConnectionType(context);
+
+		} catch (Exception e) {
+			PHCrashReport.reportCrash(e, PHCrashReport.Urgency.low);
+		}
+
+		return new PHDeviceSnapshot(app_package, app_version, os_name, os_version,
+									screen_width, screen_height, screen_density, screen_density_type,
+									device_size, device_id, device_model, sdk_version,
+									connection);
+	}
+
+	/** Recaptures the snapshot on a background thread*/
+	public static void refresh(final Context context) {
+		PHNetworkExecutor.getExecutor(PHNetworkExecutor.Priority.Metadata).execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					install(capture(context));
+				} catch (Exception e) {
+					PHCrashReport.reportCrash(e, "PHDeviceSnapshot - refresh", PHCrashReport.Urgency.low);
+				}
+			}
+		});
+	}
+
+	////////////////////////////////////////////////////
+
+	/** Copies the snapshot into the (legacy) {@link PHConfig} fields*/
+	private void applyToConfig() {
+		PHConfig.app_package 		 = app_package;
+		PHConfig.app_version 		 = app_version;
+		PHConfig.os_name 			 = os_name;
+		PHConfig.os_version 		 = os_version;
+		PHConfig.screen_size 		 = new Rect(0, 0, screen_width, screen_height);
+		PHConfig.screen_density_type = screen_density_type;
+		PHConfig.screen_density 	 = screen_density;
+		PHConfig.device_size 		 = device_size;
+		PHConfig.device_id 			 = device_id;
+		PHConfig.device_model 		 = device_model;
+		PHConfig.sdk_version 		 = sdk_version;
+		PHConfig.connection 		 = connection;
+
+		configSnapshot = this;
+	}
+
+	/** Still the same as the {@link PHConfig} fields? No allocations, safe to call for every request.*/
+	private boolean matchesConfig() {
+		return (same(app_package,  PHConfig.app_package)  					&&
+				same(app_version,  PHConfig.app_version)  					&&
+				same(os_name, 	   PHConfig.os_name) 	  					&&
+				os_version 			== PHConfig.os_version 					&&
+				screen_width 		== PHConfig.screen_size.width() 		&&
+				screen_height 		== PHConfig.screen_size.height() 		&&
+				screen_density 		== PHConfig.screen_density 				&&
+				screen_density_type == PHConfig.screen_density_type 		&&
+				device_size 		== PHConfig.device_size 				&&
+				same(device_id,    PHConfig.device_id) 	  					&&
+				same(device_model, PHConfig.device_model) 					&&
+				same(sdk_version,  PHConfig.sdk_version)  					&&
+				connection 			== PHConfig.connection);
+	}
+
+	private static boolean same(String a, String b) {
+		return (a == b || (a != null && a.equals(b)));
+	}
+
+	private static synchronized void startListening(Context context) {
+		if (refresher != null || context == null) return;
+
+		refresher = new Refresher(context.getApplicationContext());
+
+		PHConnectionManager.addConnectivityListener(context, refresher);
+
+		try {
+			context.getApplicationContext().registerReceiver(refresher, new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED));
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHDeviceSnapshot - startListening", PHCrashReport.Urgency.low);
+		}
+	}
+
+	/** Keeps the snapshot up to date (callbacks arrive on the main UI thread)*/
+	private static class Refresher extends BroadcastReceiver implements PHConnectionManager.ConnectivityListener {
+		private final Context appContext;
+
+		public Refresher(Context appContext) {
+			this.appContext = appContext;
+		}
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			// rotation, locale, screen size...
+			refresh(appContext);
+		}
+
+		@Override
+		public void connectivityChanged(ConnectionType type) {
+			PHDeviceSnapshot snapshot = current.get();
+
+			if (snapshot != null && snapshot.connection != type)
+				install(snapshot.withConnection(type));
+		}
+	}
+}
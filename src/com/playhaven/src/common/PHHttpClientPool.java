@@ -0,0 +1,138 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Process-wide pool of http connections shared by all SDK network traffic ({@link PHAsyncRequest},
+ * {@link PHURLLoader} and the precache downloads). Connections are kept alive and handed back to the pool
+ * once a response stream is closed so that the open call, the precache files and the content call can reuse
+ * the same sockets instead of paying the TCP (and TLS) setup each time.
+ *
+ * Clients handed out by {@link #createClient(HttpParams)} are cheap wrappers around the shared pool,
+ * so the {@link PHApacheTransport} simply creates one per request.
+ */
+public class PHHttpClientPool {
+
+	/** Maximum number of connections across all hosts*/
+	public static final int MAX_TOTAL_CONNECTIONS 		= 8;
+
+	/** Maximum number of connections to a single host (route)*/
+	public static final int MAX_CONNECTIONS_PER_ROUTE 	= 4;
+
+	/** Connections sitting unused in the pool for longer than this (ms) are closed*/
+	public static final long IDLE_TIMEOUT 				= 30 * 1000;
+
+	/** Keep-alive used when the server does not send a Keep-Alive timeout (ms)*/
+	public static final long DEFAULT_KEEP_ALIVE 		= 30 * 1000;
+
+	/** How long we wait for the pool to give us a connection (ms)*/
+	public static final long POOL_TIMEOUT 				= 10 * 1000;
+
+	private static ClientConnectionManager sharedManager;
+
+	private static long lastEviction = 0;
+
+	/** Honors the server's Keep-Alive header but never keeps a connection longer than {@link #DEFAULT_KEEP_ALIVE}*/
+	private static class PHKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+
+			while (it.hasNext()) {
+				HeaderElement element = it.nextElement();
+
+				if (element.getValue() != null && element.getName().equalsIgnoreCase("timeout")) {
+					try {
+						return Math.min(Long.parseLong(element.getValue()) * 1000, DEFAULT_KEEP_ALIVE);
+					} catch (NumberFormatException e) {
+						// pass (fall back to the default)
+					}
+				}
+			}
+
+			return DEFAULT_KEEP_ALIVE;
+		}
+	}
+
+	/** Gets the shared connection manager, creating it if necessary. Also evicts stale connections.*/
+	public static synchronized ClientConnectionManager getConnectionManager() {
+		if (sharedManager == null) {
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http",  PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(),  443));
+
+			sharedManager = new ThreadSafeClientConnManager(createParams(), registry);
+			lastEviction  = System.currentTimeMillis();
+		}
+
+		evictIdleConnections();
+
+		return sharedManager;
+	}
+
+	/** Creates a new client which draws its connections from the shared pool.
+	 * @param params the client parameters or null for the defaults
+	 */
+	public static DefaultHttpClient createClient(HttpParams params) {
+		DefaultHttpClient client = new DefaultHttpClient(getConnectionManager(),
+														 (params != null ? params : createParams()));
+
+		client.setKeepAliveStrategy(new PHKeepAliveStrategy());
+		return client;
+	}
+
+	/** Closes expired and idle connections. We piggy back on client creation instead of running a separate thread.*/
+	public static synchronized void evictIdleConnections() {
+		if (sharedManager == null) return;
+
+		long now = System.currentTimeMillis();
+		if (now - lastEviction < IDLE_TIMEOUT) return;
+
+		lastEviction = now;
+
+		sharedManager.closeExpiredConnections();
+		sharedManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/** Closes all pooled connections. The next call to {@link #getConnectionManager()} creates a fresh pool.*/
+	public static synchronized void shutdown() {
+		if (sharedManager == null) return;
+
+		sharedManager.shutdown();
+		sharedManager = null;
+	}
+
+	/** The default client parameters (HTTP/1.1, pool limits)*/
+	static HttpParams createParams() {
+		HttpParams params = new BasicHttpParams();
+
+		params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
+
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+
+		return params;
+	}
+}
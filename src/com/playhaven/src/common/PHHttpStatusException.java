@@ -0,0 +1,27 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+
+/**
+ * Passed to {@link PHAPIRequest.Delegate#requestFailed} when the server answered with anything but a 200.
+ * Carries the status code so that retry policies can tell a server error from a client error.
+ */
+public class PHHttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	
+	private final int statusCode;
+
+	public PHHttpStatusException(int statusCode) {
+		super("Request failed with code: " + statusCode);
+		this.statusCode = statusCode;
+	}
+	
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/** Is the server (rather than the request) to blame?*/
+	public boolean isServerError() {
+		return (statusCode >= 500 || statusCode == 408 || statusCode == 429);
+	}
+}
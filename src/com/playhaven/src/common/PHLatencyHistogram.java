@@ -0,0 +1,126 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, thread safe latency histogram (values in microseconds). Buckets are log-linear: every power
+ * of two is split into {@link #SUB_BUCKETS} equal buckets, so any percentile is within 12.5% of the real value.
+ * Values above {@link #MAX_VALUE} land in the last bucket.
+ *
+ * Recording never allocates or locks, so it can be done for every request.
+ */
+public class PHLatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/** Buckets per power of two*/
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int MAX_EXPONENT = 31;
+
+	/** Largest value (us) we can tell apart, about 35 minutes*/
+	public static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+	private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum   = new AtomicLong();
+
+	private final AtomicLong max   = new AtomicLong();
+
+	/** Records a single value (us). Negative values are ignored.*/
+	public void record(long micros) {
+		if (micros < 0) return;
+
+		buckets.incrementAndGet(bucketIndex(Math.min(micros, MAX_VALUE)));
+
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long current;
+		while (micros > (current = max.get()) && ! max.compareAndSet(current, micros));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/** The largest value recorded (us)*/
+	public long getMax() {
+		return max.get();
+	}
+
+	/** Average of all values (us)*/
+	public long getMean() {
+		long total = count.get();
+
+		return (total > 0 ? sum.get() / total : 0);
+	}
+
+	/**
+	 * Gets the value (us) below which the given percentage of the recorded values fall.
+	 * @param percentile between 0 and 100 (such as 99 for the p99)
+	 * @return the value or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		// Note: we use the total of the buckets (not the count) since we may be recording concurrently
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			total += buckets.get(i);
+
+		if (total == 0) return 0;
+
+		long rank = (long) Math.ceil((Math.max(0, Math.min(percentile, 100)) / 100.0) * total);
+		if (rank < 1) rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+
+			if (seen >= rank) return Math.min(bucketUpperBound(i), getMax());
+		}
+
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			buckets.set(i, 0);
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count: %d, p50: %d us, p95: %d us, p99: %d us, max: %d us",
+							 getCount(), getPercentile(50), getPercentile(95), getPercentile(99), getMax());
+	}
+
+	////////////////////////////////////////////////////
+
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub 	 = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) return index;
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub 	 = index % SUB_BUCKETS;
+
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+		return (SUB_BUCKETS + sub) * width + width - 1;
+	}
+}
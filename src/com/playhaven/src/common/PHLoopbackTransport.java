@@ -0,0 +1,266 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory {@link PHTransport} serving canned responses without any sockets, so the whole request
+ * pipeline can be tested (and benchmarked) on a plain JVM. The simulated network is described by a
+ * latency (time to the first byte of every response) and a bandwidth (for the body).
+ *
+ * Responses are matched by the url path (ignoring the query), the longest matching prefix wins.
+ * Anything unmatched gets a 404. Thread safe.
+ */
+public class PHLoopbackTransport implements PHTransport {
+
+	/** Bandwidth which doesn't limit anything*/
+	public static final long UNLIMITED = 0;
+
+	private static final int CHUNK_SIZE = 1024;
+
+	/** A canned response*/
+	public static class CannedResponse {
+		public final int statusCode;
+
+		public final byte[] body;
+
+		private final LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+
+		public CannedResponse(int statusCode, byte[] body) {
+			this.statusCode = statusCode;
+			this.body 		= (body != null ? body : new byte[0]);
+		}
+
+		public CannedResponse(int statusCode, String body) {
+			this(statusCode, (body != null ? body.getBytes() : null));
+		}
+
+		public CannedResponse setHeader(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+	}
+
+	private final LinkedHashMap<String, CannedResponse> responses = new LinkedHashMap<String, CannedResponse>();
+
+	private final ArrayList<Request> requests = new ArrayList<Request>();
+
+	private volatile long latency;
+
+	private volatile long bandwidth = UNLIMITED;
+
+	private final AtomicLong bytesServed = new AtomicLong();
+
+	/**
+	 * @param latency time (ms) before every response starts
+	 * @param bandwidth body bytes per second or {@link #UNLIMITED}
+	 */
+	public PHLoopbackTransport(long latency, long bandwidth) {
+		this.latency   = latency;
+		this.bandwidth = bandwidth;
+	}
+
+	public PHLoopbackTransport() {
+		this(0, UNLIMITED);
+	}
+
+	/** Serves the response for all urls whose path starts with the given prefix*/
+	public synchronized void setResponse(String pathPrefix, CannedResponse response) {
+		responses.put(pathPrefix, response);
+	}
+
+	public synchronized void clearResponses() {
+		responses.clear();
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	public long getBandwidth() {
+		return bandwidth;
+	}
+
+	/** All requests executed so far (including redirect hops)*/
+	public synchronized List<Request> getRequests() {
+		return new ArrayList<Request>(requests);
+	}
+
+	/** Body bytes actually delivered*/
+	public long getBytesServed() {
+		return bytesServed.get();
+	}
+
+	public synchronized void reset() {
+		requests.clear();
+		bytesServed.set(0);
+	}
+
+	@Override
+	public Response execute(Request request) throws IOException {
+		final Object lock = new Object();
+
+		request.setAbortHandler(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					lock.notifyAll();
+				}
+			}
+		});
+
+		Request hop = request; // aborting the original request aborts all its hops
+
+		while (true) {
+			synchronized (this) {
+				requests.add(hop);
+			}
+			
+			// there is no connection to set up
+			request.markConnected(Request.CONNECTION_REUSED);
+
+			sleep(request, lock, latency);
+
+			CannedResponse canned = findResponse(hop.getURL());
+
+			String location = canned.getHeaders().get("Location");
+
+			if (hop.isFollowRedirects() && canned.statusCode >= 300 && canned.statusCode <= 307 && location != null) {
+				hop = hop.redirect(location);
+				continue;
+			}
+
+			boolean head = (hop.getMethod() == PHAsyncRequest.RequestType.Head);
+
+			Response response = new Response(canned.statusCode,
+											 (head ? null : new ThrottledInputStream(request, lock, canned.body)),
+											 canned.body.length);
+
+			for (Map.Entry<String, String> header : canned.getHeaders().entrySet())
+				response.addHeader(header.getKey(), header.getValue());
+
+			return response;
+		}
+	}
+
+	private synchronized CannedResponse findResponse(String url) {
+		String path = url;
+
+		int query = path.indexOf('?');
+		if (query >= 0) path = path.substring(0, query);
+
+		int scheme = path.indexOf("://");
+		if (scheme >= 0) {
+			int slash = path.indexOf('/', scheme + 3);
+			path = (slash >= 0 ? path.substring(slash) : "/");
+		}
+
+		CannedResponse best = null;
+		int bestLength = -1;
+
+		for (Map.Entry<String, CannedResponse> entry : responses.entrySet()) {
+			if (path.startsWith(entry.getKey()) && entry.getKey().length() > bestLength) {
+				best 	   = entry.getValue();
+				bestLength = entry.getKey().length();
+			}
+		}
+
+		return (best != null ? best : new CannedResponse(404, "Not Found"));
+	}
+
+	/** Waits (abortably) for the given time, honoring the read timeout like a real socket would*/
+	private static void sleep(Request request, Object lock, long millis) throws IOException {
+		if (millis <= 0) {
+			if (request.isAborted()) throw new InterruptedIOException("Request aborted");
+			return;
+		}
+
+		int readTimeout = request.getReadTimeout();
+		boolean timesOut = (readTimeout > PHAsyncRequest.NO_TIMEOUT && millis > readTimeout);
+
+		long deadline = System.currentTimeMillis() + (timesOut ? readTimeout : millis);
+
+		synchronized (lock) {
+			long remaining;
+
+			while ( ! request.isAborted() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					lock.wait(remaining);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted");
+				}
+			}
+		}
+
+		if (request.isAborted()) throw new InterruptedIOException("Request aborted");
+
+		if (timesOut) throw new SocketTimeoutException("Read timed out");
+	}
+
+	/** Hands out the body at the configured bandwidth*/
+	private class ThrottledInputStream extends InputStream {
+		private final Request request;
+
+		private final Object lock;
+
+		private final byte[] body;
+
+		private int position;
+
+		public ThrottledInputStream(Request request, Object lock, byte[] body) {
+			this.request = request;
+			this.lock 	 = lock;
+			this.body 	 = body;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+
+			return (read(single, 0, 1) == -1 ? -1 : single[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (request.isAborted()) throw new IOException("Request aborted");
+
+			if (position >= body.length) return -1;
+
+			int count = Math.min(Math.min(length, CHUNK_SIZE), body.length - position);
+
+			long rate = bandwidth;
+			if (rate > 0) sleep(request, lock, (count * 1000L) / rate);
+
+			System.arraycopy(body, position, buffer, offset, count);
+			position += count;
+
+			bytesServed.addAndGet(count);
+
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return (bandwidth > 0 ? 0 : body.length - position);
+		}
+	}
+}
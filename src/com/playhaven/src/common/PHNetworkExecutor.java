@@ -0,0 +1,241 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Bounded, SDK-owned executor for all network work. We don't want to share {@link AsyncTask}'s
+ * default (often serial) executor with the host game, and we want a user visible content request
+ * to jump ahead of a large precache download.
+ *
+ * Work is queued by {@link Priority}. Queued work always runs before queued work of a lower priority
+ * and in FIFO order within the same priority. Running work is never interrupted.
+ *
+ * We also keep some simple per priority metrics (queue depth, wait time) so the pool can be sized.
+ */
+public class PHNetworkExecutor {
+
+	/** Number of worker threads*/
+	public static final int POOL_SIZE = 4;
+
+	/** Priority classes, highest priority first.*/
+	public static enum Priority {
+		Content,  // content about to be displayed
+		Open,     // open and IAP tracking
+		Metadata, // badges and other metadata
+		Precache  // background downloads
+	}
+
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private static final int PRIORITY_COUNT = Priority.values().length;
+
+	///////////////////////////////////////////////
+	/////////////// Metrics ///////////////////////
+	private static final AtomicInteger[] queueDepth = new AtomicInteger[PRIORITY_COUNT];
+
+	private static final AtomicLong[] executedCount = new AtomicLong[PRIORITY_COUNT];
+
+	private static final AtomicLong[] totalWait     = new AtomicLong[PRIORITY_COUNT];
+
+	private static final AtomicLong[] maxWait       = new AtomicLong[PRIORITY_COUNT];
+
+	static {
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			queueDepth[i]    = new AtomicInteger();
+			executedCount[i] = new AtomicLong();
+			totalWait[i]     = new AtomicLong();
+			maxWait[i]       = new AtomicLong();
+		}
+	}
+
+	private static ThreadPoolExecutor threadPool;
+	
+	private static ScheduledExecutorService timer;
+
+	private static final Executor[] laneExecutors = new Executor[PRIORITY_COUNT];
+
+	/** Wraps the queued work so that the queue can order it by priority and we can track the wait time.*/
+	private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+		private final Runnable runnable;
+
+		private final Priority priority;
+
+		private final long seq;
+
+		private final long enqueueTime;
+
+		public PrioritizedRunnable(Runnable runnable, Priority priority) {
+			this.runnable 	 = runnable;
+			this.priority 	 = priority;
+			this.seq 		 = sequence.getAndIncrement();
+			this.enqueueTime = System.currentTimeMillis();
+		}
+
+		@Override
+		public void run() {
+			int lane  = priority.ordinal();
+			long wait = System.currentTimeMillis() - enqueueTime;
+
+			queueDepth[lane].decrementAndGet();
+			executedCount[lane].incrementAndGet();
+			totalWait[lane].addAndGet(wait);
+
+			long max = maxWait[lane].get();
+			while (wait > max && ! maxWait[lane].compareAndSet(max, wait))
+				max = maxWait[lane].get();
+
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedRunnable other) {
+			if (priority != other.priority)
+				return priority.ordinal() - other.priority.ordinal();
+
+			return (seq < other.seq ? -1 : (seq == other.seq ? 0 : 1));
+		}
+	}
+
+	/** Executor view which tags all submitted work with a given priority.*/
+	private static class LaneExecutor implements Executor {
+		private final Priority priority;
+
+		public LaneExecutor(Priority priority) {
+			this.priority = priority;
+		}
+
+		@Override
+		public void execute(Runnable runnable) {
+			queueDepth[priority.ordinal()].incrementAndGet();
+			getThreadPool().execute(new PrioritizedRunnable(runnable, priority));
+		}
+	}
+
+	private static class NetworkThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, "PlayHaven Network #" + count.getAndIncrement());
+
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getThreadPool() {
+		if (threadPool == null) {
+			// Note: the queue is unbounded, so we always run with exactly POOL_SIZE threads
+			threadPool = new ThreadPoolExecutor(POOL_SIZE,
+												POOL_SIZE,
+												30,
+												TimeUnit.SECONDS,
+												new PriorityBlockingQueue<Runnable>(),
+												new NetworkThreadFactory());
+		}
+
+		return threadPool;
+	}
+
+	/** Runs the (very short!) runnable on the shared timer thread after the given delay. 
+	 * Used for request deadlines and similar watchdogs.
+	 */
+	public static synchronized ScheduledFuture<?> schedule(Runnable runnable, long delayMillis) {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "PlayHaven Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return timer.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/** Gets an executor which runs all its work at the given priority*/
+	public static synchronized Executor getExecutor(Priority priority) {
+		int lane = priority.ordinal();
+
+		if (laneExecutors[lane] == null)
+			laneExecutors[lane] = new LaneExecutor(priority);
+
+		return laneExecutors[lane];
+	}
+
+	/** Kicks off the task on the SDK executor. Must be called from the main UI thread (as with {@link AsyncTask#execute}).
+	 * Pre-Honeycomb devices can't run an {@link AsyncTask} on a custom executor, so we fall back to the (parallel) default executor.
+	 * The params are only handed on to the task (which is varargs itself), we never store into the array.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <Params, Progress, Result> void execute(AsyncTask<Params, Progress, Result> task, Priority priority, Params... params) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			task.executeOnExecutor(getExecutor(priority), params);
+		else
+			task.execute(params);
+	}
+
+	//////////////////////////////////////////////////
+	/////////////// Metrics Accessors ////////////////
+
+	/** Number of tasks waiting to run at the given priority*/
+	public static int getQueueDepth(Priority priority) {
+		return queueDepth[priority.ordinal()].get();
+	}
+
+	/** Number of tasks waiting to run across all priorities*/
+	public static int getQueueDepth() {
+		int depth = 0;
+		for (AtomicInteger laneDepth : queueDepth)
+			depth += laneDepth.get();
+
+		return depth;
+	}
+
+	/** Number of tasks started at the given priority since the last reset*/
+	public static long getExecutedCount(Priority priority) {
+		return executedCount[priority.ordinal()].get();
+	}
+
+	/** Average time (ms) tasks of the given priority spent in the queue*/
+	public static long getAverageWait(Priority priority) {
+		long count = executedCount[priority.ordinal()].get();
+
+		return (count == 0 ? 0 : totalWait[priority.ordinal()].get() / count);
+	}
+
+	/** Longest time (ms) a task of the given priority spent in the queue*/
+	public static long getMaxWait(Priority priority) {
+		return maxWait[priority.ordinal()].get();
+	}
+
+	/** Resets the wait time metrics (the queue depth is left alone)*/
+	public static void resetMetrics() {
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			executedCount[i].set(0);
+			totalWait[i].set(0);
+			maxWait[i].set(0);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Per endpoint latency histograms for every phase of a request (see {@link PHRequestTiming}).
+ * Every {@link PHAsyncRequest} records into here once it has been delivered, export the percentiles
+ * with {@link #toJSON()} or read the {@link PHLatencyHistogram}s directly.
+ */
+public class PHNetworkMetrics {
+
+	/** Endpoint for requests which don't say otherwise (see {@link PHAsyncRequest#setMetricsEndpoint(String)})*/
+	public static final String OTHER_ENDPOINT = "other";
+
+	/** The phases of a request in order. The phases (except {@link #Total}) don't overlap.*/
+	public static enum Phase {
+		Queue, 		// waiting for a network thread
+		Connect, 	// acquiring a connection (new or from the pool)
+		FirstByte, 	// until the response headers are in (including redirects)
+		Download, 	// reading the body (and parsing it when streamed)
+		Decode, 	// parsing the buffered body in the background
+		Delivery, 	// hopping back onto the UI thread
+		Total 		// from queueing to delivery
+	}
+
+	// Note: values() copies the array every time
+	private static final Phase[] PHASES = Phase.values();
+
+	private static final int PHASE_COUNT = PHASES.length;
+
+	private static final HashMap<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+	private static volatile boolean enabled = true;
+
+	/** The metrics for a single endpoint*/
+	public static class Endpoint {
+		private final String name;
+
+		private final PHLatencyHistogram[] histograms = new PHLatencyHistogram[PHASE_COUNT];
+
+		private final AtomicLong failures 			= new AtomicLong();
+
+		private final AtomicLong newConnections 	= new AtomicLong();
+
+		private final AtomicLong reusedConnections 	= new AtomicLong();
+
+		private final AtomicLong cachedResponses 	= new AtomicLong();
+
+		public Endpoint(String name) {
+			this.name = name;
+
+			for (int i = 0; i < PHASE_COUNT; i++)
+				histograms[i] = new PHLatencyHistogram();
+		}
+
+		/** Records a finished request. Doesn't allocate.*/
+		public void record(PHRequestTiming timing, boolean failed) {
+			for (int i = 0; i < PHASE_COUNT; i++) {
+				long duration = timing.getDuration(PHASES[i]);
+
+				if (duration >= 0) histograms[i].record(duration);
+			}
+
+			if (failed) failures.incrementAndGet();
+
+			if (timing.isCached()) 			   cachedResponses.incrementAndGet();
+			else if (timing.isConnectionReused()) reusedConnections.incrementAndGet();
+			else if (timing.isConnectionNew())    newConnections.incrementAndGet();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public PHLatencyHistogram getHistogram(Phase phase) {
+			return histograms[phase.ordinal()];
+		}
+
+		/** Requests recorded (successful or not)*/
+		public long getCount() {
+			return getHistogram(Phase.Total).getCount();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/** Requests which had to open a new connection*/
+		public long getNewConnections() {
+			return newConnections.get();
+		}
+
+		/** Requests which got a keep-alive connection from the pool*/
+		public long getReusedConnections() {
+			return reusedConnections.get();
+		}
+
+		/** Requests served from the response cache without touching the network*/
+		public long getCachedResponses() {
+			return cachedResponses.get();
+		}
+
+		public void reset() {
+			for (PHLatencyHistogram histogram : histograms)
+				histogram.reset();
+
+			failures.set(0);
+			newConnections.set(0);
+			reusedConnections.set(0);
+			cachedResponses.set(0);
+		}
+
+		/** Count, p50, p95, p99 and max (in ms) of every phase we have values for*/
+		public JSONObject toJSON() throws JSONException {
+			JSONObject json = new JSONObject();
+
+			json.put("count", 			getCount());
+			json.put("failures", 		getFailures());
+			json.put("new_connections", getNewConnections());
+			json.put("reused_connections", getReusedConnections());
+			json.put("cached", 			getCachedResponses());
+
+			for (Phase phase : PHASES) {
+				PHLatencyHistogram histogram = getHistogram(phase);
+				if (histogram.getCount() == 0) continue;
+
+				JSONObject percentiles = new JSONObject();
+				percentiles.put("count", histogram.getCount());
+				percentiles.put("p50", histogram.getPercentile(50) / 1000.0);
+				percentiles.put("p95", histogram.getPercentile(95) / 1000.0);
+				percentiles.put("p99", histogram.getPercentile(99) / 1000.0);
+				percentiles.put("max", histogram.getMax() / 1000.0);
+
+				json.put(phase.name().toLowerCase(), percentiles);
+			}
+
+			return json;
+		}
+	}
+
+	////////////////////////////////////////////////////
+
+	/** Gets the metrics for the given endpoint (such as "/v3/publisher/open/"), creating them if necessary*/
+	public static Endpoint forEndpoint(String endpoint) {
+		if (endpoint == null) endpoint = OTHER_ENDPOINT;
+
+		synchronized (endpoints) {
+			Endpoint metrics = endpoints.get(endpoint);
+
+			if (metrics == null) {
+				metrics = new Endpoint(endpoint);
+				endpoints.put(endpoint, metrics);
+			}
+
+			return metrics;
+		}
+	}
+
+	/** Records the timing of a delivered request*/
+	public static void record(String endpoint, PHRequestTiming timing, boolean failed) {
+		if ( ! enabled) return;
+
+		forEndpoint(endpoint).record(timing, failed);
+	}
+
+	/** All endpoints we have seen so far*/
+	public static List<Endpoint> getEndpoints() {
+		synchronized (endpoints) {
+			return new ArrayList<Endpoint>(endpoints.values());
+		}
+	}
+
+	/** Convenience for a single percentile (us) of a phase, 0 if nothing was recorded*/
+	public static long getPercentile(String endpoint, Phase phase, double percentile) {
+		return forEndpoint(endpoint).getHistogram(phase).getPercentile(percentile);
+	}
+
+	/** Turns recording on or off (on by default)*/
+	public static void setEnabled(boolean enabled) {
+		PHNetworkMetrics.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Clears all histograms and counters (after exporting them, for instance)*/
+	public static void reset() {
+		for (Endpoint endpoint : getEndpoints())
+			endpoint.reset();
+	}
+
+	/** All endpoints keyed by name, meant for shipping to telemetry*/
+	public static JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+
+		try {
+			for (Endpoint endpoint : getEndpoints())
+				json.put(endpoint.getName(), endpoint.toJSON());
+
+		} catch (JSONException e) {
+			PHCrashReport.reportCrash(e, "PHNetworkMetrics - toJSON", PHCrashReport.Urgency.low);
+		}
+
+		return json;
+	}
+}
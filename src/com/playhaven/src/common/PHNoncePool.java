@@ -0,0 +1,142 @@
+package com.playhaven.src.common;
+
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Pool of pre-generated request nonces. Generating a nonce means a random UUID (which blocks on
+ * {@link java.security.SecureRandom} and can stall while the entropy pool is cold) plus a SHA1 and base64 encode.
+ * Since requests are mostly created and signed on the UI thread, we do that ahead of time on a background thread
+ * and signing only takes a nonce out of the pool.
+ *
+ * The pool is topped up to {@link #CAPACITY} whenever it drops below {@link #LOW_WATER_MARK}. If it ever runs dry
+ * the nonce is generated on the caller's thread (as before) and counted as an exhaustion.
+ *
+ * If the {@link PHStringUtil#UUID_GENERATOR} has been replaced (tests) the pool is bypassed so the nonces
+ * stay deterministic.
+ */
+public class PHNoncePool {
+
+	/** Nonces we keep around*/
+	public static final int CAPACITY 		= 16;
+
+	/** Below this many nonces we refill*/
+	public static final int LOW_WATER_MARK 	= 4;
+
+	private static PHNoncePool sharedPool;
+
+	private final ConcurrentLinkedQueue<String> nonces = new ConcurrentLinkedQueue<String>();
+
+	// ConcurrentLinkedQueue.size() walks the whole queue
+	private final AtomicInteger size 		= new AtomicInteger();
+
+	private final AtomicBoolean refilling 	= new AtomicBoolean();
+
+	private final AtomicLong exhaustions 	= new AtomicLong();
+
+	private final ExecutorService refillThread;
+
+	public static synchronized PHNoncePool getSharedPool() {
+		if (sharedPool == null)
+			sharedPool = new PHNoncePool();
+
+		return sharedPool;
+	}
+
+	public PHNoncePool() {
+		refillThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "PlayHaven Nonces");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/** Starts filling the pool in the background (if it needs it). Cheap, call it whenever a request is created.*/
+	public void warmUp() {
+		if ( ! PHStringUtil.hasDefaultUUIDGenerator()) return;
+
+		if (size.get() < LOW_WATER_MARK) scheduleRefill();
+	}
+
+	/** Takes a nonce out of the pool, only generating one on this thread if the pool is empty*/
+	public String take() throws UnsupportedEncodingException, NoSuchAlgorithmException {
+		if ( ! PHStringUtil.hasDefaultUUIDGenerator()) {
+			// injected generator (testing), don't hand out nonces generated with the real one
+			discard();
+			return generate();
+		}
+
+		String nonce = nonces.poll();
+
+		if (nonce != null && size.decrementAndGet() < LOW_WATER_MARK)
+			scheduleRefill();
+
+		if (nonce != null) return nonce;
+
+		exhaustions.incrementAndGet();
+		PHStringUtil.log("Nonce pool exhausted, generating nonce on the calling thread");
+
+		scheduleRefill();
+
+		return generate();
+	}
+
+	/** Number of nonces ready to go*/
+	public int getSize() {
+		return size.get();
+	}
+
+	/** How often a nonce had to be generated on the caller's thread since the pool was empty*/
+	public long getExhaustionCount() {
+		return exhaustions.get();
+	}
+
+	/** Throws away all pooled nonces*/
+	public void discard() {
+		while (nonces.poll() != null)
+			size.decrementAndGet();
+	}
+
+	////////////////////////////////////////////////////
+
+	private static String generate() throws UnsupportedEncodingException, NoSuchAlgorithmException {
+		return PHStringUtil.base64Digest(PHStringUtil.generateUUID());
+	}
+
+	private void scheduleRefill() {
+		if ( ! refilling.compareAndSet(false, true)) return; // already on it
+
+		refillThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (size.get() < CAPACITY && PHStringUtil.hasDefaultUUIDGenerator()) {
+						String nonce = generate();
+						
+						// count first so the size never drops below the actual number of nonces
+						size.incrementAndGet();
+						nonces.offer(nonce);
+					}
+
+				} catch (Exception e) {
+					PHCrashReport.reportCrash(e, "PHNoncePool - refill", PHCrashReport.Urgency.low);
+				} finally {
+					refilling.set(false);
+				}
+			}
+		});
+	}
+}
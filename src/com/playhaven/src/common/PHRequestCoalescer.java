@@ -0,0 +1,130 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the {@link PHAPIRequest}s currently on the wire so that identical requests
+ * (e.g. several {@link com.playhaven.src.publishersdk.metadata.PHNotificationView}s refreshing the same placement)
+ * share a single network round-trip.
+ *
+ * The first request for a given key becomes the "leader" and actually hits the network. Any identical request
+ * sent while the leader is in flight becomes a "follower": it is parked here and the leader hands it a copy of
+ * the parsed result once it arrives. All methods must be called from the main UI thread except
+ * {@link #complete(String, PHAPIRequest)} which the leader may call from its background thread.
+ */
+public class PHRequestCoalescer {
+
+	/** Parameters which differ between otherwise identical requests*/
+	private static final String[] UNSTABLE_PARAMS = {"nonce", "signature"};
+
+	private static final HashMap<String, InFlight> inFlight = new HashMap<String, InFlight>();
+
+	private static final AtomicLong coalescedCount = new AtomicLong();
+
+	private static class InFlight {
+		public final PHAPIRequest leader;
+
+		public final ArrayList<PHAPIRequest> followers = new ArrayList<PHAPIRequest>();
+
+		public InFlight(PHAPIRequest leader) {
+			this.leader = leader;
+		}
+	}
+
+	/** Builds the coalescing key: the endpoint plus all the parameters
+	 * (in a stable order) except the nonce, signature and any of the given extra parameters.
+	 */
+	public static String createKey(String baseURL, Map<String, String> params, String... excludedParams) {
+		TreeMap<String, String> sorted = new TreeMap<String, String>(params);
+
+		for (String param : UNSTABLE_PARAMS)
+			sorted.remove(param);
+
+		for (String param : excludedParams)
+			sorted.remove(param);
+
+		StringBuilder key = new StringBuilder(baseURL);
+		key.append('?');
+
+		for (Map.Entry<String, String> entry : sorted.entrySet()) {
+			key.append(entry.getKey());
+			key.append('=');
+			key.append(entry.getValue());
+			key.append('&');
+		}
+
+		return key.toString();
+	}
+
+	/** Registers the request under the given key.
+	 * @return true if an identical request is already in flight and this request was attached to it
+	 * (the caller must then *not* send it), false if this request is now the leader.
+	 */
+	public static boolean join(String key, PHAPIRequest request) {
+		synchronized (inFlight) {
+			InFlight entry = inFlight.get(key);
+
+			if (entry == null) {
+				inFlight.put(key, new InFlight(request));
+				return false;
+			}
+
+			if (entry.leader == request)
+				return false; // the leader is trying again (retry)
+			
+			if (entry.followers.contains(request))
+				return true; // sent twice, already waiting on the result
+
+			entry.followers.add(request);
+
+			coalescedCount.incrementAndGet();
+			return true;
+		}
+	}
+
+	/** Detaches a follower which was cancelled before the leader finished*/
+	public static void leave(String key, PHAPIRequest follower) {
+		synchronized (inFlight) {
+			InFlight entry = inFlight.get(key);
+
+			if (entry != null) entry.followers.remove(follower);
+		}
+	}
+
+	/** Called by the leader once it has its result. Removes the key so that any later
+	 * request goes to the network again.
+	 * @return the followers waiting on the leader (never null)
+	 */
+	public static List<PHAPIRequest> complete(String key, PHAPIRequest leader) {
+		synchronized (inFlight) {
+			InFlight entry = inFlight.get(key);
+
+			if (entry == null || entry.leader != leader) return Collections.emptyList();
+
+			inFlight.remove(key);
+			return entry.followers;
+		}
+	}
+
+	/** Number of requests in flight (not counting followers)*/
+	public static int getInFlightCount() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+
+	/** Number of requests which piggybacked on an identical in-flight request instead of hitting the network*/
+	public static long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public static void resetCoalescedCount() {
+		coalescedCount.set(0);
+	}
+}
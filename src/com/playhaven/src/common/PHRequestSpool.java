@@ -0,0 +1,548 @@
+package com.playhaven.src.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.playhaven.src.common.PHConfig.ConnectionType;
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Durable spool for requests we can't afford to lose (open, IAP tracking, crash reports). When such a request
+ * fails because we couldn't reach the server, it is written to disk and replayed once we have connectivity again
+ * (see {@link PHConnectionManager}), even if the process died in the meantime.
+ *
+ * The spool is an append-only journal in the spirit of {@link com.jakewharton.DiskLruCache}'s:
+ * <pre>
+ * ADD {"id":"...","ts":1350000000000,"url":"...","type":"Get","params":{...},"post":{...}}
+ * DONE id
+ * </pre>
+ * On startup we replay the journal to find the requests still pending. When the journal has collected
+ * enough redundant lines it is rewritten with only the pending requests.
+ *
+ * The spool is capped at {@link #MAX_SPOOL_BYTES} (oldest requests are dropped first) and requests older
+ * than {@link #MAX_AGE} are discarded. All file access happens on a single background thread so enqueueing
+ * only costs the caller a copy of the parameters.
+ */
+public class PHRequestSpool implements PHConnectionManager.ConnectivityListener {
+
+	public static final String SPOOL_SUBDIR 	 = "phspool";
+
+	public static final String JOURNAL_FILE 	 = "journal";
+
+	public static final String JOURNAL_FILE_TMP  = "journal.tmp";
+
+	/** Upper bound on the (serialized) size of all pending requests*/
+	public static final long MAX_SPOOL_BYTES 	 = 256 * 1024;
+
+	/** Requests older than this (ms) are no longer worth replaying*/
+	public static final long MAX_AGE 			 = 7 * 24 * 60 * 60 * 1000L;
+
+	/** Number of requests we replay at once*/
+	public static final int DRAIN_BATCH_SIZE 	 = 10;
+
+	// redundant journal lines before we rewrite the journal
+	private static final int COMPACT_THRESHOLD 	 = 100;
+
+	private static final String ADD 	= "ADD";
+
+	private static final String DONE 	= "DONE";
+
+	private static PHRequestSpool sharedSpool;
+
+	private final Context context;
+
+	private final File journalFile;
+
+	private final File journalFileTmp;
+
+	private final ExecutorService writerThread;
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// only touched on the writer thread
+	private final LinkedHashMap<String, Record> pending = new LinkedHashMap<String, Record>();
+
+	private long pendingBytes;
+
+	private int redundantLines;
+
+	private Writer journalWriter;
+
+	// readable from any thread
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	// record ids: the time (unique across runs) plus a counter (unique within a run), no random generator on the UI thread
+	private static final AtomicLong recordSequence = new AtomicLong();
+
+	/** A single spooled request*/
+	public static class Record {
+		public final String id;
+
+		/** When the request was originally made*/
+		public final long timestamp;
+
+		public final String url;
+
+		public final PHAsyncRequest.RequestType type;
+
+		public final Hashtable<String, String> params;
+
+		public final Hashtable<String, String> postParams;
+
+		// the serialized ADD line (set on the writer thread)
+		private String line;
+
+		public Record(String id, long timestamp, String url, PHAsyncRequest.RequestType type, Hashtable<String, String> params, Hashtable<String, String> postParams) {
+			this.id 		= id;
+			this.timestamp 	= timestamp;
+			this.url 		= url;
+			this.type 		= type;
+			this.params 	= params;
+			this.postParams = postParams;
+		}
+
+		private String toLine() throws JSONException {
+			if (line == null) {
+				JSONObject json = new JSONObject();
+
+				json.put("id", 	 id);
+				json.put("ts", 	 timestamp);
+				json.put("url",  url);
+				json.put("type", type.name());
+				json.put("params", new JSONObject(params));
+
+				if (postParams != null)
+					json.put("post", new JSONObject(postParams));
+
+				line = ADD + ' ' + json.toString();
+			}
+
+			return line;
+		}
+
+		private static Record fromJSON(JSONObject json) throws JSONException {
+			JSONObject post = json.optJSONObject("post");
+
+			Record record = new Record(json.getString("id"),
+									   json.getLong("ts"),
+									   json.getString("url"),
+									   PHAsyncRequest.RequestType.valueOf(json.getString("type")),
+									   toTable(json.getJSONObject("params")),
+									   (post != null ? toTable(post) : null));
+			return record;
+		}
+
+		private static Hashtable<String, String> toTable(JSONObject json) throws JSONException {
+			Hashtable<String, String> table = new Hashtable<String, String>();
+
+			Iterator<?> keys = json.keys();
+			while (keys.hasNext()) {
+				String key = (String)keys.next();
+				table.put(key, json.getString(key));
+			}
+
+			return table;
+		}
+	}
+
+	/////////////////////////////////////////////////////
+
+	/** Creates the shared spool (in the application files directory so that it survives the cache being cleared)
+	 * and replays any requests left over from a previous run once we are online.
+	 */
+	public static synchronized PHRequestSpool getSharedSpool(Context context) {
+		if (sharedSpool == null && context != null) {
+			Context appContext = context.getApplicationContext();
+
+			sharedSpool = new PHRequestSpool(appContext, new File(appContext.getFilesDir(), SPOOL_SUBDIR));
+
+			PHConnectionManager.addConnectivityListener(appContext, sharedSpool);
+
+			if (PHConnectionManager.isConnected(appContext))
+				sharedSpool.drain();
+		}
+
+		return sharedSpool;
+	}
+
+	/** Gets the shared spool if it has been created*/
+	public static synchronized PHRequestSpool getSharedSpool() {
+		return sharedSpool;
+	}
+
+	public PHRequestSpool(Context context, File directory) {
+		this.context 		= context;
+		this.journalFile 	= new File(directory, JOURNAL_FILE);
+		this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+
+		writerThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "PlayHaven Spool");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		writerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				load();
+			}
+		});
+	}
+
+	/** Spools the (failed) request for later. Only copies the parameters, the disk is written in the background.*/
+	public void enqueue(PHAPIRequest request) {
+		try {
+			// the nonce and signature are regenerated when we replay
+			Hashtable<String, String> params = new Hashtable<String, String>(request.getSignedParams());
+			params.remove("nonce");
+			params.remove("signature");
+
+			Hashtable<String, String> postParams = (request.getRequestType() == PHAsyncRequest.RequestType.Post
+														? request.getPostParams()
+														: null);
+
+			long timestamp = System.currentTimeMillis();
+
+			final Record record = new Record(Long.toString(timestamp, 36) + '-' + recordSequence.incrementAndGet(),
+											 timestamp,
+											 request.baseURL(),
+											 request.getRequestType(),
+											 params,
+											 (postParams != null ? new Hashtable<String, String>(postParams) : null));
+
+			writerThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					append(record);
+				}
+			});
+
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHRequestSpool - enqueue", PHCrashReport.Urgency.low);
+		}
+	}
+
+	/** Number of requests waiting to be replayed*/
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/** Replays the pending requests in batches until we're done or the network fails again. 
+	 * Safe to call from any thread (the requests are always sent from the main UI thread).
+	 */
+	public void drain() {
+		if ( ! draining.compareAndSet(false, true)) return;
+
+		writerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				final List<Record> batch = nextBatch();
+
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						replay(batch);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void connectivityChanged(ConnectionType type) {
+		if (type == ConnectionType.MOBILE || type == ConnectionType.WIFI)
+			drain();
+	}
+
+	////////////////////////////////////////////////////
+	//////////////////// Replaying /////////////////////
+
+	/** Sends the batch and moves on to the next batch once they have all finished*/
+	private void replay(List<Record> batch) {
+		if (batch.size() == 0) {
+			draining.set(false);
+			return;
+		}
+
+		PHStringUtil.log("Replaying " + batch.size() + " spooled requests");
+
+		final int[] remaining 	 	= { batch.size() };
+		final boolean[] offline 	= { false };
+
+		PHAPIRequest.Delegate delegate = new PHAPIRequest.Delegate() {
+			@Override
+			public void requestSucceeded(PHAPIRequest request, JSONObject responseData) {
+				finished(request, true);
+			}
+
+			@Override
+			public void requestFailed(PHAPIRequest request, Exception e) {
+				if (isDeliveryFailure(e)) {
+					offline[0] = true; // keep it and try again next time
+					finished(request, false);
+				} else {
+					PHStringUtil.log("Dropping spooled request the server rejected: " + e.getMessage());
+					finished(request, true);
+				}
+			}
+
+			private void finished(PHAPIRequest request, boolean done) {
+				if (done) remove(((PHSpooledRequest)request).getRecord());
+
+				if (--remaining[0] > 0) return;
+
+				draining.set(false);
+
+				if ( ! offline[0]) drain(); // next batch
+			}
+		};
+
+		for (Record record : batch)
+			new PHSpooledRequest(context, record, delegate).send();
+	}
+
+	/** Was the request lost on the way (as opposed to rejected by the server)?*/
+	public static boolean isDeliveryFailure(Exception e) {
+		if (e instanceof PHHttpStatusException)
+			return ((PHHttpStatusException)e).isServerError();
+
+		return (e instanceof IOException);
+	}
+
+	private void remove(final Record record) {
+		writerThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(record.id) == null) return;
+
+				pendingBytes -= lineLength(record);
+				pendingCount.decrementAndGet();
+
+				writeLine(DONE + ' ' + record.id);
+				redundantLines += 2;
+
+				compactIfNeeded();
+			}
+		});
+	}
+
+	////////////////////////////////////////////////////
+	/////////////// Journal (writer thread) ////////////
+
+	private void load() {
+		pending.clear();
+		pendingBytes 	= 0;
+		redundantLines 	= 0;
+
+		if (journalFile.exists()) {
+			BufferedReader reader = null;
+
+			try {
+				reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+
+				String line;
+				while ((line = reader.readLine()) != null) {
+					try {
+						if (line.startsWith(ADD + ' ')) {
+							Record record = Record.fromJSON(new JSONObject(line.substring(ADD.length() + 1)));
+							record.line   = line;
+
+							pending.put(record.id, record);
+							pendingBytes += lineLength(record);
+
+						} else if (line.startsWith(DONE + ' ')) {
+							Record record = pending.remove(line.substring(DONE.length() + 1));
+
+							if (record != null) pendingBytes -= lineLength(record);
+
+							redundantLines += 2;
+
+						} else {
+							redundantLines++;
+						}
+
+					} catch (Exception e) {
+						// most likely the last line, cut short when the process died
+						redundantLines++;
+					}
+				}
+
+			} catch (IOException e) {
+				PHCrashReport.reportCrash(e, "PHRequestSpool - load", PHCrashReport.Urgency.low);
+
+			} finally {
+				closeQuietly(reader);
+			}
+		}
+
+		dropExpired();
+		enforceSizeCap();
+
+		pendingCount.set(pending.size());
+
+		compactIfNeeded();
+	}
+
+	private void append(Record record) {
+		try {
+			writeLine(record.toLine());
+
+			pending.put(record.id, record);
+			pendingBytes += lineLength(record);
+			pendingCount.incrementAndGet();
+
+			enforceSizeCap();
+			compactIfNeeded();
+
+		} catch (JSONException e) {
+			PHCrashReport.reportCrash(e, "PHRequestSpool - append", PHCrashReport.Urgency.low);
+		}
+	}
+
+	private List<Record> nextBatch() {
+		dropExpired();
+
+		ArrayList<Record> batch = new ArrayList<Record>(DRAIN_BATCH_SIZE);
+
+		for (Record record : pending.values()) {
+			if (batch.size() == DRAIN_BATCH_SIZE) break;
+
+			batch.add(record);
+		}
+
+		return batch;
+	}
+
+	private void dropExpired() {
+		long oldest = System.currentTimeMillis() - MAX_AGE;
+
+		Iterator<Map.Entry<String, Record>> entries = pending.entrySet().iterator();
+		while (entries.hasNext()) {
+			Record record = entries.next().getValue();
+
+			if (record.timestamp >= oldest) continue;
+
+			PHStringUtil.log("Dropping expired spooled request: " + record.url);
+
+			entries.remove();
+			dropped(record);
+		}
+	}
+
+	/** Drops the oldest requests until we fit (always keeping the newest)*/
+	private void enforceSizeCap() {
+		Iterator<Map.Entry<String, Record>> entries = pending.entrySet().iterator();
+
+		while (pendingBytes > MAX_SPOOL_BYTES && pending.size() > 1 && entries.hasNext()) {
+			Record record = entries.next().getValue();
+
+			PHStringUtil.log("Spool full, dropping request: " + record.url);
+
+			entries.remove();
+			dropped(record);
+		}
+	}
+
+	private void dropped(Record record) {
+		pendingBytes -= lineLength(record);
+		redundantLines++;
+		pendingCount.decrementAndGet();
+	}
+
+	private void compactIfNeeded() {
+		if (redundantLines < COMPACT_THRESHOLD) return;
+
+		Writer writer = null;
+
+		try {
+			closeQuietly(journalWriter);
+			journalWriter = null;
+
+			journalFileTmp.getParentFile().mkdirs();
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFileTmp), "UTF-8"));
+
+			for (Record record : pending.values()) {
+				writer.write(record.toLine());
+				writer.write('\n');
+			}
+
+			writer.close();
+			writer = null;
+
+			if ( ! journalFileTmp.renameTo(journalFile))
+				throw new IOException("Could not replace the spool journal");
+
+			redundantLines = 0;
+
+		} catch (Exception e) {
+			PHCrashReport.reportCrash(e, "PHRequestSpool - compact", PHCrashReport.Urgency.low);
+
+		} finally {
+			closeQuietly(writer);
+		}
+	}
+
+	private void writeLine(String line) {
+		try {
+			if (journalWriter == null) {
+				journalFile.getParentFile().mkdirs();
+				journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+			}
+
+			journalWriter.write(line);
+			journalWriter.write('\n');
+			journalWriter.flush(); // survive the process being killed
+
+		} catch (IOException e) {
+			closeQuietly(journalWriter);
+			journalWriter = null;
+
+			PHCrashReport.reportCrash(e, "PHRequestSpool - writeLine", PHCrashReport.Urgency.low);
+		}
+	}
+
+	private static long lineLength(Record record) {
+		return (record.line != null ? record.line.length() + 1 : 0);
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable == null) return;
+
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// pass
+		}
+	}
+}
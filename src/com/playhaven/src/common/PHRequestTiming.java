@@ -0,0 +1,138 @@
+package com.playhaven.src.common;
+
+import com.playhaven.src.common.PHNetworkMetrics.Phase;
+
+/**
+ * Timestamps (from {@link System#nanoTime()}) of the milestones of a single {@link PHAsyncRequest}.
+ * The request marks them as it goes and records the resulting phases into the {@link PHNetworkMetrics}
+ * once delivered. Marks are cheap and never allocate.
+ *
+ * Milestones which didn't happen (such as the network ones when the response came from the cache) stay at 0
+ * and their phases are left out.
+ */
+public class PHRequestTiming {
+
+	private volatile long queued;
+
+	private volatile long started;
+
+	private volatile long sent;
+
+	private volatile long connected;
+
+	private volatile long firstByte;
+
+	private volatile long downloaded;
+
+	private volatile long decoded;
+
+	private volatile long finished;
+
+	private volatile long delivered;
+
+	private volatile int connection = PHTransport.Request.CONNECTION_UNKNOWN;
+
+	private volatile boolean cached;
+
+	/** Forgets all marks (a request may be executed more than once)*/
+	public void reset() {
+		queued 	   = started = sent = connected = firstByte = 0;
+		downloaded = decoded = finished = delivered = 0;
+		connection = PHTransport.Request.CONNECTION_UNKNOWN;
+		cached 	   = false;
+	}
+
+	public void markQueued() {
+		queued = System.nanoTime();
+	}
+
+	public void markStarted() {
+		started = System.nanoTime();
+	}
+
+	public void markSent() {
+		sent = System.nanoTime();
+	}
+
+	/** Takes the connection milestone from the request as reported by the transport*/
+	public void markConnected(PHTransport.Request request) {
+		connected  = request.getConnectedTime();
+		connection = request.getConnectionState();
+	}
+
+	public void markFirstByte() {
+		firstByte = System.nanoTime();
+	}
+
+	public void markDownloaded() {
+		downloaded = System.nanoTime();
+	}
+
+	public void markDecoded() {
+		decoded = System.nanoTime();
+	}
+
+	public void markFinished() {
+		finished = System.nanoTime();
+	}
+
+	public void markDelivered() {
+		delivered = System.nanoTime();
+	}
+
+	/** The response came from the cache, no network involved*/
+	public void markCached() {
+		cached = true;
+	}
+
+	public boolean isCached() {
+		return cached;
+	}
+
+	public boolean isConnectionNew() {
+		return (connection == PHTransport.Request.CONNECTION_NEW);
+	}
+
+	public boolean isConnectionReused() {
+		return (connection == PHTransport.Request.CONNECTION_REUSED);
+	}
+
+	/** Duration (us) of the given phase or -1 if it didn't happen (or we can't tell)*/
+	public long getDuration(Phase phase) {
+		switch (phase) {
+			case Queue: 	return between(queued, started);
+			case Connect: 	return between(sent, connected);
+			case FirstByte: return between((connected != 0 ? connected : sent), firstByte);
+			case Download: 	return between(firstByte, downloaded);
+			case Decode: 	return between(downloaded, decoded);
+			case Delivery: 	return between(finished, delivered);
+			case Total: 	return between((queued != 0 ? queued : started), delivered);
+			default: 		return -1;
+		}
+	}
+
+	private static long between(long from, long to) {
+		if (from == 0 || to == 0 || to < from) return -1;
+
+		return (to - from) / 1000;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+
+		for (Phase phase : Phase.values()) {
+			long duration = getDuration(phase);
+			if (duration < 0) continue;
+
+			if (builder.length() > 0) builder.append(", ");
+			builder.append(phase.name()).append(": ").append(duration / 1000.0).append(" ms");
+		}
+
+		if (isConnectionNew()) 	  builder.append(" (new connection)");
+		if (isConnectionReused()) builder.append(" (reused connection)");
+		if (isCached()) 		  builder.append(" (cached)");
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,417 @@
+package com.playhaven.src.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+import android.content.Context;
+
+import com.jakewharton.DiskLruCache;
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Cache for API responses which follows the usual HTTP caching semantics. Responses are kept
+ * in a small in-memory LRU backed by a {@link DiskLruCache} of its own (the shared disk cache belongs to precaching).
+ *
+ * A response is only stored if the server allows it (no <code>no-store</code>) and gives us something to
+ * work with: a <code>max-age</code> and/or a validator (<code>ETag</code> or <code>Last-Modified</code>).
+ * Fresh responses are served without touching the network, stale ones are revalidated with
+ * <code>If-None-Match</code> / <code>If-Modified-Since</code>. Within the stale-while-revalidate
+ * window a stale response may be served immediately while it is revalidated in the background.
+ *
+ * Used by {@link PHAsyncRequest} on the background threads, so all methods are thread safe.
+ */
+public class PHResponseCache {
+
+	public static final String CACHE_SUBDIR 		= "apiresponses";
+
+	public static final int DISK_CACHE_VERSION 		= 1;
+
+	public static final long DISK_CACHE_SIZE 		= 512 * 1024;
+
+	public static final int MAX_MEMORY_ENTRIES 		= 32;
+
+	// indices of the values in each disk cache entry
+	private static final int HEADERS_INDEX 			= 0;
+
+	private static final int BODY_INDEX 			= 1;
+
+	private static PHResponseCache sharedCache;
+
+	private final File directory;
+
+	private DiskLruCache diskCache;
+
+	private final LinkedHashMap<String, Entry> memoryCache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PHResponseCache.Entry> eldest) {
+			return size() > MAX_MEMORY_ENTRIES;
+		}
+	};
+
+	private final HashMap<String, Stats> stats = new HashMap<String, Stats>();
+
+	/** A single cached response*/
+	public static class Entry {
+		public final byte[] body;
+
+		public final String etag;
+
+		public final String lastModified;
+
+		/** When we received (or last revalidated) the response*/
+		public final long receivedAt;
+
+		/** How long the response is fresh (ms)*/
+		public final long maxAge;
+
+		/** How long past its freshness the server lets us serve the response while revalidating (ms)*/
+		public final long staleWhileRevalidate;
+
+		/** Server insists on revalidation once stale*/
+		public final boolean mustRevalidate;
+
+		public Entry(byte[] body, String etag, String lastModified, long receivedAt, long maxAge, long staleWhileRevalidate, boolean mustRevalidate) {
+			this.body 					= body;
+			this.etag 					= etag;
+			this.lastModified 			= lastModified;
+			this.receivedAt 			= receivedAt;
+			this.maxAge 				= maxAge;
+			this.staleWhileRevalidate 	= staleWhileRevalidate;
+			this.mustRevalidate 		= mustRevalidate;
+		}
+
+		public boolean isFresh(long now) {
+			return (now - receivedAt < maxAge);
+		}
+
+		/** Can we serve the stale response while revalidating?
+		 * @param defaultStaleWindow the window (ms) the caller allows if the server didn't specify one
+		 */
+		public boolean isUsableWhileRevalidating(long now, long defaultStaleWindow) {
+			if (mustRevalidate) return false;
+
+			long window = Math.max(staleWhileRevalidate, defaultStaleWindow);
+
+			return (now - receivedAt < maxAge + window);
+		}
+
+		/** Creates an entry from a fresh 200 response.
+		 * @return the entry or null if the response must not (or need not) be cached
+		 */
+		public static Entry fromResponse(PHTransport.Response response, byte[] body, long now) {
+			return fromHeaders(response, body, null, null, now);
+		}
+
+		/** Would {@link #fromResponse} keep the response? Lets callers decide before reading the body.*/
+		public static boolean isStorable(PHTransport.Response response) {
+			return (fromHeaders(response, null, null, null, 0) != null);
+		}
+
+		/** Applies the headers of a 304 response. The server may update the validators and freshness.*/
+		public Entry revalidated(PHTransport.Response response, long now) {
+			Entry entry = fromHeaders(response, body, etag, lastModified, now);
+
+			return (entry != null ? entry : this);
+		}
+
+		private static Entry fromHeaders(PHTransport.Response response, byte[] body, String etag, String lastModified, long now) {
+			long maxAge 				= -1;
+			long staleWhileRevalidate 	= 0;
+			boolean mustRevalidate 		= false;
+
+			for (String header : response.getHeaders("Cache-Control")) {
+				for (String directive : header.split(",")) {
+					directive = directive.trim().toLowerCase();
+
+					if (directive.equals("no-store"))
+						return null;
+					else if (directive.equals("no-cache")) {
+						maxAge 		   = 0;
+						mustRevalidate = true; // never serve without asking first
+					}
+					else if (directive.equals("must-revalidate"))
+						mustRevalidate = true;
+					else if (directive.startsWith("max-age=") && maxAge != 0)
+						maxAge = parseSeconds(directive.substring("max-age=".length()));
+					else if (directive.startsWith("stale-while-revalidate="))
+						staleWhileRevalidate = parseSeconds(directive.substring("stale-while-revalidate=".length()));
+				}
+			}
+
+			String etagHeader 	  = response.getHeader("ETag");
+			String modifiedHeader = response.getHeader("Last-Modified");
+
+			if (etagHeader != null) 	etag 		 = etagHeader;
+			if (modifiedHeader != null) lastModified = modifiedHeader;
+
+			// nothing to gain from a response we can neither serve nor revalidate
+			if (maxAge <= 0 && etag == null && lastModified == null) return null;
+
+			return new Entry(body, etag, lastModified, now, Math.max(maxAge, 0), staleWhileRevalidate, mustRevalidate);
+		}
+
+		private static long parseSeconds(String value) {
+			try {
+				return Math.max(Long.parseLong(value.trim()), 0) * 1000;
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+	}
+
+	/** Per endpoint statistics*/
+	public static class Stats {
+		private final AtomicLong hits 			= new AtomicLong();
+
+		private final AtomicLong staleHits 		= new AtomicLong();
+
+		private final AtomicLong revalidations 	= new AtomicLong();
+
+		private final AtomicLong misses 		= new AtomicLong();
+
+		/** Fresh responses served without touching the network*/
+		public long getHits() {
+			return hits.get();
+		}
+
+		/** Stale responses served while revalidating in the background*/
+		public long getStaleHits() {
+			return staleHits.get();
+		}
+
+		/** Stale responses the server confirmed (304)*/
+		public long getRevalidations() {
+			return revalidations.get();
+		}
+
+		/** Full responses fetched from the network*/
+		public long getMisses() {
+			return misses.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits: %d, stale hits: %d, revalidations: %d, misses: %d",
+								 getHits(), getStaleHits(), getRevalidations(), getMisses());
+		}
+	}
+
+	////////////////////////////////////////////////////
+
+	/** Creates the shared cache in the application cache directory. Cheap to call repeatedly:
+	 * the disk cache is only opened on first use (on a background thread).
+	 */
+	public static synchronized PHResponseCache getSharedCache(Context context) {
+		if (sharedCache == null && context != null)
+			sharedCache = new PHResponseCache(new File(context.getCacheDir(), CACHE_SUBDIR));
+
+		return sharedCache;
+	}
+
+	/** Gets the shared cache if it has been created*/
+	public static synchronized PHResponseCache getSharedCache() {
+		return sharedCache;
+	}
+
+	/** Set the shared cache, only meant for testing purposes.*/
+	public static synchronized void setSharedCache(PHResponseCache cache) {
+		sharedCache = cache;
+	}
+
+	/** @param directory the disk cache directory or null for a memory-only cache*/
+	public PHResponseCache(File directory) {
+		this.directory = directory;
+	}
+
+	/** Looks up a response (memory first, then disk).*/
+	public Entry get(String key) {
+		synchronized (memoryCache) {
+			Entry entry = memoryCache.get(key);
+			if (entry != null) return entry;
+		}
+
+		Entry entry = readFromDisk(key);
+
+		if (entry != null) {
+			synchronized (memoryCache) {
+				memoryCache.put(key, entry);
+			}
+		}
+
+		return entry;
+	}
+
+	public void put(String key, Entry entry) {
+		synchronized (memoryCache) {
+			memoryCache.put(key, entry);
+		}
+
+		writeToDisk(key, entry);
+	}
+
+	public void remove(String key) {
+		synchronized (memoryCache) {
+			memoryCache.remove(key);
+		}
+
+		try {
+			DiskLruCache cache = getDiskCache();
+			if (cache != null) cache.remove(diskKey(key));
+
+		} catch (Exception e) {
+			PHCrashReport.reportCrash(e, "PHResponseCache - remove", PHCrashReport.Urgency.low);
+		}
+	}
+
+	/** Drops the in-memory tier (for low memory situations)*/
+	public void trimMemory() {
+		synchronized (memoryCache) {
+			memoryCache.clear();
+		}
+	}
+
+	////////////////////////////////////////////////////
+	////////////////// Statistics //////////////////////
+
+	/** Gets the statistics for the given endpoint (base url without any parameters). Never null.*/
+	public Stats getStats(String endpoint) {
+		synchronized (stats) {
+			Stats endpointStats = stats.get(endpoint);
+
+			if (endpointStats == null) {
+				endpointStats = new Stats();
+				stats.put(endpoint, endpointStats);
+			}
+
+			return endpointStats;
+		}
+	}
+
+	/** Snapshot of the statistics for all endpoints we have seen*/
+	public Map<String, Stats> getAllStats() {
+		synchronized (stats) {
+			return new HashMap<String, Stats>(stats);
+		}
+	}
+
+	public void recordHit(String endpoint) {
+		getStats(endpoint).hits.incrementAndGet();
+	}
+
+	public void recordStaleHit(String endpoint) {
+		getStats(endpoint).staleHits.incrementAndGet();
+	}
+
+	public void recordRevalidation(String endpoint) {
+		getStats(endpoint).revalidations.incrementAndGet();
+	}
+
+	public void recordMiss(String endpoint) {
+		getStats(endpoint).misses.incrementAndGet();
+	}
+
+	////////////////////////////////////////////////////
+	/////////////////// Disk Tier //////////////////////
+
+	private synchronized DiskLruCache getDiskCache() throws IOException {
+		if (directory == null) return null;
+
+		if (diskCache == null) {
+			diskCache = new DiskLruCache(directory, DISK_CACHE_VERSION, 2, DISK_CACHE_SIZE);
+			diskCache.open();
+
+		} else if (diskCache.isClosed()) {
+			diskCache.open();
+		}
+
+		return diskCache;
+	}
+
+	/** The disk cache only accepts simple keys, so we hash ours*/
+	private static String diskKey(String key) throws Exception {
+		return PHStringUtil.hexDigest(key);
+	}
+
+	private Entry readFromDisk(String key) {
+		DiskLruCache.Snapshot snapshot = null;
+
+		try {
+			DiskLruCache cache = getDiskCache();
+			if (cache == null) return null;
+
+			snapshot = cache.get(diskKey(key));
+			if (snapshot == null) return null;
+
+			String[] headers = snapshot.getString(HEADERS_INDEX).split("\n", -1);
+
+			if (headers.length != 6) return null; // written by someone else?
+
+			InputStream in = snapshot.getInputStream(BODY_INDEX);
+			byte[] body    = new byte[(int)snapshot.getInputStreamFile(BODY_INDEX).length()];
+
+			int total = 0;
+			while (total < body.length) {
+				int read = in.read(body, total, body.length - total);
+				if (read == -1) return null; // truncated
+				total += read;
+			}
+
+			return new Entry(body,
+							 (headers[0].length() > 0 ? headers[0] : null),
+							 (headers[1].length() > 0 ? headers[1] : null),
+							 Long.parseLong(headers[2]),
+							 Long.parseLong(headers[3]),
+							 Long.parseLong(headers[4]),
+							 Boolean.parseBoolean(headers[5]));
+
+		} catch (Exception e) { // a broken entry is just a miss
+			PHCrashReport.reportCrash(e, "PHResponseCache - readFromDisk", PHCrashReport.Urgency.low);
+			return null;
+
+		} finally {
+			if (snapshot != null) snapshot.close();
+		}
+	}
+
+	private void writeToDisk(String key, Entry entry) {
+		try {
+			DiskLruCache cache = getDiskCache();
+			if (cache == null) return;
+
+			DiskLruCache.Editor editor = cache.edit(diskKey(key));
+			if (editor == null) return; // someone else is writing this entry
+
+			try {
+				editor.set(HEADERS_INDEX, (entry.etag != null ? entry.etag : "") 				 + "\n" +
+										  (entry.lastModified != null ? entry.lastModified : "") + "\n" +
+										  entry.receivedAt 										 + "\n" +
+										  entry.maxAge 											 + "\n" +
+										  entry.staleWhileRevalidate 							 + "\n" +
+										  entry.mustRevalidate);
+
+				OutputStream out = editor.newOutputStream(BODY_INDEX);
+				out.write(entry.body);
+				out.close();
+
+				editor.commit();
+				cache.flush(); // so the entry survives the process being killed
+
+			} catch (IOException e) {
+				editor.abort();
+				throw e;
+			}
+
+		} catch (Exception e) {
+			PHCrashReport.reportCrash(e, "PHResponseCache - writeToDisk", PHCrashReport.Urgency.low);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides if (and when) a failed {@link PHAPIRequest} is tried again. The default policy:
+ * <ul>
+ * <li>only retries network failures and server errors (5xx, 408, 429), never client errors or bad responses</li>
+ * <li>only retries idempotent requests: anything but a POST, or a POST which carries an idempotency key
+ * (see {@link PHAPIRequest#getIdempotencyKey()})</li>
+ * <li>waits a random time between 0 and a capped exponential backoff ("full jitter") so that
+ * clients which failed together don't all come back at the same moment</li>
+ * </ul>
+ * Subclasses can override any of the steps. Pass a seeded {@link Random} and a test {@link PHClock}
+ * (which the retries are scheduled on) for deterministic tests.
+ */
+public class PHRetryPolicy {
+
+	/** Returned by {@link #getRetryDelay} when we should give up*/
+	public static final long NO_RETRY 				= -1;
+
+	public static final int DEFAULT_MAX_RETRIES 	= 3;
+
+	public static final long DEFAULT_BASE_DELAY 	= 1000;
+
+	public static final long DEFAULT_MAX_DELAY 		= 30 * 1000;
+
+	/** Never retries*/
+	public static final PHRetryPolicy NONE 			= new PHRetryPolicy(0, 0, 0);
+
+	private static PHRetryPolicy defaultPolicy 		= new PHRetryPolicy(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+
+	private final int maxRetries;
+
+	private final long baseDelay;
+
+	private final long maxDelay;
+
+	private Random random = new Random();
+
+	private PHClock clock = PHClock.SYSTEM;
+
+	/**
+	 * @param maxRetries how many times we retry after the first attempt
+	 * @param baseDelay the backoff (ms) for the first retry, doubled for every further retry
+	 * @param maxDelay cap on the backoff (ms)
+	 */
+	public PHRetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		this.maxRetries = maxRetries;
+		this.baseDelay 	= baseDelay;
+		this.maxDelay 	= maxDelay;
+	}
+
+	/** The policy used by requests which don't override {@link PHAPIRequest#getRetryPolicy()}*/
+	public static synchronized PHRetryPolicy getDefault() {
+		return defaultPolicy;
+	}
+
+	public static synchronized void setDefault(PHRetryPolicy policy) {
+		defaultPolicy = (policy != null ? policy : NONE);
+	}
+
+	public synchronized void setRandom(Random random) {
+		this.random = random;
+	}
+
+	/** The clock the retries are scheduled on*/
+	public synchronized void setClock(PHClock clock) {
+		this.clock = (clock != null ? clock : PHClock.SYSTEM);
+	}
+
+	public synchronized PHClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @param request the failed request
+	 * @param error why it failed
+	 * @param retry the number of the retry we are considering (1 for the first retry)
+	 * @return the delay (ms) before retrying or {@link #NO_RETRY}
+	 */
+	public long getRetryDelay(PHAPIRequest request, Exception error, int retry) {
+		if (retry > maxRetries || ! isRetryable(error) || ! isIdempotent(request))
+			return NO_RETRY;
+
+		return getBackoff(retry);
+	}
+
+	/** Only transient failures are worth retrying*/
+	public boolean isRetryable(Exception error) {
+		if (error instanceof PHCircuitOpenException) return false; // we didn't even try
+
+		if (error instanceof PHHttpStatusException)
+			return ((PHHttpStatusException)error).isServerError();
+
+		return (error instanceof IOException);
+	}
+
+	/** Is it safe to send the request more than once?*/
+	public boolean isIdempotent(PHAPIRequest request) {
+		return (request.getRequestType() != PHAsyncRequest.RequestType.Post ||
+				request.getIdempotencyKey() != null);
+	}
+
+	/** Random delay between 0 and the capped exponential backoff for the given retry ("full jitter")*/
+	public long getBackoff(int retry) {
+		long ceiling = baseDelay << Math.min(retry - 1, 30);
+
+		if (ceiling <= 0 || ceiling > maxDelay) ceiling = maxDelay; // cap (and overflow)
+
+		synchronized (this) {
+			return (long)(random.nextDouble() * ceiling);
+		}
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+}
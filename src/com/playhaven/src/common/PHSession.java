@@ -1,8 +1,9 @@
 package com.playhaven.src.common;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import android.app.Activity;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
@@ -12,6 +13,10 @@ import com.playhaven.src.utils.PHStringUtil;
 /**
  * A session is defined as the in-game time spent by a user between two {@link PHPublisherOpenRequest}. This class is a singleton.
  * 
+ * The session state is immutable and swapped atomically, so the session can be read and updated from any thread without locking.
+ * The totals are persisted by a {@link PHSessionStore} which writes in the background: saves on pause are coalesced and 
+ * delayed, an activity which is finishing flushes right away.
+ * 
  * @author andreiciortea
  *
  */
@@ -20,36 +25,71 @@ public class PHSession {
     public static final String SSUM_PREF   = "com_playhaven_time_in_game_ssum";
     public static final String SCOUNT_PREF = "com_playhaven_time_in_game_scount";
     
-    private long mTotalTime;
-    private long mSessionTime;
-    private long mCurTime;
-    private long mSessionCount;
+    private final AtomicReference<State> mState = new AtomicReference<State>();
     
-    private boolean mSessionStarted;
-    private boolean mSessionPaused;
+    private final PHSessionStore mStore;
 
-    private static PHSession mSession = null;
+    private static final AtomicReference<PHSession> mSession = new AtomicReference<PHSession>();
+    
+    /** Immutable snapshot of the session. Every change creates a new one.*/
+    private static final class State {
+        final long totalTime;
+        final long sessionTime;
+        final long curTime;
+        final long sessionCount;
+        
+        final boolean sessionStarted;
+        final boolean sessionPaused;
+        
+        State(long totalTime, long sessionTime, long curTime, long sessionCount, boolean sessionStarted, boolean sessionPaused) {
+            this.totalTime      = totalTime;
+            this.sessionTime    = sessionTime;
+            this.curTime        = curTime;
+            this.sessionCount   = sessionCount;
+            this.sessionStarted = sessionStarted;
+            this.sessionPaused  = sessionPaused;
+        }
+        
+        long getLastElapsedTime() {
+            return (!sessionStarted || sessionPaused) 
+                        ? 0
+                        : ((SystemClock.uptimeMillis() - curTime) / 1000);
+        }
+        
+        long getSessionTime() {
+            return (sessionTime + getLastElapsedTime());
+        }
+    }
     
     private PHSession(Context context) {
-        inflate(context);
-        mSessionStarted = false;
-        mSessionPaused = true;
+        mStore = new PHSessionStore(PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext()));
+        
+        PHSessionStore.Values values = mStore.load();
+        mState.set(new State(values.totalTime, 0, SystemClock.uptimeMillis(), values.sessionCount, false, true));
     }
     
     public static PHSession getInstance(Context context) {
-        if (mSession == null) {
-            mSession = new PHSession(context);
-        }
+        PHSession session = mSession.get();
+        if (session != null) return session;
+        
+        // someone else may have been quicker, theirs wins
+        mSession.compareAndSet(null, new PHSession(context));
         
-        return mSession;
+        return mSession.get();
     }
     
     /** Used for unit testing only. Re-creates the shared instance. It returns the new session.*/
     public static PHSession regenerateInstance(Context context) {
-    	getInstance(context).clear(context);
-    	getInstance(context).reset();
+    	PHSession session = getInstance(context);
+    	session.reset();
     	
-    	mSession = null;
+    	try {
+    		session.mStore.clear().get(); // the new session must not read the old totals
+    	} catch (Exception e) {
+    		PHCrashReport.reportCrash(e, "PHSession - regenerateInstance", PHCrashReport.Urgency.low);
+    	}
+    	
+    	mSession.compareAndSet(session, null);
     	// create a new session
     	return getInstance(context);
     }
@@ -61,16 +101,23 @@ public class PHSession {
     public void start() {
         PHStringUtil.log("Starting a new session.");
         
-        if (mSessionStarted) {
-            // We already have a running session, save intermediary results
-            mTotalTime += getSessionTime();
-            mSessionCount++;
-        }
-        
-        mSessionTime = 0;
-        mCurTime = SystemClock.uptimeMillis();
+        State state, next;
         
-        mSessionStarted = true;
+        do {
+            state = mState.get();
+            
+            long totalTime    = state.totalTime;
+            long sessionCount = state.sessionCount;
+            
+            if (state.sessionStarted) {
+                // We already have a running session, save intermediary results
+                totalTime += state.getSessionTime();
+                sessionCount++;
+            }
+            
+            next = new State(totalTime, 0, SystemClock.uptimeMillis(), sessionCount, true, state.sessionPaused);
+            
+        } while ( ! mState.compareAndSet(state, next));
     }
     
     /**
@@ -78,21 +125,24 @@ public class PHSession {
      */
     public void startAndReset() {
         start();
-        mTotalTime = 0;
-        mSessionCount = 0;
+        
+        State state, next;
+        
+        do {
+            state = mState.get();
+            next  = new State(0, state.sessionTime, state.curTime, 0, state.sessionStarted, state.sessionPaused);
+            
+        } while ( ! mState.compareAndSet(state, next));
+        
+        // the totals were reported, don't report them again after a restart
+        save(next);
     }
     
     /**
      * This method is meant for debugging/testing purposes only.
      */
     public void reset() {
-        mTotalTime = 0;
-        mSessionCount = 0;
-        mSessionTime = 0;
-        mCurTime = SystemClock.uptimeMillis();
-        
-        mSessionStarted = false;
-        mSessionPaused = true;
+        mState.set(new State(0, 0, SystemClock.uptimeMillis(), 0, false, true));
     }
     
     /**
@@ -101,7 +151,7 @@ public class PHSession {
      * @return Time in seconds of current session duration, or -1 if there is no session started.
      */
     public long getSessionTime() {
-        return (mSessionTime + getLastElapsedTime());
+        return mState.get().getSessionTime();
     }
     
     /**
@@ -110,7 +160,9 @@ public class PHSession {
      * @return Time in seconds of the duration of all sessions since the last successful open request.
      */
     public long getTotalTime() {
-        return mTotalTime + getSessionTime();
+        State state = mState.get();
+        
+        return state.totalTime + state.getSessionTime();
     }
     
     /**
@@ -119,7 +171,12 @@ public class PHSession {
      * @return Total sessions since the last successful open request.
      */
     public long getSessionCount() {
-        return mSessionCount;
+        return mState.get().sessionCount;
+    }
+    
+    /** The store which persists the totals*/
+    public PHSessionStore getStore() {
+        return mStore;
     }
     
     /**
@@ -130,77 +187,68 @@ public class PHSession {
             return;
         }
         
-        mSession = getInstance(activity);
-        
-        if (mSession.mSessionPaused) {
-            mSession.resumeSession();
-        }
+        getInstance(activity).resumeSession();
     }
     
     /**
      * Unregister an activity from monitoring. You should always call this method from the activity's onPause() callback.
+     * Never touches the disk on the calling thread.
      */
     public static void unregister(Activity activity) {
         if (activity == null) {
             return;
         }
         
-        mSession = getInstance(activity);
+        PHSession session = getInstance(activity);
         
-        if (!mSession.mSessionPaused) {
-            mSession.pauseSession();
-            
-            // if the user switches activities, we should save
-            if (mSession.mSessionStarted && activity.isFinishing()) {
-                mSession.save(activity);
-            }
+        State paused = session.pauseSession();
+        if (paused == null) return; // wasn't running
+        
+        session.save(paused);
+        
+        // the app may be going away, don't wait for the write-behind delay
+        if (activity.isFinishing()) {
+            session.mStore.flush();
         }
     }
     
-    private long getLastElapsedTime() {
-    	return (!mSessionStarted || mSessionPaused) 
-                    ? 0
-                    : ((SystemClock.uptimeMillis() - mCurTime) / 1000);
-    }
-    
-    private void pauseSession() {
-        mSessionTime = getSessionTime();
-        mSessionPaused = true;
+    /** Pauses the session, returns the paused state or null if it was already paused*/
+    private State pauseSession() {
+        State state, next;
+        
+        do {
+            state = mState.get();
+            if (state.sessionPaused) return null;
+            
+            next = new State(state.totalTime, state.getSessionTime(), state.curTime, state.sessionCount, state.sessionStarted, true);
+            
+        } while ( ! mState.compareAndSet(state, next));
+        
+        return next;
     }
     
     private void resumeSession() {
-        mCurTime = SystemClock.uptimeMillis();
-        mSessionPaused = false;
-    }
-    
-    private void inflate(Context context) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
-        mTotalTime = prefs.getLong(SSUM_PREF, 0);
-        mSessionCount = prefs.getLong(SCOUNT_PREF, 0);
+        State state, next;
+        
+        do {
+            state = mState.get();
+            if ( ! state.sessionPaused) return;
+            
+            next = new State(state.totalTime, state.sessionTime, SystemClock.uptimeMillis(), state.sessionCount, state.sessionStarted, false);
+            
+        } while ( ! mState.compareAndSet(state, next));
     }
     
+    /** Removes the persisted totals. The disk is written in the background.*/
     public void clear(Context context) {
-    	SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
-    	
-    	SharedPreferences.Editor editor = prefs.edit();
-        
-        editor.remove(SSUM_PREF);
-        editor.remove(SCOUNT_PREF);
-        
-        editor.commit();
+    	mStore.clear();
     }
     
-    private void save(Context context) {
-        if (!mSessionStarted) {
+    private void save(State state) {
+        if (!state.sessionStarted) {
             return;
         }
         
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
-        SharedPreferences.Editor editor = prefs.edit();
-        
-        editor.putLong(SSUM_PREF, mTotalTime + getSessionTime());
-        editor.putLong(SCOUNT_PREF, (mSessionCount + 1));
-        
-        editor.commit();
+        mStore.save(new PHSessionStore.Values(state.totalTime + state.getSessionTime(), state.sessionCount + 1));
     }
 }
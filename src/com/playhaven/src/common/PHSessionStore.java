@@ -0,0 +1,146 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.SharedPreferences;
+
+/**
+ * Persists the {@link PHSession} totals. Writing the preferences means a synchronous
+ * {@link SharedPreferences.Editor#commit()} (apply() needs API 9), so we never do it on the caller's thread.
+ * Saves are coalesced: only the latest values are kept and written once {@link #WRITE_BEHIND_DELAY} has passed
+ * since the first unwritten save. {@link #flush()} writes whatever is pending right away (still in the background).
+ *
+ * All writes happen in order on a single daemon thread.
+ */
+public class PHSessionStore {
+
+	/** How long (ms) saves are held back so they can be coalesced*/
+	public static final long WRITE_BEHIND_DELAY = 2000;
+
+	private static ScheduledExecutorService writerThread;
+
+	private final SharedPreferences prefs;
+
+	private final AtomicReference<Values> pending = new AtomicReference<Values>();
+
+	private final AtomicBoolean scheduled 		   = new AtomicBoolean();
+
+	private final AtomicLong writes 			   = new AtomicLong();
+
+	/** The persisted totals*/
+	public static final class Values {
+		public final long totalTime;
+
+		public final long sessionCount;
+
+		private final boolean cleared;
+
+		public Values(long totalTime, long sessionCount) {
+			this(totalTime, sessionCount, false);
+		}
+
+		private Values(long totalTime, long sessionCount, boolean cleared) {
+			this.totalTime 	  = totalTime;
+			this.sessionCount = sessionCount;
+			this.cleared 	  = cleared;
+		}
+	}
+
+	private static final Values CLEARED = new Values(0, 0, true);
+
+	private final Runnable write = new Runnable() {
+		@Override
+		public void run() {
+			// reset first so a save arriving after we took the values schedules another write
+			scheduled.set(false);
+
+			Values values = pending.getAndSet(null);
+			if (values == null) return; // coalesced into an earlier write
+
+			try {
+				SharedPreferences.Editor editor = prefs.edit();
+
+				if (values.cleared) {
+					editor.remove(PHSession.SSUM_PREF);
+					editor.remove(PHSession.SCOUNT_PREF);
+				} else {
+					editor.putLong(PHSession.SSUM_PREF,   values.totalTime);
+					editor.putLong(PHSession.SCOUNT_PREF, values.sessionCount);
+				}
+
+				editor.commit();
+				writes.incrementAndGet();
+
+			} catch (Exception e) { // swallow all exceptions
+				PHCrashReport.reportCrash(e, "PHSessionStore - write", PHCrashReport.Urgency.low);
+			}
+		}
+	};
+
+	public PHSessionStore(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+
+	/** Reads the persisted totals (on the caller's thread). Unwritten saves win over what is on disk.*/
+	public Values load() {
+		Values values = pending.get();
+
+		if (values != null) return (values.cleared ? new Values(0, 0) : values);
+
+		return new Values(prefs.getLong(PHSession.SSUM_PREF, 0), prefs.getLong(PHSession.SCOUNT_PREF, 0));
+	}
+
+	/** Saves the totals after the write-behind delay, replacing any unwritten save*/
+	public void save(Values values) {
+		pending.set(values);
+
+		if (scheduled.compareAndSet(false, true))
+			getWriterThread().schedule(write, WRITE_BEHIND_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/** Removes the totals (see {@link #flush()} for when)*/
+	public Future<?> clear() {
+		pending.set(CLEARED);
+
+		return flush();
+	}
+
+	/** Writes any unwritten save now (in the background). Wait on the future if you must be sure it's on disk.*/
+	public Future<?> flush() {
+		return getWriterThread().submit(write);
+	}
+
+	/** Is there a save which hasn't been written yet?*/
+	public boolean hasPendingWrites() {
+		return (pending.get() != null);
+	}
+
+	/** How often we actually wrote to disk (saves coalesced into one write only count once)*/
+	public long getWriteCount() {
+		return writes.get();
+	}
+
+	////////////////////////////////////////////////////
+
+	private static synchronized ScheduledExecutorService getWriterThread() {
+		if (writerThread == null) {
+			writerThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "PlayHaven Session");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return writerThread;
+	}
+}
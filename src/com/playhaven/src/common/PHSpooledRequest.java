@@ -0,0 +1,59 @@
+package com.playhaven.src.common;
+
+import java.util.Hashtable;
+
+import android.content.Context;
+
+/**
+ * Replays a request from the {@link PHRequestSpool}. Sends the original parameters (with a fresh nonce and signature)
+ * plus the time the request was originally made as <code>ts</code>. The spool id doubles as the idempotency key
+ * so that the server can ignore a replay which already made it through.
+ */
+public class PHSpooledRequest extends PHAPIRequest {
+
+	private final PHRequestSpool.Record record;
+
+	public PHSpooledRequest(Context context, PHRequestSpool.Record record, Delegate delegate) {
+		super(context, delegate);
+
+		this.record = record;
+	}
+
+	public PHRequestSpool.Record getRecord() {
+		return record;
+	}
+
+	@Override
+	public String baseURL() {
+		return record.url;
+	}
+
+	@Override
+	public PHAsyncRequest.RequestType getRequestType() {
+		return record.type;
+	}
+
+	@Override
+	public Hashtable<String, String> getAdditionalParams() {
+		Hashtable<String, String> params = new Hashtable<String, String>(record.params);
+
+		params.put("ts", String.valueOf(record.timestamp));
+
+		return params;
+	}
+
+	@Override
+	public Hashtable<String, String> getPostParams() {
+		return record.postParams;
+	}
+
+	@Override
+	public String getIdempotencyKey() {
+		return record.id;
+	}
+
+	@Override
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Precache; // never in the way of the user
+	}
+}
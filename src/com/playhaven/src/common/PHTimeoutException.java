@@ -0,0 +1,16 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+
+/**
+ * Thrown (well, passed to {@link PHAPIRequest.Delegate#requestFailed}) when a request could not connect,
+ * stalled while reading or blew through its overall deadline. We use a distinct type so callers can tell
+ * a slow network apart from a server error.
+ */
+public class PHTimeoutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public PHTimeoutException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,361 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.playhaven.src.common.PHConfig.ConnectionType;
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Decides when background transfers (such as the precache downloads) run, based on the connectivity.
+ * By default precaching runs {@link #PARALLEL_JOBS} downloads in parallel on WIFI, one download at a time on MOBILE 
+ * (and only until the per session {@link #DEFAULT_MOBILE_BUDGET mobile byte budget} is used up) and pauses without a network.
+ * Paused jobs start automatically once the network comes back. A job which fails while we still think we are online
+ * gets {@link #OFFLINE_GRACE_PERIOD} for the loss of the network to be reported (the broadcast usually trails the
+ * failed read): if it is, the job waits for the network like any other, if not it is tried once more. Independent of the connection, no more than
+ * {@link #JOBS_PER_HOST} jobs talk to the same host at once (a job blocked by its host doesn't hold up the others).
+ *
+ * The connectivity comes from a {@link ConnectivitySource} so that the scheduler can be driven by a fake
+ * source in tests. All methods must be called on the main UI thread (as are the source's notifications).
+ */
+public class PHTransferScheduler implements PHConnectionManager.ConnectivityListener {
+
+	/** Default number of concurrent jobs of a class allowed to {@link Decision#Run}.
+	 * One less than {@link PHNetworkExecutor#POOL_SIZE} so that a content request never waits for a download.
+	 */
+	public static final int PARALLEL_JOBS 			= 3;
+
+	/** Default number of concurrent jobs per host. Only kicks in once the parallelism is raised (see {@link #setParallelJobs})
+	 * so a single CDN doesn't get all of them.
+	 */
+	public static final int JOBS_PER_HOST 			= 4;
+
+	/** How long (ms) after a failure while online we wait for a late NO_NETWORK before trying the job once more*/
+	public static final long OFFLINE_GRACE_PERIOD 	= 5000;
+
+	/** Bytes precache may download over MOBILE per session*/
+	public static final long DEFAULT_MOBILE_BUDGET 	= 2 * 1024 * 1024;
+
+	/** What to do with a class of jobs on a given connection*/
+	public static enum Decision {
+		Run, 	  // full parallel
+		Throttle, // one at a time (and within the mobile budget on MOBILE)
+		Pause 	  // wait for a better connection
+	}
+
+	/** Where we get the connectivity from*/
+	public static interface ConnectivitySource {
+		public ConnectionType getConnectionType();
+
+		/** The source must notify the listener on the main UI thread whenever the connectivity changes*/
+		public void setListener(PHConnectionManager.ConnectivityListener listener);
+	}
+
+	/** A single transfer*/
+	public static interface Job {
+		/** The class of the job (which lane it would run in)*/
+		public PHNetworkExecutor.Priority getJobClass();
+
+		/** Starts the transfer. The job must call {@link PHTransferScheduler#finished} once it is done.*/
+		public void start(PHTransferScheduler scheduler);
+
+		/** Creates a fresh copy of the job to try again (after losing the network mid-transfer) or null if the job can't be retried*/
+		public Job createRetry();
+
+		/** The host the job talks to (for the per host limit) or null if it doesn't matter*/
+		public String getHost();
+	}
+
+	/** The real connectivity, as reported by {@link PHConnectionManager}*/
+	public static class SystemConnectivitySource implements ConnectivitySource {
+		private final Context context;
+
+		public SystemConnectivitySource(Context context) {
+			this.context = context.getApplicationContext();
+		}
+
+		@Override
+		public ConnectionType getConnectionType() {
+			return PHConnectionManager.getConnectionType(context);
+		}
+
+		@Override
+		public void setListener(PHConnectionManager.ConnectivityListener listener) {
+			PHConnectionManager.addConnectivityListener(context, listener);
+		}
+	}
+
+	private static PHTransferScheduler sharedScheduler;
+
+	private ConnectionType connection;
+
+	private final LinkedList<Job> pending = new LinkedList<Job>();
+
+	private final ArrayList<Job> running = new ArrayList<Job>();
+
+	/** Retries waiting out the grace period*/
+	private final LinkedList<Job> suspended = new LinkedList<Job>();
+
+	/** Retries of failures we couldn't blame on the network (only tried once)*/
+	private final HashSet<Job> graceRetries = new HashSet<Job>();
+
+	private Handler handler;
+
+	private long mobileBudget = DEFAULT_MOBILE_BUDGET;
+
+	private int parallelJobs  = PARALLEL_JOBS;
+
+	private int jobsPerHost   = JOBS_PER_HOST;
+
+	private long mobileBytes;
+
+	private long totalBytes;
+
+	/** Gets the shared scheduler (driven by the real connectivity)*/
+	public static synchronized PHTransferScheduler getSharedScheduler(Context context) {
+		if (sharedScheduler == null && context != null)
+			sharedScheduler = new PHTransferScheduler(new SystemConnectivitySource(context));
+
+		return sharedScheduler;
+	}
+
+	/** Replaces the shared scheduler (mostly for testing)*/
+	public static synchronized void setSharedScheduler(PHTransferScheduler scheduler) {
+		sharedScheduler = scheduler;
+	}
+
+	public PHTransferScheduler(ConnectivitySource source) {
+		this.connection = source.getConnectionType();
+
+		source.setListener(this);
+	}
+
+	/** Queues the job. It starts right away if the connection allows it.*/
+	public void submit(Job job) {
+		pending.add(job);
+		dispatch();
+	}
+
+	/** Called by a job once its transfer is done.
+	 * @param bytes number of bytes the job transferred
+	 * @param succeeded false if the transfer failed
+	 * @return true if the job will be tried again (the network went away while it ran, or may have)
+	 */
+	public boolean finished(Job job, long bytes, boolean succeeded) {
+		running.remove(job);
+
+		// a retry of an unexplained failure only gets one more chance
+		boolean lastChance = graceRetries.remove(job);
+
+		totalBytes += bytes;
+		if (connection == ConnectionType.MOBILE)
+			mobileBytes += bytes;
+
+		boolean retrying = false;
+
+		if ( ! succeeded && (connection == ConnectionType.NO_NETWORK || ! lastChance)) {
+			final Job retry = job.createRetry();
+
+			if (retry != null && connection == ConnectionType.NO_NETWORK) {
+				PHStringUtil.log("Transfer failed while offline, will retry once the network is back");
+
+				pending.addFirst(retry);
+				retrying = true;
+
+			} else if (retry != null) {
+				PHStringUtil.log("Transfer failed while online, waiting to see if the network went away");
+
+				suspended.add(retry);
+				graceRetries.add(retry);
+				retrying = true;
+
+				postDelayed(new Runnable() {
+					@Override
+					public void run() {
+						graceExpired(retry);
+					}
+				}, OFFLINE_GRACE_PERIOD);
+			}
+		}
+
+		dispatch();
+
+		return retrying;
+	}
+
+	@Override
+	public void connectivityChanged(ConnectionType type) {
+		if (type == connection) return;
+
+		PHStringUtil.log("Transfer scheduler: connection changed from " + connection + " to " + type);
+
+		connection = type;
+
+		if (type == ConnectionType.NO_NETWORK && suspended.size() > 0) {
+			// the failures were the network going away after all: wait for it like any other offline failure
+			graceRetries.removeAll(suspended);
+			pending.addAll(0, suspended);
+			suspended.clear();
+		}
+
+		dispatch();
+	}
+
+	/** Starts a new session: the mobile budget starts from scratch*/
+	public void startSession() {
+		mobileBytes = 0;
+		dispatch();
+	}
+
+	/** Override point: what to do with the given class of jobs on the given connection*/
+	public Decision getDecision(PHNetworkExecutor.Priority jobClass, ConnectionType type) {
+		if (jobClass != PHNetworkExecutor.Priority.Precache)
+			return Decision.Run; // user visible, never held back
+
+		switch (type) {
+			case WIFI:
+				return Decision.Run;
+
+			case MOBILE:
+				return (mobileBytes < mobileBudget ? Decision.Throttle : Decision.Pause);
+
+			case NO_PERMISSION:
+				return Decision.Throttle; // we can't tell, so be nice
+
+			default:
+				return Decision.Pause;
+		}
+	}
+
+	/** Override point: runs the runnable on the main UI thread after the delay (ms)*/
+	protected void postDelayed(Runnable runnable, long delay) {
+		if (handler == null)
+			handler = new Handler(Looper.getMainLooper());
+
+		handler.postDelayed(runnable, delay);
+	}
+
+	/** The network didn't go away after a failure: try the job once more*/
+	private void graceExpired(Job retry) {
+		if ( ! suspended.remove(retry)) return; // already moved by a NO_NETWORK
+
+		pending.addFirst(retry);
+		dispatch();
+	}
+
+	/** Starts as many pending jobs (in order) as the connection allows*/
+	private void dispatch() {
+		ArrayList<Job> startable = new ArrayList<Job>();
+
+		for (Job job : pending) {
+			Decision decision 	= getDecision(job.getJobClass(), connection);
+			int limit 			= (decision == Decision.Run ? parallelJobs : (decision == Decision.Throttle ? 1 : 0));
+
+			if (countOf(running, job.getJobClass()) + countOf(startable, job.getJobClass()) >= limit)
+				continue;
+
+			String host = job.getHost();
+
+			if (host != null && countHost(running, host) + countHost(startable, host) >= jobsPerHost)
+				continue; // the next job may be for another host
+
+			startable.add(job);
+		}
+
+		for (Job job : startable) {
+			pending.remove(job);
+			running.add(job);
+
+			try {
+				job.start(this);
+
+			} catch (Exception e) { // swallow all exceptions
+				running.remove(job);
+				PHCrashReport.reportCrash(e, "PHTransferScheduler - dispatch", PHCrashReport.Urgency.low);
+			}
+		}
+	}
+
+	private static int countOf(ArrayList<Job> jobs, PHNetworkExecutor.Priority jobClass) {
+		int count = 0;
+
+		for (Job job : jobs)
+			if (job.getJobClass() == jobClass) count++;
+
+		return count;
+	}
+
+	private static int countHost(ArrayList<Job> jobs, String host) {
+		int count = 0;
+
+		for (Job job : jobs)
+			if (host.equalsIgnoreCase(job.getHost())) count++;
+
+		return count;
+	}
+
+	//////////////////////////////////////////////////
+	/////////////////// Accessors ////////////////////
+
+	public ConnectionType getConnectionType() {
+		return connection;
+	}
+
+	public void setMobileBudget(long bytes) {
+		mobileBudget = bytes;
+		dispatch();
+	}
+
+	public long getMobileBudget() {
+		return mobileBudget;
+	}
+
+	/** Sets how many jobs of a class may run at once when the connection allows it (such as precaching on WIFI)*/
+	public void setParallelJobs(int jobs) {
+		parallelJobs = Math.max(1, jobs);
+		dispatch();
+	}
+
+	public int getParallelJobs() {
+		return parallelJobs;
+	}
+
+	/** Sets how many jobs may talk to the same host at once*/
+	public void setJobsPerHost(int jobs) {
+		jobsPerHost = Math.max(1, jobs);
+		dispatch();
+	}
+
+	public int getJobsPerHost() {
+		return jobsPerHost;
+	}
+
+	/** Bytes transferred over MOBILE this session*/
+	public long getMobileBytes() {
+		return mobileBytes;
+	}
+
+	/** Bytes transferred since the scheduler was created*/
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/** Jobs waiting for the connection to allow them*/
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/** Retries waiting out the {@link #OFFLINE_GRACE_PERIOD}*/
+	public int getSuspendedCount() {
+		return suspended.size();
+	}
+
+	public int getRunningCount() {
+		return running.size();
+	}
+}
@@ -0,0 +1,278 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The transport SPI all SDK network traffic goes through: a request goes in, a (streaming) response comes out.
+ * Redirects are tracked by {@link PHAsyncRequest.PHHttpConn} on top of the transport, so a transport only
+ * follows redirects itself if the request asks it to.
+ *
+ * We ship {@link PHApacheTransport} (the default, drawing from the {@link PHHttpClientPool}),
+ * {@link PHURLConnectionTransport} and the in-memory {@link PHLoopbackTransport} for tests and benchmarks.
+ * Use {@link PHAsyncRequest.PHHttpConn#setDefaultTransport} to switch.
+ */
+public interface PHTransport {
+
+	/** Sends the request and returns as soon as the status and headers are in. Called on a background thread.
+	 * The caller must either read the content to the end and close it, or call {@link Response#release()}
+	 * or {@link Response#abort()}.
+	 */
+	public Response execute(Request request) throws IOException;
+
+	/** A single http request*/
+	public static class Request {
+		/** We don't know (yet) how the connection was acquired*/
+		public static final int CONNECTION_UNKNOWN = 0;
+		
+		public static final int CONNECTION_NEW 	   = 1;
+		
+		/** The connection was a keep-alive connection from the pool*/
+		public static final int CONNECTION_REUSED  = 2;
+		
+		private final String url;
+
+		private final PHAsyncRequest.RequestType method;
+
+		private final LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+
+		private byte[] body;
+
+		private int connectTimeout = PHAsyncRequest.DEFAULT_CONNECT_TIMEOUT;
+
+		private int readTimeout    = PHAsyncRequest.DEFAULT_READ_TIMEOUT;
+
+		private boolean followRedirects;
+
+		private volatile boolean aborted;
+
+		private Runnable abortHandler;
+		
+		private volatile long connectedTime;
+		
+		private volatile int connectionState = CONNECTION_UNKNOWN;
+
+		/**
+		 * @param url the (already escaped) url
+		 * @param method GET, POST or HEAD (anything else is sent as a GET)
+		 */
+		public Request(String url, PHAsyncRequest.RequestType method) {
+			this.url 	= url;
+			this.method = method;
+		}
+
+		public String getURL() {
+			return url;
+		}
+
+		public PHAsyncRequest.RequestType getMethod() {
+			return method;
+		}
+
+		public void setHeader(String name, String value) {
+			headers.put(name, value);
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		/** The (POST) body. Set the Content-Type (and Content-Encoding) headers to match.*/
+		public void setBody(byte[] body) {
+			this.body = body;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		/** Time to establish a connection (ms), {@link PHAsyncRequest#NO_TIMEOUT} to wait forever*/
+		public void setConnectTimeout(int connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public int getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		/** Time to wait for data on a stalled connection (ms), {@link PHAsyncRequest#NO_TIMEOUT} to wait forever*/
+		public void setReadTimeout(int readTimeout) {
+			this.readTimeout = readTimeout;
+		}
+
+		public int getReadTimeout() {
+			return readTimeout;
+		}
+
+		/** Should the transport follow redirects itself? Off by default.*/
+		public void setFollowRedirects(boolean followRedirects) {
+			this.followRedirects = followRedirects;
+		}
+
+		public boolean isFollowRedirects() {
+			return followRedirects;
+		}
+
+		/** Called by the transport once it has a connection and is about to send the request. Only the first call counts.
+		 * @param connectionState {@link #CONNECTION_NEW}, {@link #CONNECTION_REUSED} or {@link #CONNECTION_UNKNOWN} if the transport can't tell
+		 */
+		public void markConnected(int connectionState) {
+			if (connectedTime != 0) return;
+			
+			this.connectionState = connectionState;
+			this.connectedTime 	 = System.nanoTime();
+		}
+		
+		/** When the connection was acquired ({@link System#nanoTime()}) or 0 if the transport didn't say*/
+		public long getConnectedTime() {
+			return connectedTime;
+		}
+		
+		public int getConnectionState() {
+			return connectionState;
+		}
+		
+		/** Creates the request for the next hop of a redirect. As with most clients, the redirect is always a GET (HEAD stays HEAD).*/
+		public Request redirect(String location) {
+			Request next = new Request(location, (method == PHAsyncRequest.RequestType.Head
+													? PHAsyncRequest.RequestType.Head
+													: PHAsyncRequest.RequestType.Get));
+
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				if (header.getKey().equalsIgnoreCase("Content-Type") || header.getKey().equalsIgnoreCase("Content-Encoding"))
+					continue; // no body anymore
+
+				next.setHeader(header.getKey(), header.getValue());
+			}
+
+			next.connectTimeout  = connectTimeout;
+			next.readTimeout 	 = readTimeout;
+			next.followRedirects = followRedirects;
+
+			return next;
+		}
+
+		/** Aborts the request: blocked reads fail and the connection is not reused. Safe to call from any thread.*/
+		public void abort() {
+			Runnable handler;
+
+			synchronized (this) {
+				aborted = true;
+				handler = abortHandler;
+			}
+
+			if (handler != null) handler.run();
+		}
+
+		public boolean isAborted() {
+			return aborted;
+		}
+
+		/** Called by the transport with whatever actually aborts the underlying connection. Runs right away if already aborted.*/
+		public void setAbortHandler(Runnable handler) {
+			synchronized (this) {
+				abortHandler = handler;
+
+				if ( ! aborted) return;
+			}
+
+			if (handler != null) handler.run();
+		}
+	}
+
+	/** A response whose body is streamed from the transport*/
+	public static class Response {
+		private final int statusCode;
+
+		// keyed by the lower case name
+		private final HashMap<String, List<String>> headers = new HashMap<String, List<String>>();
+
+		private final InputStream content;
+
+		private final long contentLength;
+
+		/**
+		 * @param content the body or null if there is none
+		 * @param contentLength the length of the body or -1 if unknown
+		 */
+		public Response(int statusCode, InputStream content, long contentLength) {
+			this.statusCode    = statusCode;
+			this.content 	   = content;
+			this.contentLength = contentLength;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public void addHeader(String name, String value) {
+			String key = name.toLowerCase(Locale.US);
+
+			List<String> values = headers.get(key);
+			if (values == null) {
+				values = new ArrayList<String>(1);
+				headers.put(key, values);
+			}
+
+			values.add(value);
+		}
+
+		/** The first value of the header (case insensitive) or null*/
+		public String getHeader(String name) {
+			List<String> values = headers.get(name.toLowerCase(Locale.US));
+
+			return (values != null && values.size() > 0 ? values.get(0) : null);
+		}
+
+		/** All values of the header (case insensitive), never null*/
+		public List<String> getHeaders(String name) {
+			List<String> values = headers.get(name.toLowerCase(Locale.US));
+
+			return (values != null ? values : Collections.<String>emptyList());
+		}
+
+		/** The (possibly compressed) body or null*/
+		public InputStream getContent() {
+			return content;
+		}
+
+		/** Length of the body as sent (before decompression) or -1 if unknown*/
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		public String getContentEncoding() {
+			return getHeader("Content-Encoding");
+		}
+
+		/** Done with the response: whatever is left of the body is consumed so the connection can be reused*/
+		public void release() throws IOException {
+			if (content == null) return;
+
+			byte[] skip = new byte[1024];
+			while (content.read(skip) != -1);
+
+			content.close();
+		}
+
+		/** Done with the response: the connection is closed instead of being reused*/
+		public void abort() {
+			try {
+				if (content != null) content.close();
+			} catch (IOException e) {
+				// pass (closed anyway)
+			}
+		}
+	}
+}
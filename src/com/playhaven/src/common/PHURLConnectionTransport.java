@@ -0,0 +1,100 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PHTransport} on top of {@link HttpURLConnection}. The platform keeps its own pool of keep-alive connections.
+ * Recommended by Google from Gingerbread on, but not the default since older devices have a buggy implementation.
+ */
+public class PHURLConnectionTransport implements PHTransport {
+
+	@Override
+	public Response execute(Request request) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(request.getURL()).openConnection();
+
+		request.setAbortHandler(new Runnable() {
+			@Override
+			public void run() {
+				connection.disconnect();
+			}
+		});
+
+		try {
+			switch (request.getMethod()) {
+				case Post: connection.setRequestMethod("POST"); break;
+				case Head: connection.setRequestMethod("HEAD"); break;
+				default:   connection.setRequestMethod("GET");  break;
+			}
+
+			connection.setInstanceFollowRedirects(request.isFollowRedirects());
+			connection.setConnectTimeout(request.getConnectTimeout());
+			connection.setReadTimeout	(request.getReadTimeout());
+			connection.setUseCaches		(false); // we do our own caching
+
+			// Note: since we always set Accept-Encoding ourselves, the platform won't transparently decompress
+			for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+				connection.setRequestProperty(header.getKey(), header.getValue());
+
+			byte[] body = request.getBody();
+			boolean hasBody = (body != null && request.getMethod() == PHAsyncRequest.RequestType.Post);
+
+			if (hasBody) {
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(body.length);
+			}
+			
+			// HttpURLConnection doesn't tell us whether the connection came from its pool
+			connection.connect();
+			request.markConnected(Request.CONNECTION_UNKNOWN);
+
+			if (hasBody) {
+				OutputStream out = connection.getOutputStream();
+				out.write(body);
+				out.close();
+			}
+
+			int statusCode = connection.getResponseCode();
+
+			InputStream content = null;
+
+			if (request.getMethod() != PHAsyncRequest.RequestType.Head)
+				content = (statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream());
+
+			Response response = new URLConnectionResponse(connection, statusCode, content, connection.getContentLength());
+
+			for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+				if (header.getKey() == null) continue; // the status line
+
+				for (String value : header.getValue())
+					response.addHeader(header.getKey(), value);
+			}
+
+			return response;
+
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	private static class URLConnectionResponse extends Response {
+		private final HttpURLConnection connection;
+
+		public URLConnectionResponse(HttpURLConnection connection, int statusCode, InputStream content, long contentLength) {
+			super(statusCode, content, contentLength);
+
+			this.connection = connection;
+		}
+
+		@Override
+		public void abort() {
+			connection.disconnect();
+		}
+	}
+}
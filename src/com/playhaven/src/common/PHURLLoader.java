@@ -2,8 +2,10 @@ package com.playhaven.src.common;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONObject;
 
@@ -21,6 +23,9 @@ import com.playhaven.src.utils.PHStringUtil;
  *  This class is primarily used for open device urls (other apps on the device, market, web browser, etc).
  *  Thus, use this class when you're expecting to open a device url. Otherwise use {@link PHAsyncRequest}.
  *  
+ *  We only resolve where the url ends up and never download the response bodies. Resolved launch urls
+ *  are remembered for {@link #REDIRECT_CACHE_TTL} so that tapping the same link again opens instantly.
+ *  
  *  TODO: perhaps examine maximum_redirects and total_redirects? 
  *  
  *  TODO: some enterprising young chap should refactor the context out and instead callback into the main PHContentView
@@ -44,6 +49,40 @@ public class PHURLLoader implements PHAsyncRequest.Delegate {
 	
 	private final int MAXIMUM_REDIRECTS = 10;
 	
+	// the user is staring at a progress dialog so don't wait too long
+	private final int DEADLINE = 15 * 1000;
+	
+	/** Resolve with HEAD instead of GET requests. Off by default since some tracking servers only count GETs.
+	 * We fall back to GET if the server refuses the HEAD request.
+	 */
+	public boolean useHeadRequests = false;
+	
+	/** How long (ms) we remember the final url of a launch url*/
+	public static final long REDIRECT_CACHE_TTL = 10 * 60 * 1000;
+	
+	private static final int REDIRECT_CACHE_SIZE = 32;
+	
+	private static class CachedRedirect {
+		public final String finalURL;
+		
+		public final long expires;
+		
+		public CachedRedirect(String finalURL, long expires) {
+			this.finalURL = finalURL;
+			this.expires  = expires;
+		}
+	}
+	
+	// source url -> final url (least recently used first)
+	private static final LinkedHashMap<String, CachedRedirect> redirectCache = new LinkedHashMap<String, CachedRedirect>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedRedirect> eldest) {
+			return size() > REDIRECT_CACHE_SIZE;
+		}
+	};
+	
 	private WeakReference<Context> context;
 	
 	private String callback;
@@ -135,22 +174,56 @@ public class PHURLLoader implements PHAsyncRequest.Delegate {
 		allLoaders.add(loader);
 	}
 	
+	/** Gets the remembered final url for the source url (or null if we don't know it or it expired)*/
+	public static String getCachedRedirect(String url) {
+		synchronized (redirectCache) {
+			CachedRedirect redirect = redirectCache.get(url);
+			
+			if (redirect == null) return null;
+			
+			if (redirect.expires < System.currentTimeMillis()) {
+				redirectCache.remove(url);
+				return null;
+			}
+			
+			return redirect.finalURL;
+		}
+	}
+	
+	public static void cacheRedirect(String url, String finalURL) {
+		synchronized (redirectCache) {
+			redirectCache.put(url, new CachedRedirect(finalURL, System.currentTimeMillis() + REDIRECT_CACHE_TTL));
+		}
+	}
+	
+	public static void clearRedirectCache() {
+		synchronized (redirectCache) {
+			redirectCache.clear();
+		}
+	}
+	
 	///////////////////////////////////////////////////////////
 	public void open() {
 
 		if( ! JSONObject.NULL.equals(targetURL) &&
 			  targetURL.length() > 0		      ) {
 			
-			progressDialog.show();
-			
 			PHStringUtil.log(String.format("Opening url in PHURLLoader: %s", targetURL));
 			
 			isLoading = true;
 			
-			conn = new PHAsyncRequest(this);
-			conn.setMaxRedirects(MAXIMUM_REDIRECTS);
-			conn.request_type = PHAsyncRequest.RequestType.Get;
-			conn.execute(Uri.parse(targetURL));
+			// pings must always reach the server, but we can skip the round-trip for a launch url we just resolved
+			String cachedURL = (openFinalURL ? getCachedRedirect(targetURL) : null);
+			
+			if (cachedURL != null) {
+				PHStringUtil.log("PHURLLoader - using cached redirect location: " + cachedURL);
+				finish(cachedURL);
+				return;
+			}
+			
+			progressDialog.show();
+			
+			resolve(useHeadRequests ? PHAsyncRequest.RequestType.Head : PHAsyncRequest.RequestType.Get);
 			
 			synchronized(this) {
 				PHURLLoader.addLoader(this);
@@ -164,11 +237,22 @@ public class PHURLLoader implements PHAsyncRequest.Delegate {
 			delegate.loaderFinished(this);
 	}
 	
-	private void finish() {
+	/** Starts following the redirects without downloading any of the bodies*/
+	private void resolve(PHAsyncRequest.RequestType requestType) {
+		conn = new PHAsyncRequest(this);
+		conn.setMaxRedirects(MAXIMUM_REDIRECTS);
+		conn.setDeadline(DEADLINE);
+		conn.setResolveOnly(true);
+		conn.request_type = requestType;
+		// the user is waiting on us, so jump the queue
+		PHNetworkExecutor.execute(conn, PHNetworkExecutor.Priority.Content, Uri.parse(targetURL));
+	}
+	
+	private void finish(String finalURL) {
 		if( isLoading ) {
 			isLoading = false;
 			
-			targetURL = conn.getLastRedirectURL();
+			targetURL = finalURL;
 			
 			PHStringUtil.log("PHURLLoader - final redirect location: " + targetURL);
 			
@@ -234,7 +318,7 @@ public class PHURLLoader implements PHAsyncRequest.Delegate {
 			progressDialog == null) return; // failed to start
 		
 		synchronized (this) {
-			conn.cancel(true);
+			conn.abort();
 			PHURLLoader.removeLoader(this);
 		}
 		
@@ -253,9 +337,21 @@ public class PHURLLoader implements PHAsyncRequest.Delegate {
 	
 	@Override
 	public void requestFinished(ByteBuffer response, int responseCode) {
+		if (responseCode == 405 && conn.getRequestType() == PHAsyncRequest.RequestType.Head) {
+			PHStringUtil.log("PHURLLoader - HEAD not allowed, resolving with GET: " + targetURL);
+			resolve(PHAsyncRequest.RequestType.Get);
+			return;
+		}
+		
 		if(responseCode < 300) {
 			PHStringUtil.log("PHURLLoader finishing from initial url: " + targetURL);
-			finish();
+			
+			String finalURL = conn.getLastRedirectURL();
+			
+			if (openFinalURL && finalURL != null)
+				cacheRedirect(targetURL, finalURL);
+			
+			finish(finalURL);
 		} else {
 			PHStringUtil.log("PHURLLoader failing from initial url: " + targetURL + " with error code: "+responseCode);
 			fail();
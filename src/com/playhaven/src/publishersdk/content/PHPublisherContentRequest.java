@@ -2,9 +2,13 @@ package com.playhaven.src.publishersdk.content;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.json.JSONArray;
@@ -23,6 +27,8 @@ import com.jakewharton.DiskLruCache;
 import com.playhaven.src.common.PHAPIRequest;
 import com.playhaven.src.common.PHConfig;
 import com.playhaven.src.common.PHCrashReport;
+import com.playhaven.src.common.PHNetworkExecutor;
+import com.playhaven.src.common.PHRequestCoalescer;
 import com.playhaven.src.common.PHSession;
 import com.playhaven.src.publishersdk.content.PHContentView.ButtonState;
 import com.playhaven.src.publishersdk.open.PHPrefetchTask;
@@ -50,8 +56,16 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 	
 	private PHContent content;
 	
+	// parsed on the background thread and handed over on the UI thread
+	private PHContent preparedContent;
+	
+	private List<String> preparedImageURLs;
+	
 	public String contentTag; 
 	
+	/** Overall time (ms) we give the content call before giving up*/
+	public static final int CONTENT_DEADLINE = 20 * 1000;
+	
 	public enum PHRequestState {
 		Initialized,
 		Preloading,
@@ -71,6 +85,11 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 	
 	private PHRequestState targetState;
 	
+	/** The target state when the request went out. {@link #send()} may change {@link #targetState} on the UI thread
+	 * while we prepare a preload on the background thread, so that only ever reads this copy.
+	 */
+	private volatile PHRequestState sentTargetState;
+	
 	/** Big ol' extra delegate methods that a delegate can implement for more detail. {@link PHPublisherContentRequest} will work just
 	 * fine with a regular PHAPIRequest delegate but if you want additional detail, pass a {@link ContentDelegate}.
 	 * It is an abstract class to allow the developer to only override methods they wish. 
@@ -232,6 +251,33 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 		return super.createAPIURL("/v3/publisher/content/");
 	}
 	
+	@Override
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Content;
+	}
+	
+	@Override
+	public int getDeadline() {
+		return CONTENT_DEADLINE; // the user is waiting on us
+	}
+	
+	@Override
+	public boolean isCoalescable() {
+		return true;
+	}
+	
+	@Override
+	public boolean shouldCacheResponse() {
+		return true; // only if the server allows it
+	}
+	
+	/** The session time ticks every second, so leave it out or identical requests would never match*/
+	@Override
+	public String getCoalescingKey() throws UnsupportedEncodingException, 
+											NoSuchAlgorithmException {
+		return PHRequestCoalescer.createKey(baseURL(), getSignedParams(), "stime");
+	}
+	
 	public void setOverlayImmediately(boolean doOverlay) {
 		this.showsOverlayImmediately = doOverlay;
 	}
@@ -298,6 +344,8 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 	
 	private void loadContent() {
 		setCurrentState(PHRequestState.Preloading);
+		
+		sentTargetState = targetState;
 		super.send(); // now actually send the request
 		
 		// order is important here! We need to kick off the background task first
@@ -380,6 +428,11 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 	
 	/////////////////////////////////////////////////
 	///////// PHAPIRequest Override Methods /////////
+	@Override
+	public boolean isBatchable() {
+		return false; // send() drives the preload/display state machine
+	}
+	
 	@Override
 	public Hashtable<String, String> getAdditionalParams() {
 		Hashtable<String, String> table = new Hashtable<String, String>();
@@ -393,35 +446,66 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 		return table;
 	}
 	
+	/** Parses the content and checks the disk cache on the background thread*/
 	@Override
-	public void handleRequestSuccess(JSONObject response) {
+	public void prepareRequestSuccess(JSONObject response) {
+		preparedContent   = null;
+		preparedImageURLs = null;
+		
 	    if (JSONObject.NULL.equals(response) || response.length() == 0) return;
 	    
-		content = new PHContent(response);
+	    PHRequestState sentState = sentTargetState;
+	    
+		PHContent parsed = new PHContent(response);
 		
-		if (content.url == null) {
-		    setCurrentState(PHRequestState.Done);
-		} else {
-    		if (PHConfig.precache && (targetState == PHRequestState.Preloaded) 
+		if (parsed.url != null) {
+    		if (PHConfig.precache && (sentState == PHRequestState.Preloaded) 
     		        && (cache != null) && !cache.isClosed()) {
                 try {
-                    DiskLruCache.Snapshot precached_snapshot = cache.get(content.url.toString());
+                    DiskLruCache.Snapshot precached_snapshot = cache.get(parsed.url.toString());
                     
                     if (precached_snapshot != null) {
                         File file = precached_snapshot.getInputStreamFile(PHAPIRequest.PRECACHE_FILE_KEY_INDEX);
                         precached_snapshot.close();
                         
                         if (file != null) {
-                            processResponse(response.optJSONObject("context"), true);
+                            // only collect the images here, the downloads are kicked off from the UI thread
+                            ArrayList<String> imageURLs = new ArrayList<String>();
+                            processResponse(response.optJSONObject("context"), true, imageURLs);
+                            preparedImageURLs = imageURLs;
                             
                             // Mark the content as preloaded, PHContentView will search for cached images at display time
-                            content.preloaded = true;
+                            parsed.preloaded = true;
                         }
                     }
                 } catch (IOException e) {
-                    PHCrashReport.reportCrash(e, "PHPublisherContentRequest - handleRequestSuccess", PHCrashReport.Urgency.high);
+                    PHCrashReport.reportCrash(e, "PHPublisherContentRequest - prepareRequestSuccess", PHCrashReport.Urgency.high);
                 }
             }
+		}
+		
+		preparedContent = parsed;
+	}
+	
+	@Override
+	public void handleRequestSuccess(JSONObject response) {
+	    if (JSONObject.NULL.equals(response) || response.length() == 0) return;
+	    
+	    // not prepared on the background thread (called directly)
+	    if (preparedContent == null) prepareRequestSuccess(response);
+	    
+		content 		= preparedContent;
+		preparedContent = null;
+		
+		if (content.url == null) {
+		    setCurrentState(PHRequestState.Done);
+		} else {
+			if (preparedImageURLs != null) {
+				for (String url : preparedImageURLs)
+					cacheImage(url);
+				
+				preparedImageURLs = null;
+			}
     		
     		setCurrentState(PHRequestState.Preloaded);
 		}
@@ -463,21 +547,30 @@ public class PHPublisherContentRequest extends PHAPIRequest{
         }
     }
 	
-	private static void cacheImage(JSONObject config) {
+	/** Caches the image right away or, if a list is passed, simply collects its url*/
+	private static void cacheImage(JSONObject config, List<String> collected) {
 	    if (config == null) {
 	        return;
 	    }
 	    
         String url = config.optString("url", null);
         if (url != null) {
-            PHStringUtil.log("Sending cache request for: " + url);
-            PHPrefetchTask task = new PHPrefetchTask();
-            task.setURL(url);
-            task.execute();
+        	if (collected != null)
+        		collected.add(url);
+        	else
+        		cacheImage(url);
         }
 	}
 	
-	private static void processResponse(JSONArray array, boolean cache) {
+	/** Must be called from the main UI thread*/
+	private static void cacheImage(String url) {
+        PHStringUtil.log("Sending cache request for: " + url);
+        PHPrefetchTask task = new PHPrefetchTask();
+        task.setURL(url);
+        PHNetworkExecutor.execute(task, PHNetworkExecutor.Priority.Precache);
+	}
+	
+	private static void processResponse(JSONArray array, boolean cache, List<String> collected) {
 	    if (array == null) {
 	        return;
 	    }
@@ -485,14 +578,21 @@ public class PHPublisherContentRequest extends PHAPIRequest{
 	    for (int i = 0; i < array.length(); ++ i) {
 	        JSONObject object = array.optJSONObject(i);
 	        if (object != null) {
-	            processResponse(object, cache);
+	            processResponse(object, cache, collected);
 	        } else {
-	            processResponse(array.optJSONArray(i), cache);
+	            processResponse(array.optJSONArray(i), cache, collected);
 	        }
 	    }
 	}
 	
     public static void processResponse(JSONObject json, boolean cache) {
+    	processResponse(json, cache, null);
+    }
+    
+    /** Walks the response looking for images. If caching and a list is passed in, 
+     * we only collect the image urls instead of downloading them (safe to call off the UI thread).
+     */
+    private static void processResponse(JSONObject json, boolean cache, List<String> collected) {
         if (json == null || json.names() == null) {
             return;
         }
@@ -505,8 +605,8 @@ public class PHPublisherContentRequest extends PHAPIRequest{
                 JSONObject image = json.optJSONObject(k);
                 if (image != null) {
                     if (cache) {
-                        cacheImage(image.optJSONObject("PH_PORTRAIT"));
-                        cacheImage(image.optJSONObject("PH_LANDSCAPE"));
+                        cacheImage(image.optJSONObject("PH_PORTRAIT"), collected);
+                        cacheImage(image.optJSONObject("PH_LANDSCAPE"), collected);
                     } else {
                         fetchImageFromCache(image.optJSONObject("PH_PORTRAIT"));
                         fetchImageFromCache(image.optJSONObject("PH_LANDSCAPE"));
@@ -516,9 +616,9 @@ public class PHPublisherContentRequest extends PHAPIRequest{
                 JSONArray array = json.optJSONArray(k);
                 if (array == null) {
                     // Not an array
-                    processResponse(json.optJSONObject(k), cache);
+                    processResponse(json.optJSONObject(k), cache, collected);
                 } else {
-                    processResponse(array, cache);
+                    processResponse(array, cache, collected);
                 }
             }
         }
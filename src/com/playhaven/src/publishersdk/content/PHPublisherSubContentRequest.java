@@ -5,6 +5,7 @@ import org.json.JSONObject;
 import android.content.Context;
 
 import com.playhaven.src.common.PHAPIRequest;
+import com.playhaven.src.common.PHNetworkExecutor;
 import com.playhaven.src.utils.PHStringUtil;
 
 /** Represents a sub request which we can use to handle ph:// urls from the webview*/
@@ -27,6 +28,11 @@ public class PHPublisherSubContentRequest extends PHAPIRequest {
 		return this.fullUrl;
 	}
 	
+	@Override
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Content;
+	}
+	
 	@Override
 	public void send() {
 		if ( ! JSONObject.NULL.equals(baseURL()) 	&&
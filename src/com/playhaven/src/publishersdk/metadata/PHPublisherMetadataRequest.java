@@ -10,6 +10,12 @@ import com.playhaven.src.common.PHAPIRequest;
 public class PHPublisherMetadataRequest extends PHAPIRequest {
 	public String placement = "";
 	
+	/** Overall time (ms) we give the metadata call before giving up*/
+	public static final int METADATA_DEADLINE = 15 * 1000;
+	
+	/** How long (ms) we show a stale badge while fetching a fresh one*/
+	public static final long METADATA_STALE_WINDOW = 5 * 60 * 1000;
+	
 	public PHPublisherMetadataRequest(Context context, String placement) {
 		super(context);
 		this.placement = placement;
@@ -25,6 +31,27 @@ public class PHPublisherMetadataRequest extends PHAPIRequest {
 	public String baseURL() {
 		return super.createAPIURL("/v3/publisher/content/");
 	}
+	
+	@Override
+	public boolean isCoalescable() {
+		return true; // several notification views often refresh the same placement at once
+	}
+	
+	@Override
+	public boolean shouldCacheResponse() {
+		return true;
+	}
+	
+	@Override
+	public long getStaleWhileRevalidate() {
+		return METADATA_STALE_WINDOW; // badge counts change slowly
+	}
+	
+	@Override
+	public int getDeadline() {
+		return METADATA_DEADLINE; // a stale badge is better than a hung request
+	}
+	
 	@Override
 	public Hashtable<String, String> getAdditionalParams() {
 		Hashtable<String, String> params = new Hashtable<String, String>();
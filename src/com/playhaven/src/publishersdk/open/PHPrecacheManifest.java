@@ -0,0 +1,399 @@
+package com.playhaven.src.publishersdk.open;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+
+import com.jakewharton.DiskLruCache;
+import com.playhaven.src.common.PHAPIRequest;
+import com.playhaven.src.common.PHCrashReport;
+import com.playhaven.src.common.PHTransport;
+import com.playhaven.src.utils.PHStringUtil;
+
+/**
+ * Remembers what we precached into the shared {@link DiskLruCache}: the validators (ETag, Last-Modified), freshness,
+ * size and content hash of every URL. After an open the server's precache list is diffed against the manifest
+ * (see {@link #diff}) so we only download what we don't have:
+ * <ul>
+ * <li>cached and still fresh: skipped</li>
+ * <li>cached but stale: revalidated with a conditional GET (a 304 costs no body)</li>
+ * <li>not cached (or the cached file doesn't match the manifest): downloaded</li>
+ * </ul>
+ * URLs which drop off the list are demoted and removed from the cache once they missed {@link #EVICT_AFTER_MISSES}
+ * opens, or right away if the cache is getting full.
+ *
+ * The manifest is a small JSON file next to the cache directory. All methods are thread safe.
+ */
+public class PHPrecacheManifest {
+
+	public static final String MANIFEST_FILE 			= "precache_manifest.json";
+
+	/** How long (ms) a precached file is fresh if the server doesn't say (heuristic freshness)*/
+	public static final long DEFAULT_MAX_AGE 			= 6 * 60 * 60 * 1000;
+
+	/** Opens a URL may be missing from the precache list before we evict it*/
+	public static final int EVICT_AFTER_MISSES 			= 3;
+
+	/** Demoted entries are evicted right away once the cache is fuller than this*/
+	public static final float DEMOTED_EVICTION_THRESHOLD = 0.75f;
+
+	private static PHPrecacheManifest sharedManifest;
+
+	private final File file;
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	private boolean loaded;
+
+	/** What we know about a single precached URL*/
+	public static class Entry {
+		public final String url;
+
+		public final String etag;
+
+		public final String lastModified;
+
+		/** Size (bytes) of the cached (decoded) file*/
+		public final long size;
+
+		/** SHA1 (hex) of the cached file*/
+		public final String hash;
+
+		/** When we downloaded (or last revalidated) the file*/
+		public final long fetchedAt;
+
+		/** How long the file is fresh (ms)*/
+		public final long maxAge;
+
+		/** Consecutive opens which didn't list the URL*/
+		public final int misses;
+
+		public Entry(String url, String etag, String lastModified, long size, String hash, long fetchedAt, long maxAge, int misses) {
+			this.url 		  = url;
+			this.etag 		  = etag;
+			this.lastModified = lastModified;
+			this.size 		  = size;
+			this.hash 		  = hash;
+			this.fetchedAt 	  = fetchedAt;
+			this.maxAge 	  = maxAge;
+			this.misses 	  = misses;
+		}
+
+		/** Creates the entry for a freshly downloaded file*/
+		public static Entry fromResponse(String url, PHTransport.Response response, long size, String hash, long now) {
+			return new Entry(url, response.getHeader("ETag"), response.getHeader("Last-Modified"), size, hash, now, parseMaxAge(response), 0);
+		}
+
+		/** Applies a 304: the server may update the validators and freshness, the file stays the same*/
+		public Entry revalidated(PHTransport.Response response, long now) {
+			String etagHeader 	  = response.getHeader("ETag");
+			String modifiedHeader = response.getHeader("Last-Modified");
+
+			return new Entry(url,
+							 (etagHeader != null ? etagHeader : etag),
+							 (modifiedHeader != null ? modifiedHeader : lastModified),
+							 size, hash, now, parseMaxAge(response), 0);
+		}
+
+		public Entry withMisses(int misses) {
+			return new Entry(url, etag, lastModified, size, hash, fetchedAt, maxAge, misses);
+		}
+
+		public boolean isFresh(long now) {
+			return (now - fetchedAt < maxAge);
+		}
+
+		public boolean hasValidator() {
+			return (etag != null || lastModified != null);
+		}
+
+		private JSONObject toJSON() throws Exception {
+			JSONObject json = new JSONObject();
+
+			json.put("etag", 		  etag);
+			json.put("last_modified", lastModified);
+			json.put("size", 		  size);
+			json.put("hash", 		  hash);
+			json.put("fetched", 	  fetchedAt);
+			json.put("max_age", 	  maxAge);
+			json.put("misses", 		  misses);
+
+			return json;
+		}
+
+		private static Entry fromJSON(String url, JSONObject json) {
+			return new Entry(url,
+							 (json.isNull("etag") ? null : json.optString("etag")),
+							 (json.isNull("last_modified") ? null : json.optString("last_modified")),
+							 json.optLong("size"),
+							 (json.isNull("hash") ? null : json.optString("hash")),
+							 json.optLong("fetched"),
+							 json.optLong("max_age"),
+							 json.optInt("misses"));
+		}
+
+		/** Cache-Control max-age (no-cache means always revalidate), {@link #DEFAULT_MAX_AGE} if the server doesn't say*/
+		private static long parseMaxAge(PHTransport.Response response) {
+			for (String header : response.getHeaders("Cache-Control")) {
+				for (String directive : header.split(",")) {
+					directive = directive.trim().toLowerCase();
+
+					if (directive.equals("no-cache") || directive.equals("no-store"))
+						return 0;
+
+					if (directive.startsWith("max-age=")) {
+						try {
+							return Math.max(Long.parseLong(directive.substring("max-age=".length()).trim()), 0) * 1000;
+						} catch (NumberFormatException e) {
+							return 0;
+						}
+					}
+				}
+			}
+
+			return DEFAULT_MAX_AGE;
+		}
+	}
+
+	/** The result of diffing a precache list against the manifest*/
+	public static class Plan {
+		/** URLs we need to download*/
+		public final ArrayList<String> download  = new ArrayList<String>();
+
+		/** Stale entries to revalidate with a conditional GET*/
+		public final ArrayList<Entry> revalidate = new ArrayList<Entry>();
+
+		/** Fresh URLs we don't need to touch*/
+		public final ArrayList<String> skipped 	 = new ArrayList<String>();
+
+		/** Size of the skipped files*/
+		public long bytesSkipped;
+
+		/** Entries no longer listed (but kept for now)*/
+		public int demoted;
+
+		/** Entries removed from the cache*/
+		public int evicted;
+
+		/** Number of distinct URLs in the list*/
+		public int getTotal() {
+			return download.size() + revalidate.size() + skipped.size();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d to download, %d to revalidate, %d skipped (%d bytes), %d demoted, %d evicted",
+								 download.size(), revalidate.size(), skipped.size(), bytesSkipped, demoted, evicted);
+		}
+	}
+
+	/** Gets the manifest for the shared precache (created in the app's cache directory)*/
+	public static synchronized PHPrecacheManifest getSharedManifest(Context context) {
+		if (sharedManifest == null && context != null)
+			sharedManifest = new PHPrecacheManifest(new File(context.getCacheDir(), MANIFEST_FILE));
+
+		return sharedManifest;
+	}
+
+	/** Replaces the shared manifest (mostly for testing)*/
+	public static synchronized void setSharedManifest(PHPrecacheManifest manifest) {
+		sharedManifest = manifest;
+	}
+
+	/** The manifest is read lazily (on the first access), so it's safe to create on the main UI thread*/
+	public PHPrecacheManifest(File file) {
+		this.file = file;
+	}
+
+	public synchronized Entry get(String url) {
+		ensureLoaded();
+
+		return entries.get(url);
+	}
+
+	public synchronized void put(Entry entry) {
+		ensureLoaded();
+
+		entries.put(entry.url, entry);
+	}
+
+	public synchronized int size() {
+		ensureLoaded();
+
+		return entries.size();
+	}
+
+	/**
+	 * Works out what to do with the URLs of a precache list and demotes (or evicts) whatever isn't listed anymore.
+	 * Reads the disk, call it on a background thread.
+	 * @param cache the precache (null or closed if unavailable, in which case everything is downloaded)
+	 */
+	public synchronized Plan diff(List<String> urls, DiskLruCache cache, long now) {
+		ensureLoaded();
+
+		Plan plan = new Plan();
+
+		boolean usable = (cache != null && ! cache.isClosed());
+
+		HashSet<String> listed = new HashSet<String>();
+
+		for (String url : urls) {
+			if ( ! listed.add(url)) continue; // listed twice
+
+			Entry entry = entries.get(url);
+
+			if (entry == null || ! usable || ! isCached(cache, entry)) {
+				// evicted by the cache (or never had it)
+				if (entry != null && usable) entries.remove(url);
+
+				plan.download.add(url);
+				continue;
+			}
+
+			if (entry.misses > 0) {
+				entry = entry.withMisses(0); // back on the list
+				entries.put(url, entry);
+			}
+
+			if (entry.isFresh(now)) {
+				plan.skipped.add(url);
+				plan.bytesSkipped += entry.size;
+
+			} else if (entry.hasValidator()) {
+				plan.revalidate.add(entry);
+
+			} else {
+				plan.download.add(url);
+			}
+		}
+
+		if (usable) demote(listed, cache, plan);
+
+		return plan;
+	}
+
+	/** Writes the manifest to disk (if anything changed since we loaded it). Call it on a background thread.*/
+	public synchronized void save() {
+		if ( ! loaded) return; // nothing could have changed
+
+		File tmp = new File(file.getPath() + ".tmp");
+
+		try {
+			JSONObject json = new JSONObject();
+
+			for (Entry entry : entries.values())
+				json.put(entry.url, entry.toJSON());
+
+			FileOutputStream out = new FileOutputStream(tmp);
+
+			try {
+				out.write(json.toString().getBytes("UTF-8"));
+				out.flush();
+			} finally {
+				out.close();
+			}
+
+			// never leave a half written manifest behind
+			if ( ! tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+
+		} catch (Exception e) { // swallow all exceptions
+			tmp.delete();
+			PHCrashReport.reportCrash(e, "PHPrecacheManifest - save", PHCrashReport.Urgency.low);
+		}
+	}
+
+	////////////////////////////////////////////////////
+
+	/** Does the cache still have the file (with the size we remember)?*/
+	private static boolean isCached(DiskLruCache cache, Entry entry) {
+		try {
+			DiskLruCache.Snapshot snapshot = cache.get(entry.url);
+			if (snapshot == null) return false;
+
+			File cached = snapshot.getInputStreamFile(PHAPIRequest.PRECACHE_FILE_KEY_INDEX);
+			snapshot.close();
+
+			return (cached != null && cached.length() == entry.size);
+
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHPrecacheManifest - isCached", PHCrashReport.Urgency.low);
+		}
+
+		return false;
+	}
+
+	private void demote(HashSet<String> listed, DiskLruCache cache, Plan plan) {
+		boolean full = (cache.size() > cache.maxSize() * DEMOTED_EVICTION_THRESHOLD);
+
+		ArrayList<Entry> demoted = new ArrayList<Entry>();
+
+		for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+			Entry entry = iterator.next();
+			if (listed.contains(entry.url)) continue;
+
+			if (full || entry.misses + 1 >= EVICT_AFTER_MISSES) {
+				try {
+					cache.remove(entry.url);
+				} catch (Exception e) { // swallow all exceptions
+					PHCrashReport.reportCrash(e, "PHPrecacheManifest - demote", PHCrashReport.Urgency.low);
+				}
+
+				iterator.remove();
+				plan.evicted++;
+
+			} else {
+				demoted.add(entry.withMisses(entry.misses + 1));
+				plan.demoted++;
+			}
+		}
+
+		for (Entry entry : demoted)
+			entries.put(entry.url, entry);
+	}
+
+	private void ensureLoaded() {
+		if (loaded) return;
+
+		loaded = true;
+
+		if ( ! file.exists()) return;
+
+		try {
+			InputStream in = new FileInputStream(file);
+			byte[] bytes   = new byte[(int) file.length()];
+
+			try {
+				for (int read = 0; read < bytes.length; ) {
+					int count = in.read(bytes, read, bytes.length - read);
+					if (count < 0) break;
+					read += count;
+				}
+			} finally {
+				in.close();
+			}
+
+			JSONObject json = new JSONObject(new String(bytes, "UTF-8"));
+
+			for (Iterator<?> urls = json.keys(); urls.hasNext(); ) {
+				String url = (String) urls.next();
+				entries.put(url, Entry.fromJSON(url, json.getJSONObject(url)));
+			}
+
+		} catch (Exception e) { // swallow all exceptions
+			// start from scratch, worst case we download everything again
+			entries.clear();
+			PHStringUtil.log("Could not read the precache manifest: " + e);
+		}
+	}
+}
@@ -1,30 +1,34 @@
 package com.playhaven.src.publishersdk.open;
 
 import java.io.BufferedOutputStream;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.zip.GZIPInputStream;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.os.AsyncTask;
 import android.os.Build;
 
 import com.jakewharton.DiskLruCache;
 import com.playhaven.src.common.PHAPIRequest;
+import com.playhaven.src.common.PHAsyncRequest;
 import com.playhaven.src.common.PHCrashReport;
+import com.playhaven.src.common.PHNetworkExecutor;
+import com.playhaven.src.common.PHTransferScheduler;
+import com.playhaven.src.common.PHTransport;
+import com.playhaven.src.utils.PHCountingInputStream;
 import com.playhaven.src.utils.PHStringUtil;
 
-public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
+public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> implements PHTransferScheduler.Job {
 	private static final Integer BUFFER_SIZE = 1024;
 	
 	public static interface Listener {
-		public void prefetchDone(int result);
+		/** @param result the HTTP status (304 if the cached copy is still good)*/
+		public void prefetchDone(PHPrefetchTask task, int result);
 	}
 	
 	public URL url;
@@ -33,6 +37,22 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
 	
 	private DiskLruCache cache;
 	
+	private PHTransferScheduler scheduler;
+	
+	private PHPrecacheManifest manifest;
+	
+	// what we have cached (only set when revalidating)
+	private PHPrecacheManifest.Entry cachedEntry;
+	
+	// bytes received over the network (compressed if gzipped)
+	private volatile long bytesReceived;
+	
+	// size of the cached file the server confirmed (304)
+	private volatile long bytesSaved;
+	
+	// did the transfer break off (as opposed to the server refusing it)?
+	private volatile boolean failed;
+	
 	///////////////////////////////////////////
 	//////////////// Accessors ///////////////
 	public void setOnPrefetchDoneListener(Listener listener) {
@@ -61,6 +81,29 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
 		this.cache = cache;
 	}
 	
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+	
+	/** Bytes we didn't have to download because the server confirmed our cached copy*/
+	public long getBytesSaved() {
+		return bytesSaved;
+	}
+	
+	/** Records what we download in the manifest*/
+	public void setManifest(PHPrecacheManifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	/** Revalidates the cached copy (conditional GET) instead of downloading it unconditionally*/
+	public void setCachedEntry(PHPrecacheManifest.Entry entry) {
+		this.cachedEntry = entry;
+	}
+	
+	public PHPrecacheManifest.Entry getCachedEntry() {
+		return cachedEntry;
+	}
+	
 	public DiskLruCache getCache() {
 		if (cache == null)
 			cache = DiskLruCache.getSharedDiskCache();
@@ -74,8 +117,9 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
 		
 		int responseCode = HttpStatus.SC_BAD_REQUEST;
 		
-		// Note: while HttpURLConnection might be simpler, we use the Apache
-		// libraries for easier testing with Robolectric
+		PHTransport.Request request = null;
+		
+		// Note: we go through the same transport as the api requests (Apache by default)
 		try {
 			synchronized (this) {
                 // Note: we ignore the input dummy variables since we use URL
@@ -83,59 +127,128 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
                     return HttpStatus.SC_BAD_REQUEST;
                 }
                 
-                DefaultHttpClient client = new DefaultHttpClient();
-                HttpGet request = new HttpGet(url.toString());
-                request.addHeader("Accept-Encoding", "gzip");
+                request = new PHTransport.Request(url.toString(), PHAsyncRequest.RequestType.Get);
+                request.setHeader("Accept-Encoding", "gzip");
+                
+                // the CDN may redirect us to the actual file
+                request.setFollowRedirects(true);
                 
-                HttpResponse response = client.execute(request);
+                // no overall deadline for (potentially large) files but never hang on a stalled connection
+                request.setConnectTimeout(PHAsyncRequest.DEFAULT_CONNECT_TIMEOUT);
+                request.setReadTimeout	 (PHAsyncRequest.DEFAULT_READ_TIMEOUT);
                 
-                responseCode = response.getStatusLine().getStatusCode();
-                if (responseCode != HttpStatus.SC_OK) {
+                if (cachedEntry != null) {
+                    if (cachedEntry.etag != null) 		  request.setHeader("If-None-Match", 	 cachedEntry.etag);
+                    if (cachedEntry.lastModified != null) request.setHeader("If-Modified-Since", cachedEntry.lastModified);
+                }
+                
+                PHTransport.Response response = PHAsyncRequest.PHHttpConn.getDefaultTransport().execute(request);
+                
+                responseCode = response.getStatusCode();
+                
+                if (responseCode == HttpStatus.SC_NOT_MODIFIED && cachedEntry != null) {
+                    response.release();
+                    
+                    bytesSaved = cachedEntry.size;
+                    if (manifest != null) manifest.put(cachedEntry.revalidated(response, System.currentTimeMillis()));
+                    
+                    return responseCode;
+                }
+                
+                if (responseCode != HttpStatus.SC_OK || response.getContent() == null) {
+                    // drain the (usually tiny) error body so the connection goes back to the pool
+                    response.release();
+                    
                     return responseCode;
                 }
                 
-                HttpEntity entity = response.getEntity();
                 
                 // dump to local cache
                 DiskLruCache.Editor editor = getCache().edit(url.toString());
-                // open a new handle to a cached file
-                BufferedOutputStream cachedFile = new BufferedOutputStream(editor.newOutputStream(PHAPIRequest.PRECACHE_FILE_KEY_INDEX));
-                
-                Header contentEncoding = entity.getContentEncoding();
-                String encoding = (contentEncoding == null) ? null : contentEncoding.getValue();
                 
-                if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
-                    GZIPInputStream in = new GZIPInputStream(entity.getContent());
-
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    int bytesRead = 0;
-
-                    while ((bytesRead = in.read(buffer)) != -1) {
-                        cachedFile.write(buffer, 0, bytesRead);
-                    }
+                if (editor == null) {
+                    // another task is writing the same file right now, it'll have it cached for us
+                    response.release();
                     
-                    in.close();
-                } else {
-                    // Content is not compressed.
-                    entity.writeTo(cachedFile);
+                    return responseCode;
                 }
+                
+                String encoding = response.getContentEncoding();
+                
+                // count what actually goes over the wire (for the mobile data budget)
+                PHCountingInputStream wire = new PHCountingInputStream(response.getContent());
+                InputStream in = wire;
+                
+                // hash what ends up in the cache for the manifest
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                
+                long size = 0;
+                
+                boolean committed = false;
+                
+                try {
+                    // open a new handle to a cached file
+                    BufferedOutputStream cachedFile = new BufferedOutputStream(editor.newOutputStream(PHAPIRequest.PRECACHE_FILE_KEY_INDEX));
                     
-                cachedFile.flush();
-                cachedFile.close();
+                    try {
+                        if (encoding != null && encoding.equalsIgnoreCase("gzip"))
+                            in = new GZIPInputStream(wire);
+                        
+                        in = new DigestInputStream(in, sha1);
+                        
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int bytesRead = 0;
+    
+                        while ((bytesRead = in.read(buffer)) != -1) {
+                            cachedFile.write(buffer, 0, bytesRead);
+                            size += bytesRead;
+                        }
+                        
+                    } finally {
+                        bytesReceived = wire.getCount();
+                        in.close();
+                        cachedFile.close();
+                    }
+                    
+                    editor.commit();
+                    committed = true;
                     
-                editor.commit();
-         
-                client.getConnectionManager().shutdown();
+                } finally {
+                    // never leave a half written entry locked in the cache
+                    if ( ! committed) abortQuietly(editor);
+                }
+                
+                // Note: reading to the end and closing the stream already released the connection
     
                 getCache().flush();
+                
+                if (manifest != null) {
+                    char[] hash = new char[PHStringUtil.SHA1_LENGTH * 2];
+                    PHStringUtil.encodeHex(sha1.digest(), 0, PHStringUtil.SHA1_LENGTH, hash, 0);
+                    
+                    manifest.put(PHPrecacheManifest.Entry.fromResponse(url.toString(), response, size, new String(hash), System.currentTimeMillis()));
+                }
 			}
 		} catch (Exception e) { // swallow all exceptions
+			// release the pooled connection
+			if (request != null) request.abort();
+			
+			failed = true;
+			
 			PHCrashReport.reportCrash(e, "PHPrefetchTask - doInBackground", PHCrashReport.Urgency.low);
 		}
 		
 		return responseCode;
 	}
 	
+	private static void abortQuietly(DiskLruCache.Editor editor) {
+		try {
+			editor.abort();
+		} catch (Exception e) { // swallow all exceptions
+			PHStringUtil.log("Could not abort the precache edit: " + e);
+		}
+	}
+	
 	/**
 	 * Fixes strange bug in pre-Froyo distributions
 	 * @see http://android-developers.blogspot.com/2011/09/androids-http-clients.html
@@ -154,7 +267,46 @@ public class PHPrefetchTask extends AsyncTask<Integer, Integer, Integer> {
 	protected void onPostExecute(Integer result) {
 		PHStringUtil.log("Pre-fetch finished with response code: " + result);
 		
+		// the scheduler may try again later (if we lost the network) in which case we aren't done yet
+		boolean succeeded = ( ! failed && (result == HttpStatus.SC_OK || result == HttpStatus.SC_NOT_MODIFIED));
+		
+		if (scheduler != null && scheduler.finished(this, bytesReceived, succeeded))
+			return;
+		
 		// don't catch exceptions from listener
-		if (listener != null) listener.prefetchDone(result);
+		if (listener != null) listener.prefetchDone(this, result);
+	}
+	
+	///////////////////////////////////////////
+	/////////// Transfer Scheduler ////////////
+	@Override
+	public PHNetworkExecutor.Priority getJobClass() {
+		return PHNetworkExecutor.Priority.Precache;
+	}
+	
+	@Override
+	public void start(PHTransferScheduler scheduler) {
+		this.scheduler = scheduler;
+		
+		PHNetworkExecutor.execute(this, PHNetworkExecutor.Priority.Precache);
+	}
+	
+	@Override
+	public PHTransferScheduler.Job createRetry() {
+		if (url == null) return null;
+		
+		PHPrefetchTask retry = new PHPrefetchTask();
+		retry.url 		  = url;
+		retry.listener 	  = listener;
+		retry.cache 	  = cache;
+		retry.manifest 	  = manifest;
+		retry.cachedEntry = cachedEntry;
+		
+		return retry;
+	}
+	
+	@Override
+	public String getHost() {
+		return (url != null ? url.getHost() : null);
 	}
 }
@@ -3,19 +3,29 @@ package com.playhaven.src.publishersdk.open;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.http.HttpStatus;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import com.jakewharton.DiskLruCache;
 import com.playhaven.src.common.PHAPIRequest;
 import com.playhaven.src.common.PHConfig;
 import com.playhaven.src.common.PHCrashReport;
+import com.playhaven.src.common.PHNetworkExecutor;
 import com.playhaven.src.common.PHSession;
+import com.playhaven.src.common.PHTransferScheduler;
+import com.playhaven.src.utils.PHStringUtil;
 
 public class PHPublisherOpenRequest extends PHAPIRequest implements PHPrefetchTask.Listener {
 	private ConcurrentLinkedQueue<PHPrefetchTask> prefetchTasks = new ConcurrentLinkedQueue<PHPrefetchTask>(); 
@@ -30,10 +40,82 @@ public class PHPublisherOpenRequest extends PHAPIRequest implements PHPrefetchTa
 		public void prefetchFinished(PHPublisherOpenRequest request);
 	}
 	
+	/** Optional listener extension which is told (on the main UI thread) whenever a single pre-fetch is done
+	 * (or once, with everything completed, if every URL was still fresh in the cache)*/
+	public static interface PrefetchProgressListener extends PrefetchListener {
+		public void prefetchProgress(PHPublisherOpenRequest request, int completed, int total);
+	}
+	
+	/** The outcome of pre-caching everything the server asked for*/
+	public static class PrefetchSummary {
+		/** Distinct URLs in the precache list*/
+		public final int total;
+		
+		/** URLs we have a good copy of now (including the skipped and not modified ones)*/
+		public final int succeeded;
+		
+		/** URLs which were still fresh in the cache (no request at all)*/
+		public final int skipped;
+		
+		/** URLs the server confirmed with a 304*/
+		public final int notModified;
+		
+		/** Bytes received over the network*/
+		public final long bytesDownloaded;
+		
+		/** Size of the cached files we didn't have to download (skipped or not modified)*/
+		public final long bytesSaved;
+		
+		/** Time (ms) from scheduling the first download until the last one finished*/
+		public final long elapsed;
+		
+		public PrefetchSummary(int total, int succeeded, int skipped, int notModified, long bytesDownloaded, long bytesSaved, long elapsed) {
+			this.total 			 = total;
+			this.succeeded 		 = succeeded;
+			this.skipped 		 = skipped;
+			this.notModified 	 = notModified;
+			this.bytesDownloaded = bytesDownloaded;
+			this.bytesSaved 	 = bytesSaved;
+			this.elapsed 		 = elapsed;
+		}
+		
+		public int getFailed() {
+			return total - succeeded;
+		}
+	}
+	
 	private PrefetchListener prefetch_listener;
 	
 	private PHSession session;
 	
+	private PHTransferScheduler scheduler;
+	
+	private PHPrecacheManifest manifest;
+	
+	// diffed on the background thread
+	private volatile PHPrecacheManifest.Plan preparedPlan;
+	
+	// prefetches which haven't reported back yet
+	private int outstandingPrefetches;
+	
+	private int totalPrefetches;
+	
+	private int succeededPrefetches;
+	
+	private int skippedPrefetches;
+	
+	private int notModifiedPrefetches;
+	
+	private long bytesDownloaded;
+	
+	private long bytesSaved;
+	
+	private long prefetchStart;
+	
+	private volatile PrefetchSummary prefetchSummary;
+	
+	private FutureTask<PrefetchSummary> prefetchFuture = createPrefetchFuture();
+	
 	public void setPrefetchListener(PrefetchListener listener) {
 		this.prefetch_listener = listener;
 	}
@@ -50,6 +132,13 @@ public class PHPublisherOpenRequest extends PHAPIRequest implements PHPrefetchTa
 		return prefetchTasks;
 	}
 	
+	/** Completes once everything in the response's precache list has been downloaded (or failed to), right away if there
+	 * was nothing to precache. Never completes if the open request itself fails. Don't wait on it from the main UI thread.
+	 */
+	public Future<PrefetchSummary> getPrefetchFuture() {
+		return prefetchFuture;
+	}
+	
 	public PHPublisherOpenRequest(Context context, PHAPIRequest.Delegate delegate) {
 		this(context);
 		this.setDelegate(delegate);
@@ -78,7 +167,9 @@ public class PHPublisherOpenRequest extends PHAPIRequest implements PHPrefetchTa
             }
 		}
 		
-		session = PHSession.getInstance(context);
+		session 	= PHSession.getInstance(context);
+		scheduler 	= PHTransferScheduler.getSharedScheduler(context);
+		manifest 	= PHPrecacheManifest.getSharedManifest(context);
 	}
 	
 	@Override
@@ -87,70 +178,195 @@ public class PHPublisherOpenRequest extends PHAPIRequest implements PHPrefetchTa
 	}
 	
 	@Override
-	public void send() {
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Open;
+	}
+	
+	@Override
+	public boolean isSpoolable() {
+		return true; // the session stats must reach the server even if we're offline now
+	}
+	
+	@Override
+	protected void willSend() {
 		// Note: ordering is important! You *must* call session.start() *before* sending the request
 	    session.start();
-	    super.send();
+	    
+	    if (scheduler != null) scheduler.startSession(); // fresh mobile data budget
+	}
+	
+	/** Diffs the precache list against what we already have on the background thread*/
+	@Override
+	public void prepareRequestSuccess(JSONObject res) {
+		super.prepareRequestSuccess(res);
+		
+		preparedPlan = null;
+		
+		if (PHConfig.precache && res != null && res.has("precache"))
+			preparedPlan = createPrecachePlan(res);
 	}
 	
 	@Override
 	public void handleRequestSuccess(JSONObject res) {
+		if (prefetchFuture.isDone()) prefetchFuture = createPrefetchFuture(); // sent again
+		
+		outstandingPrefetches = totalPrefetches = succeededPrefetches = 0;
+		skippedPrefetches 	  = notModifiedPrefetches = 0;
+		bytesDownloaded 	  = bytesSaved = 0;
+		
+		int listed = 0;
 		
 		if ( PHConfig.precache && res.has("precache") ) {
 			prefetchTasks.clear();
 			
-			JSONArray precached = res.optJSONArray("precache");
-			if (precached != null) {	
-				
-				for (int i = 0; i < precached.length(); i++) {
-					String url = precached.optString(i);
-					
-					if (url != null) {
-						PHPrefetchTask task = new PHPrefetchTask();
-						task.setOnPrefetchDoneListener(this);
-						task.setURL(url);
-						prefetchTasks.add(task);
-					}
-					
-				}
-			}
+			// not prepared on the background thread (called directly)
+			PHPrecacheManifest.Plan plan = (preparedPlan != null ? preparedPlan : createPrecachePlan(res));
+			preparedPlan = null;
+			
+			PHStringUtil.log("Precache: " + plan);
+			
+			listed = plan.getTotal();
+			
+			for (String url : plan.download)
+				addPrefetch(url, null);
+			
+			for (PHPrecacheManifest.Entry entry : plan.revalidate)
+				addPrefetch(entry.url, entry);
+			
+			skippedPrefetches 	  = plan.skipped.size();
+			bytesSaved 			  = plan.bytesSkipped;
+			
+			outstandingPrefetches = totalPrefetches = prefetchTasks.size();
+			prefetchStart 		  = SystemClock.elapsedRealtime();
 			
 			// start fetching the pre-cached elements
 			if (startPrecachingImmediately)
-				startNextPrefetch();
+				schedulePrefetches();
 		}
 		
-        if (prefetchTasks.size() == 0) {
+		// Note: scheduling takes the tasks out of the queue, only close the cache if there aren't any downloads
+        if (outstandingPrefetches == 0) {
             try {
-                DiskLruCache.getSharedDiskCache().close();
+                DiskLruCache cache = DiskLruCache.getSharedDiskCache();
+                if (cache != null) cache.close();
             } catch (IOException e) {
                 PHCrashReport.reportCrash(e, "PHPublisherOpenRequest - handleRequestSuccess", PHCrashReport.Urgency.high);
             }
+            
+            completePrefetches();
         }
 		
 		session.startAndReset();
 		
 		// call out to delegates
 		super.handleRequestSuccess(res);
+		
+		// everything listed was already fresh in the cache: we are done precaching without a single download
+		if (outstandingPrefetches == 0 && listed > 0)
+			skippedAllPrefetches();
+	}
+	
+	/** Tells the listener we're done (after the delegate, as with downloads) when the plan skipped every URL*/
+	private void skippedAllPrefetches() {
+		try {
+			saveManifest(); // the diff may have demoted or evicted entries
+			
+			if (prefetch_listener instanceof PrefetchProgressListener)
+				((PrefetchProgressListener)prefetch_listener).prefetchProgress(this, skippedPrefetches, skippedPrefetches);
+			
+			if (prefetch_listener != null) prefetch_listener.prefetchFinished(this);
+			
+		} catch (Exception e) { // swallow all exceptions
+			PHCrashReport.reportCrash(e, "PHPublisherOpenRequest - skippedAllPrefetches", PHCrashReport.Urgency.low);
+		}
+	}
+	
+	/** Works out what to download (reads the disk)*/
+	private PHPrecacheManifest.Plan createPrecachePlan(JSONObject res) {
+		ArrayList<String> urls = new ArrayList<String>();
+		
+		JSONArray precached = res.optJSONArray("precache");
+		if (precached != null) {
+			for (int i = 0; i < precached.length(); i++) {
+				String url = precached.optString(i);
+				
+				if (url != null && url.length() > 0) urls.add(url);
+			}
+		}
+		
+		if (manifest == null) {
+			// no manifest, download everything
+			PHPrecacheManifest.Plan plan = new PHPrecacheManifest.Plan();
+			plan.download.addAll(urls);
+			
+			return plan;
+		}
+		
+		PHPrecacheManifest.Plan plan = manifest.diff(urls, DiskLruCache.getSharedDiskCache(), System.currentTimeMillis());
+		
+		manifest.save(); // the demotions
+		
+		return plan;
 	}
 	
+	private void addPrefetch(String url, PHPrecacheManifest.Entry cached) {
+		PHPrefetchTask task = new PHPrefetchTask();
+		task.setOnPrefetchDoneListener(this);
+		task.setURL(url);
+		task.setManifest(manifest);
+		task.setCachedEntry(cached);
+		prefetchTasks.add(task);
+	}
+	
+	/** Hands all the prefetches to the {@link PHTransferScheduler} which runs them (in parallel and per host limited)
+	 * as the connection allows
+	 */
+	private void schedulePrefetches() {
+		PHPrefetchTask task;
+		
+		while ((task = prefetchTasks.poll()) != null) {
+			if (scheduler != null)
+				scheduler.submit(task);
+			else
+				PHNetworkExecutor.execute(task, PHNetworkExecutor.Priority.Precache);
+		}
+	}
+	
+	/** Starts the next prefetch right away (regardless of the connection)*/
 	public void startNextPrefetch() {
-		if (prefetchTasks.size() > 0) prefetchTasks.poll().execute();
+		if (prefetchTasks.size() > 0) 
+			PHNetworkExecutor.execute(prefetchTasks.poll(), PHNetworkExecutor.Priority.Precache);
 	}
 	
 	///////////////////////////////////////////////////////////
 	//////////////////// Prefetch Listener ////////////////////
 	@Override
-	public void prefetchDone(int result) {
+	public void prefetchDone(PHPrefetchTask task, int result) {
 		try {
+			if (result == HttpStatus.SC_OK || result == HttpStatus.SC_NOT_MODIFIED) 
+				succeededPrefetches++;
 			
-			// previous prefetch is finished, start the next one
-			if (prefetchTasks.size() > 0 && startPrecachingImmediately) {
-				startNextPrefetch();
-			} else { // no more pre-fetches? Call back to delegate
-			    DiskLruCache.getSharedDiskCache().close();
-				if (prefetch_listener != null) prefetch_listener.prefetchFinished(this);
-			}
+			if (result == HttpStatus.SC_NOT_MODIFIED) 
+				notModifiedPrefetches++;
+			
+			bytesDownloaded += task.getBytesReceived();
+			bytesSaved 		+= task.getBytesSaved();
+			
+			// the scheduler starts the next one, we only wait for all of them
+			--outstandingPrefetches;
+			
+			if (prefetch_listener instanceof PrefetchProgressListener)
+				((PrefetchProgressListener)prefetch_listener).prefetchProgress(this, totalPrefetches - outstandingPrefetches, totalPrefetches);
+			
+			if (outstandingPrefetches > 0) return;
+			
+			// no more pre-fetches? Call back to delegate
+		    DiskLruCache.getSharedDiskCache().close();
+		    completePrefetches();
+		    
+		    saveManifest();
+		    
+			if (prefetch_listener != null) prefetch_listener.prefetchFinished(this);
 			
 		} catch (Exception e) { // swallow all exceptions
 			PHCrashReport.reportCrash(e, "PHPublisherOpenRequest - prefetchDone", PHCrashReport.Urgency.low);
@@ -158,6 +374,45 @@ public class PHPublisherOpenRequest extends PHAPIRequest implements PHPrefetchTa
 
 	}
 	
+	private void completePrefetches() {
+		long elapsed 	= (totalPrefetches > 0 ? SystemClock.elapsedRealtime() - prefetchStart : 0);
+		prefetchSummary = new PrefetchSummary(totalPrefetches + skippedPrefetches, 
+											  succeededPrefetches + skippedPrefetches, 
+											  skippedPrefetches,
+											  notModifiedPrefetches,
+											  bytesDownloaded,
+											  bytesSaved,
+											  elapsed);
+		
+		if (prefetchSummary.total > 0)
+			PHStringUtil.log(String.format("Precache done: %d bytes downloaded, %d bytes saved", bytesDownloaded, bytesSaved));
+		
+		prefetchFuture.run(); // hands out the summary
+	}
+	
+	/** Persists what the downloads recorded in the manifest (in the background)*/
+	private void saveManifest() {
+		if (manifest == null) return;
+		
+		final PHPrecacheManifest saved = manifest;
+		
+		PHNetworkExecutor.getExecutor(PHNetworkExecutor.Priority.Precache).execute(new Runnable() {
+			@Override
+			public void run() {
+				saved.save();
+			}
+		});
+	}
+	
+	private FutureTask<PrefetchSummary> createPrefetchFuture() {
+		return new FutureTask<PrefetchSummary>(new Callable<PrefetchSummary>() {
+			@Override
+			public PrefetchSummary call() {
+				return prefetchSummary;
+			}
+		});
+	}
+	
 	@Override
     public Hashtable<String, String> getAdditionalParams() {
 	    Hashtable<String, String> params = new Hashtable<String, String>();
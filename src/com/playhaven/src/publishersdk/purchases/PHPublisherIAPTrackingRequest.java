@@ -10,6 +10,7 @@ import android.content.Context;
 
 import com.playhaven.src.common.PHAPIRequest;
 import com.playhaven.src.common.PHError;
+import com.playhaven.src.common.PHNetworkExecutor;
 import com.playhaven.src.publishersdk.content.PHPurchase;
 
 public class PHPublisherIAPTrackingRequest extends PHAPIRequest {
@@ -105,6 +106,16 @@ public class PHPublisherIAPTrackingRequest extends PHAPIRequest {
 		return super.createAPIURL("/v3/publisher/iap/");
 	}
 
+	@Override
+	public PHNetworkExecutor.Priority getPriority() {
+		return PHNetworkExecutor.Priority.Open;
+	}
+
+	@Override
+	public boolean isSpoolable() {
+		return true; // purchases made offline must still be tracked
+	}
+	
 	@Override
 	public Hashtable<String, String> getAdditionalParams() {
 		// always refresh locale
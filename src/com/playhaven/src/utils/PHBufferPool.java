@@ -0,0 +1,114 @@
+package com.playhaven.src.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small pool of byte arrays used for reading network responses. Buffers come in power of two size classes
+ * (from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}) so that a response can be read into a presized
+ * buffer and the buffer handed back once we are done with it instead of allocating (and collecting) a new one
+ * every request. Buffers are acquired on the network threads and usually released on the main UI thread,
+ * so the pool is synchronized rather than thread-confined.
+ *
+ * Requests larger than {@link #MAX_BUFFER_SIZE} simply get a fresh (unpooled) array.
+ */
+public class PHBufferPool {
+
+	public static final int MIN_BUFFER_SIZE 	= 4 * 1024;
+
+	public static final int MAX_BUFFER_SIZE 	= 256 * 1024;
+
+	/** Maximum number of idle buffers kept per size class*/
+	public static final int MAX_POOLED_PER_CLASS = 2;
+
+	/** Upper bound on the total memory held by idle buffers*/
+	public static final int MAX_POOLED_BYTES 	= 512 * 1024;
+
+	private static final int CLASS_COUNT 		= Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE / MIN_BUFFER_SIZE) + 1;
+
+	private static final byte[][][] pool 		= new byte[CLASS_COUNT][MAX_POOLED_PER_CLASS][];
+
+	private static final int[] pooledCount 	= new int[CLASS_COUNT];
+
+	private static int pooledBytes 				= 0;
+
+	private static final AtomicLong allocations = new AtomicLong();
+
+	private static final AtomicLong reuses 		= new AtomicLong();
+
+	/** Gets a buffer of at least the given size. The buffer may be larger and will contain garbage.*/
+	public static byte[] acquire(int minSize) {
+		if (minSize > MAX_BUFFER_SIZE) {
+			allocations.incrementAndGet();
+			return new byte[minSize];
+		}
+
+		int sizeClass = sizeClass(minSize);
+
+		synchronized (pool) {
+			if (pooledCount[sizeClass] > 0) {
+				int index 		= --pooledCount[sizeClass];
+				byte[] buffer 	= pool[sizeClass][index];
+
+				pool[sizeClass][index] = null;
+				pooledBytes -= buffer.length;
+
+				reuses.incrementAndGet();
+				return buffer;
+			}
+		}
+
+		allocations.incrementAndGet();
+		return new byte[MIN_BUFFER_SIZE << sizeClass];
+	}
+
+	/** Hands a buffer back to the pool. You must not touch the buffer (or any view on it) afterwards.*/
+	public static void release(byte[] buffer) {
+		if (buffer == null || buffer.length > MAX_BUFFER_SIZE || buffer.length < MIN_BUFFER_SIZE) return;
+
+		int sizeClass = sizeClass(buffer.length);
+
+		if ((MIN_BUFFER_SIZE << sizeClass) != buffer.length) return; // not one of ours
+
+		synchronized (pool) {
+			if (pooledCount[sizeClass] == MAX_POOLED_PER_CLASS ||
+				pooledBytes + buffer.length > MAX_POOLED_BYTES) return; // let the GC have it
+
+			pool[sizeClass][pooledCount[sizeClass]++] = buffer;
+			pooledBytes += buffer.length;
+		}
+	}
+
+	/** Number of buffers we had to allocate*/
+	public static long getAllocationCount() {
+		return allocations.get();
+	}
+
+	/** Number of buffers served from the pool*/
+	public static long getReuseCount() {
+		return reuses.get();
+	}
+
+	/** Drops all idle buffers (for low memory situations and testing)*/
+	public static void clear() {
+		synchronized (pool) {
+			for (int i = 0; i < CLASS_COUNT; i++) {
+				for (int j = 0; j < MAX_POOLED_PER_CLASS; j++)
+					pool[i][j] = null;
+
+				pooledCount[i] = 0;
+			}
+
+			pooledBytes = 0;
+		}
+	}
+
+	/** Smallest size class which fits the given size*/
+	private static int sizeClass(int size) {
+		int sizeClass = 0;
+
+		while ((MIN_BUFFER_SIZE << sizeClass) < size)
+			sizeClass++;
+
+		return sizeClass;
+	}
+}
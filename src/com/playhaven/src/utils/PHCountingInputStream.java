@@ -0,0 +1,50 @@
+package com.playhaven.src.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Simple stream wrapper which counts the number of bytes read through it*/
+public class PHCountingInputStream extends FilterInputStream {
+	private long count = 0;
+
+	public PHCountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+
+		if (b != -1) count++;
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		int read = super.read(buffer, offset, length);
+
+		if (read > 0) count += read;
+
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+
+		count += skipped;
+
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false; // keeps the count honest
+	}
+}
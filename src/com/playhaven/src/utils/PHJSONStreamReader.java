@@ -0,0 +1,365 @@
+package com.playhaven.src.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal pull parser which reads JSON straight from a stream. Unlike {@link JSONObject#JSONObject(String)}
+ * we never need the whole document in memory as a String: values are built directly into
+ * {@link JSONObject}s and {@link JSONArray}s as we go and values we don't care about are skipped
+ * without being built at all (see {@link #skipValue()}).
+ *
+ * Typical usage for reading only some keys of an object:
+ * <pre>
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     String name = reader.nextName();
+ *     if (name.equals("response")) response = reader.readValue();
+ *     else reader.skipValue();
+ * }
+ * reader.endObject();
+ * </pre>
+ *
+ * Note: android.util.JsonReader does the same but is only available on Honeycomb and above.
+ */
+public class PHJSONStreamReader {
+	private static final int BUFFER_SIZE = 1024;
+
+	private final Reader in;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int pos   = 0;
+
+	private int limit = 0;
+
+	// re-used when reading strings and numbers
+	private final StringBuilder scratch = new StringBuilder();
+
+	// for every open object or array: has it had an element yet? (so we know whether a comma must come next)
+	private boolean[] hasElements = new boolean[16];
+
+	private int depth = 0;
+
+	public PHJSONStreamReader(Reader in) {
+		this.in = in;
+	}
+
+	/** Reads UTF-8 from the given stream*/
+	public PHJSONStreamReader(InputStream in) throws IOException {
+		this(new InputStreamReader(in, "UTF-8"));
+	}
+
+	///////////////////////////////////////////////
+	////////////// Pull Methods ///////////////////
+
+	public void beginObject() throws IOException, JSONException {
+		expect('{');
+		push();
+	}
+
+	public void endObject() throws IOException, JSONException {
+		expect('}');
+		pop();
+	}
+
+	public void beginArray() throws IOException, JSONException {
+		expect('[');
+		push();
+	}
+
+	public void endArray() throws IOException, JSONException {
+		expect(']');
+		pop();
+	}
+
+	/** Checks if the current object or array has another element. Consumes the separating comma,
+	 * so call it exactly once before every element.
+	 * @throws JSONException if the elements aren't separated by exactly one comma
+	 */
+	public boolean hasNext() throws IOException, JSONException {
+		int c = peekNonWhitespace();
+
+		if (c == '}' || c == ']') return false;
+
+		if (c == -1) throw new JSONException("Unterminated JSON");
+
+		if (depth > 0 && hasElements[depth - 1]) {
+			if (c != ',') throw new JSONException("Expected ',' but found '" + (char)c + "'");
+
+			pos++;
+
+			c = peekNonWhitespace();
+			if (c == ',' || c == '}' || c == ']') throw new JSONException("Unexpected '" + (char)c + "' after ','");
+
+		} else if (c == ',') {
+			throw new JSONException("Unexpected ',' before the first element");
+		}
+
+		if (depth > 0) hasElements[depth - 1] = true;
+
+		return true;
+	}
+
+	/** Reads the name of the next key in an object (including the ':')*/
+	public String nextName() throws IOException, JSONException {
+		if (peekNonWhitespace() != '"') throw new JSONException("Expected a key name");
+
+		String name = readString();
+		expect(':');
+
+		return name;
+	}
+
+	/** Reads the next value fully.
+	 * @return a {@link JSONObject}, {@link JSONArray}, String, Boolean, Number or {@link JSONObject#NULL}
+	 */
+	public Object readValue() throws IOException, JSONException {
+		int c = peekNonWhitespace();
+
+		switch (c) {
+			case '{':
+				return readObject();
+			case '[':
+				return readArray();
+			case '"':
+				return readString();
+			case 't':
+				expectLiteral("true");
+				return Boolean.TRUE;
+			case 'f':
+				expectLiteral("false");
+				return Boolean.FALSE;
+			case 'n':
+				expectLiteral("null");
+				return JSONObject.NULL;
+			case -1:
+				throw new JSONException("Unexpected end of JSON");
+			default:
+				return readNumber();
+		}
+	}
+
+	public JSONObject readObject() throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+
+		beginObject();
+		while (hasNext()) {
+			String name = nextName();
+			object.put(name, readValue());
+		}
+		endObject();
+
+		return object;
+	}
+
+	public JSONArray readArray() throws IOException, JSONException {
+		JSONArray array = new JSONArray();
+
+		beginArray();
+		while (hasNext())
+			array.put(readValue());
+		endArray();
+
+		return array;
+	}
+
+	/** Skips the next value without building it*/
+	public void skipValue() throws IOException, JSONException {
+		int c = peekNonWhitespace();
+
+		if (c == '"') {
+			skipString();
+
+		} else if (c == '{' || c == '[') {
+			int depth = 0;
+
+			do {
+				c = peekNonWhitespace();
+
+				if (c == -1) throw new JSONException("Unterminated JSON");
+
+				if (c == '"') {
+					skipString();
+					continue;
+				}
+
+				pos++;
+
+				if (c == '{' || c == '[') depth++;
+				else if (c == '}' || c == ']') depth--;
+
+			} while (depth > 0);
+
+		} else {
+			readValue(); // literals and numbers are tiny
+		}
+	}
+
+	///////////////////////////////////////////////
+	/////////////// Helpers ///////////////////////
+
+	private void push() {
+		if (depth == hasElements.length) {
+			boolean[] grown = new boolean[depth * 2];
+			System.arraycopy(hasElements, 0, grown, 0, depth);
+			hasElements = grown;
+		}
+
+		hasElements[depth++] = false;
+	}
+
+	private void pop() {
+		if (depth > 0) depth--;
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit) {
+			limit = in.read(buffer, 0, BUFFER_SIZE);
+			pos   = 0;
+
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+
+		return buffer[pos];
+	}
+
+	private int peekNonWhitespace() throws IOException {
+		int c = peek();
+
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+			pos++;
+			c = peek();
+		}
+
+		return c;
+	}
+
+	private int next() throws IOException, JSONException {
+		int c = peek();
+
+		if (c == -1) throw new JSONException("Unexpected end of JSON");
+
+		pos++;
+		return c;
+	}
+
+	private void expect(char expected) throws IOException, JSONException {
+		if (peekNonWhitespace() != expected)
+			throw new JSONException("Expected '" + expected + "'");
+
+		pos++;
+	}
+
+	private void expectLiteral(String literal) throws IOException, JSONException {
+		for (int i = 0; i < literal.length(); i++) {
+			if (next() != literal.charAt(i))
+				throw new JSONException("Expected '" + literal + "'");
+		}
+	}
+
+	private String readString() throws IOException, JSONException {
+		scratch.setLength(0);
+
+		pos++; // opening quote
+
+		while (true) {
+			int c = next();
+
+			if (c == '"') break;
+
+			if (c == '\\') {
+				c = next();
+
+				switch (c) {
+					case 'b': scratch.append('\b'); break;
+					case 't': scratch.append('\t'); break;
+					case 'n': scratch.append('\n'); break;
+					case 'f': scratch.append('\f'); break;
+					case 'r': scratch.append('\r'); break;
+					case 'u':
+						int code = 0;
+						for (int i = 0; i < 4; i++)
+							code = (code << 4) | hexValue(next());
+
+						scratch.append((char)code);
+						break;
+					default: // quotes and slashes
+						scratch.append((char)c);
+						break;
+				}
+
+			} else {
+				scratch.append((char)c);
+			}
+		}
+
+		return scratch.toString();
+	}
+
+	private void skipString() throws IOException, JSONException {
+		pos++; // opening quote
+
+		int c;
+		while ((c = next()) != '"') {
+			if (c == '\\') next();
+		}
+	}
+
+	private Object readNumber() throws IOException, JSONException {
+		scratch.setLength(0);
+
+		boolean isDecimal = false;
+
+		int c = peek();
+		while ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+			if (c == '.' || c == 'e' || c == 'E') isDecimal = true;
+
+			scratch.append((char)c);
+			pos++;
+			c = peek();
+		}
+
+		if (scratch.length() == 0) throw new JSONException("Unexpected character '" + (char)c + "'");
+
+		String number = scratch.toString();
+
+		try {
+			if ( ! isDecimal) {
+				long value = Long.parseLong(number);
+
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+					return Integer.valueOf((int)value);
+
+				return Long.valueOf(value);
+			}
+
+		} catch (NumberFormatException e) {
+			// too big for a long, like JSONObject we fall back to a double
+		}
+
+		try {
+			return Double.valueOf(number);
+
+		} catch (NumberFormatException e) {
+			throw new JSONException("Invalid number: " + number);
+		}
+	}
+
+	private static int hexValue(int c) throws JSONException {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+
+		throw new JSONException("Invalid unicode escape");
+	}
+}
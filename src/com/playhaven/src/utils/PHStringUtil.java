@@ -3,16 +3,15 @@ package com.playhaven.src.utils;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.UUID;
 
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
 import com.playhaven.src.common.PHConfig;
@@ -40,6 +39,11 @@ public class PHStringUtil extends Object {
 	
 	public static UUIDGenerator UUID_GENERATOR = new DefaultUUIDGenerator();
 	
+	/** Are we still using the real (random) generator? False once a test injected its own.*/
+	public static boolean hasDefaultUUIDGenerator() {
+		return (UUID_GENERATOR instanceof DefaultUUIDGenerator);
+	}
+	
 	/** Creates a simple HashMapmapping keys to values from the specified query.*/
 	public static HashMap<String, String> createQueryDict(String query) {
 		if (query == null) return null;
@@ -73,32 +77,37 @@ public class PHStringUtil extends Object {
 	public static String createQuery(HashMap<String, String> dict) {
 		if (dict == null) return null;
 		
-		StringBuilder query = new StringBuilder();
+		StringBuilder query = new StringBuilder(dict.size() * 32);
 		
-		for (Map.Entry<String, String>  entry : dict.entrySet()) {
-			
-			String key   = entry.getKey();
-			String value = entry.getValue();
-			
-			if (key   == null ||
-				value == null) continue; 
-				
-			key   = PHStringUtil.urlEncode(key);
-			value = PHStringUtil.weakUrlEncode(value); // weak encode url for server side compatibility
-			
-			// only append '&' if not first key/value pair
-			query.append(String.format(
-						query.length() == 0 ? "%s=%s" 
-											: "&%s=%s", 
-						key, 
-						value)
-						);
-			
-		}
+		appendQuery(query, dict);
 		
 		return query.toString();
 	}
 	
+	/** Like {@link #createQuery(HashMap)} but appends to the given builder (adding a '&' if needed)*/
+	public static void appendQuery(StringBuilder query, Map<String, String> dict) {
+		for (Map.Entry<String, String>  entry : dict.entrySet())
+			appendQueryParam(query, entry.getKey(), entry.getValue());
+	}
+	
+	/** Appends a single key=value pair (skipped if either is null), adding a '&' unless at the start of the query.
+	 * The value is only weakly encoded for server side compatibility.
+	 */
+	public static void appendQueryParam(StringBuilder query, String key, String value) {
+		if (key   == null ||
+			value == null) return;
+		
+		int length = query.length();
+		
+		// only append '&' if not first key/value pair
+		if (length > 0 && query.charAt(length - 1) != '?' && query.charAt(length - 1) != '&')
+			query.append('&');
+		
+		query.append(PHStringUtil.urlEncode(key)).append('=');
+		
+		appendWeakUrlEncoded(query, value);
+	}
+	
 	/** Grabs query component only from url. If no query component, returns null.*/
 	public static String queryComponent(String url) {
 		int queryStart = url.indexOf("?");
@@ -112,93 +121,243 @@ public class PHStringUtil extends Object {
 		return URLEncoder.encode(in);
 	}
 	
+	// what weakUrlEncode escapes (indexed by the ASCII character, null means left as is)
+	private static final String[] WEAK_ESCAPES = new String[128];
+	
+	static {
+		WEAK_ESCAPES[';']  = "%3B";
+		WEAK_ESCAPES['?']  = "%3F";
+		WEAK_ESCAPES[' ']  = "+";
+		WEAK_ESCAPES['&']  = "%26";
+		WEAK_ESCAPES['=']  = "%3D";
+		WEAK_ESCAPES['$']  = "%24";
+		WEAK_ESCAPES[',']  = "%2C";
+		WEAK_ESCAPES['[']  = "%5B";
+		WEAK_ESCAPES[']']  = "%5D";
+		WEAK_ESCAPES['#']  = "%23";
+		WEAK_ESCAPES['!']  = "%21";
+		WEAK_ESCAPES['\''] = "%27";
+		WEAK_ESCAPES['(']  = "%28";
+		WEAK_ESCAPES[')']  = "%29";
+		WEAK_ESCAPES['*']  = "%2A";
+	}
+	
 	/** 
 	 * Doesn't encode characters such as: ":", ";", etc.
 	 * Behaves like Cocoa's stringByEscaping function. We mostly use this to ensure
 	 * server compatibility but ideally the server would grow up. :)
+	 * 
+	 * Only ; ? space & = $ , [ ] # ! ' ( ) * are escaped, everything else (including non ASCII) is left alone.
 	 */
 	public static String weakUrlEncode(String url) {
 		if (url == null) return null;
 		
-		// make sure you don't have a duplicate character in both lists or it will break.
-		String[] reserved    = {
-							 ";",  "?",  " ",
-                             "&",  "=",  "$", 
-                             ",",  "[",  "]",
-                             "#",  "!",  "'", 
-                             "(",  ")",  "*"
-                             };
-
-		String[] escaped     = {
-							 "%3B", "%3F", "+" ,  
-							 "%26", "%3D", "%24" ,
-                             "%2C", "%5B", "%5D", 
-                             "%21", "%27", "%28", 
-                             "%28", "%29", "%2A"
-                             };
-
-
-		StringBuilder encUrl = new StringBuilder(url);
+		int first = firstWeakEscape(url);
+		
+		if (first < 0) return url; // nothing to escape (the common case)
+		
+		StringBuilder encUrl = new StringBuilder(url.length() + 16);
 		
-		//cycle through and keep replacing (bit inefficient, but sue me!)
-		for(int i = 0; i < escaped.length; i++) {
-			String res = reserved[i];
-			String esc = escaped [i];
+		encUrl.append(url, 0, first);
+		appendWeakUrlEncoded(encUrl, url, first);
+		
+		return encUrl.toString();
+	}
+	
+	/** Appends the weakly encoded string (see {@link #weakUrlEncode(String)}) without any intermediate copies*/
+	public static void appendWeakUrlEncoded(StringBuilder out, String url) {
+		if (url == null) return;
+		
+		appendWeakUrlEncoded(out, url, 0);
+	}
+	
+	private static void appendWeakUrlEncoded(StringBuilder out, String url, int start) {
+		int length = url.length();
+		int run    = start; // start of the current run of characters we copy as is
+		
+		for (int i = start; i < length; i++) {
+			char c = url.charAt(i);
 			
-			// replace all occurrences
-			int index = encUrl.indexOf(res);
-			while(index != -1) {
-				encUrl.replace(index, 
-							   index + res.length(), 
-							   esc);
-				
-				index = encUrl.indexOf(res);
-			}
+			if (c >= WEAK_ESCAPES.length || WEAK_ESCAPES[c] == null) continue;
+			
+			out.append(url, run, i).append(WEAK_ESCAPES[c]);
+			run = i + 1;
 		}
-		return encUrl.toString();
+		
+		out.append(url, run, length);
+	}
+	
+	private static int firstWeakEscape(String url) {
+		int length = url.length();
+		
+		for (int i = 0; i < length; i++) {
+			char c = url.charAt(i);
+			
+			if (c < WEAK_ESCAPES.length && WEAK_ESCAPES[c] != null) return i;
+		}
+		
+		return -1;
 	}
 	
 	public static String urlDecode(String in) {
 		return URLDecoder.decode(in);
 	}
 	
-	private static String convertToHex(byte[] in) {
-		StringBuilder builder = new StringBuilder(in.length*2);
+	///////////////////////////////////////////////////////
+	//////////////// Digests and Encoding /////////////////
+	
+	/** Length of a SHA1 digest in bytes*/
+	public static final int SHA1_LENGTH = 20;
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	// url safe alphabet (see RFC 4648)
+	private static final char[] BASE64_URL_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	
+	/** Per thread scratch space so that digesting doesn't allocate (except for the result)*/
+	private static class DigestBuffers {
+		public final MessageDigest sha1;
+		
+		public final byte[] digest = new byte[SHA1_LENGTH];
 		
-		Formatter formatter = new Formatter(builder);
-		for (byte inByte : in)
-			formatter.format("%02x", inByte);
+		public final char[] chars  = new char[SHA1_LENGTH * 2];
 		
+		public byte[] input 	   = new byte[256];
 		
-		return builder.toString();
+		public DigestBuffers(MessageDigest sha1) {
+			this.sha1 = sha1;
+		}
+	}
+	
+	private static final ThreadLocal<DigestBuffers> DIGEST_BUFFERS = new ThreadLocal<DigestBuffers>() {
+		@Override
+		protected DigestBuffers initialValue() {
+			try {
+				return new DigestBuffers(MessageDigest.getInstance("SHA-1"));
+			} catch (NoSuchAlgorithmException e) {
+				return null; // dataDigest reports it
+			}
+		}
+	};
+	
+	/** Inputs longer than this (in bytes) don't get to keep their scratch buffer*/
+	private static final int MAX_INPUT_BUFFER = 4 * 1024;
+	
+	/** 
+	 * Writes the bytes as lower case hex.
+	 * @return number of chars written (always twice the length)
+	 */
+	public static int encodeHex(byte[] in, int offset, int length, char[] out, int outOffset) {
+		int pos = outOffset;
+		
+		for (int i = offset; i < offset + length; i++) {
+			out[pos++] = HEX_DIGITS[(in[i] >> 4) & 0x0f];
+			out[pos++] = HEX_DIGITS[ in[i] 		 & 0x0f];
+		}
+		
+		return pos - outOffset;
+	}
+	
+	/** 
+	 * Writes the bytes as url safe base64 without padding or line breaks.
+	 * @return number of chars written
+	 */
+	public static int encodeBase64URLSafe(byte[] in, int offset, int length, char[] out, int outOffset) {
+		int pos = outOffset;
+		int end = offset + length;
+		int i 	= offset;
+		
+		for (; i + 2 < end; i += 3) {
+			int bits = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8) | (in[i + 2] & 0xff);
+			
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 18) & 0x3f];
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 12) & 0x3f];
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 6)  & 0x3f];
+			out[pos++] = BASE64_URL_DIGITS[ bits 		& 0x3f];
+		}
+		
+		int remaining = end - i;
+		
+		if (remaining == 1) {
+			int bits = (in[i] & 0xff) << 16;
+			
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 18) & 0x3f];
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 12) & 0x3f];
+			
+		} else if (remaining == 2) {
+			int bits = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8);
+			
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 18) & 0x3f];
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 12) & 0x3f];
+			out[pos++] = BASE64_URL_DIGITS[(bits >> 6)  & 0x3f];
+		}
+		
+		return pos - outOffset;
 	}
 	
 	/** First encrypts with SHA1 and then spits the result out as a hex string*/
 	public static String hexDigest(String input) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-		return convertToHex(dataDigest(input));
+		if (input == null) return null;
+		
+		DigestBuffers buffers = dataDigest(input);
+		
+		int length = encodeHex(buffers.digest, 0, SHA1_LENGTH, buffers.chars, 0);
+		
+		return new String(buffers.chars, 0, length);
 	}
 	
 	/** First encrypt with SHA1 then convert to Base64*/
 	public static String base64Digest(String input) throws UnsupportedEncodingException, NoSuchAlgorithmException {
+		if (input == null) return null;
 		
-		String b64digest = convertToBase64(dataDigest(input));
-
-		// we trim off last character due to a weird encoding error
-		// Note: check for a solution in the future.
-		return b64digest.substring(0, b64digest.length() - 1);
-	}
-	
-	private static String convertToBase64(byte[] in) throws UnsupportedEncodingException {
-		if (in == null) return null;
+		DigestBuffers buffers = dataDigest(input);
+		
+		// Note: this used to trim the last character "due to a weird encoding error", 
+		// which was the trailing line break of android.util.Base64. We never write it.
+		int length = encodeBase64URLSafe(buffers.digest, 0, SHA1_LENGTH, buffers.chars, 0);
 		
-		return new String(Base64.encode(in, Base64.URL_SAFE | Base64.NO_PADDING), "UTF8");
+		return new String(buffers.chars, 0, length);
 	}
 	
-	private static byte[] dataDigest(String in) throws NoSuchAlgorithmException, UnsupportedEncodingException{
-		if (in == null) return null;
-	
-		MessageDigest md = MessageDigest.getInstance("SHA-1");
-		return 		  md.digest(in.getBytes("UTF8"));
+	/** Digests the UTF-8 bytes of the input into the scratch digest of the current thread*/
+	private static DigestBuffers dataDigest(String in) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		DigestBuffers buffers = DIGEST_BUFFERS.get();
+		
+		if (buffers == null) {
+			DIGEST_BUFFERS.remove();
+			throw new NoSuchAlgorithmException("SHA-1 is not available");
+		}
+		
+		MessageDigest md = buffers.sha1;
+		md.reset();
+		
+		int length = in.length();
+		
+		if (length > buffers.input.length && length <= MAX_INPUT_BUFFER)
+			buffers.input = new byte[Math.max(length, buffers.input.length * 2)];
+		
+		// fast path: plain ASCII (always the case for our signatures) is copied straight into the scratch buffer
+		boolean ascii = (length <= buffers.input.length);
+		
+		for (int i = 0; ascii && i < length; i++) {
+			char c = in.charAt(i);
+			
+			if (c >= 0x80) ascii = false;
+			else 		   buffers.input[i] = (byte) c;
+		}
+		
+		if (ascii) 
+			md.update(buffers.input, 0, length);
+		else
+			md.update(in.getBytes("UTF8"));
+		
+		try {
+			md.digest(buffers.digest, 0, SHA1_LENGTH);
+		} catch (DigestException e) {
+			throw new NoSuchAlgorithmException("Unexpected SHA-1 digest length: " + e.getMessage());
+		}
+		
+		return buffers;
 	}
 	
 	/** Generates unique but random UUID*/
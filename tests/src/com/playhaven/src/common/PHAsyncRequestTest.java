@@ -0,0 +1,84 @@
+package com.playhaven.src.common;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import android.net.Uri;
+
+/** The deadline must free the thread of a request stuck on a slow server, whichever transport is used*/
+public class PHAsyncRequestTest extends TestCase {
+
+	/** The server sits on every request this long (ms)*/
+	private static final long SERVER_LATENCY = 5000;
+
+	private static final int DEADLINE = 500;
+
+	/** Slack (ms) for the watchdog and tearing down the connection*/
+	private static final long ABORT_SLACK = 1000;
+
+	private PHStubServer server;
+
+	/** Remembers how the request ended*/
+	private static class RecordingDelegate implements PHAsyncRequest.Delegate {
+		private Exception error;
+
+		private boolean finished;
+
+		@Override
+		public void requestFinished(ByteBuffer response, int responseCode) {
+			finished = true;
+		}
+
+		@Override
+		public void requestFailed(Exception e) {
+			error = e;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new PHStubServer(SERVER_LATENCY);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		PHAsyncRequest.PHHttpConn.setDefaultTransport(null);
+	}
+
+	public void testDeadlineFreesTheThreadWithTheApacheTransport() {
+		assertDeadlineFreesTheThread(new PHApacheTransport());
+	}
+
+	public void testDeadlineFreesTheThreadWithTheURLConnectionTransport() {
+		assertDeadlineFreesTheThread(new PHURLConnectionTransport());
+	}
+
+	private void assertDeadlineFreesTheThread(PHTransport transport) {
+		PHAsyncRequest.PHHttpConn.setDefaultTransport(transport);
+
+		RecordingDelegate delegate = new RecordingDelegate();
+
+		PHAsyncRequest request = new PHAsyncRequest(delegate);
+		request.setConnectTimeout(PHAsyncRequest.NO_TIMEOUT);
+		request.setReadTimeout	 (PHAsyncRequest.NO_TIMEOUT); // only the deadline can save us
+		request.setDeadline		 (DEADLINE);
+
+		long start = System.currentTimeMillis();
+
+		// the test thread plays the background thread...
+		ByteBuffer result = request.doInBackground(Uri.parse(server.getURL() + "/v3/publisher/open/"));
+
+		long elapsed = System.currentTimeMillis() - start;
+
+		// ...and the main looper
+		request.onPostExecute(result);
+
+		assertTrue("Thread was held for " + elapsed + " ms", elapsed < DEADLINE + ABORT_SLACK);
+		assertTrue("Deadline didn't fire after " + elapsed + " ms", elapsed >= DEADLINE);
+
+		assertFalse(delegate.finished);
+		assertTrue(String.valueOf(delegate.error), delegate.error instanceof PHTimeoutException);
+	}
+}
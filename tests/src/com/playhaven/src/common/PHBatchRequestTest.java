@@ -0,0 +1,98 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/** A batch which fails as a whole must still deliver its requests, whoever listens to the batch itself*/
+public class PHBatchRequestTest extends TestCase {
+
+	private static final long WAIT = 5000;
+
+	private PHStubServer server;
+
+	/** Counts down once the request is done either way*/
+	private static class RecordingDelegate implements PHAPIRequest.Delegate {
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile Exception error;
+
+		private volatile boolean succeeded;
+
+		@Override
+		public void requestSucceeded(PHAPIRequest request, JSONObject responseData) {
+			succeeded = true;
+			done.countDown();
+		}
+
+		@Override
+		public void requestFailed(PHAPIRequest request, Exception e) {
+			error = e;
+			done.countDown();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		PHConfig.token 	= "test_token";
+		PHConfig.secret = "test_secret";
+
+		PHCircuitBreaker.resetAll();
+
+		server = new PHStubServer(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		PHCircuitBreaker.resetAll();
+	}
+
+	private PHAPIRequest createRequest(String path, PHAPIRequest.Delegate delegate) {
+		PHAPIRequest request = new PHAPIRequest(null, delegate) {
+			@Override
+			public PHRetryPolicy getRetryPolicy() {
+				return PHRetryPolicy.NONE;
+			}
+		};
+
+		request.setBaseURL(server.getURL() + path);
+
+		return request;
+	}
+
+	public void testFailedBatchSendsItsRequestsOnTheirOwnWithADelegateSet() throws Exception {
+		PHBatchRequest batch = new PHBatchRequest(null) {
+			@Override
+			public String baseURL() {
+				return server.getURL() + BATCH_SLUG;
+			}
+		};
+
+		RecordingDelegate batchDelegate = new RecordingDelegate();
+		batch.setDelegate(batchDelegate);
+
+		RecordingDelegate first  = new RecordingDelegate();
+		RecordingDelegate second = new RecordingDelegate();
+
+		batch.add(createRequest("/v3/publisher/open/", 	 first));
+		batch.add(createRequest("/v3/publisher/metadata/", second));
+
+		server.failNext(1, 503);
+		batch.send();
+
+		assertTrue(batchDelegate.done.await(WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(batchDelegate.error instanceof PHHttpStatusException);
+
+		assertTrue(first.done.await (WAIT, TimeUnit.MILLISECONDS));
+		assertTrue(second.done.await(WAIT, TimeUnit.MILLISECONDS));
+
+		assertTrue(first.succeeded);
+		assertTrue(second.succeeded);
+
+		assertEquals(3, server.getRequestCount());
+	}
+}
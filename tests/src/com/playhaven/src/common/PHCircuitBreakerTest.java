@@ -0,0 +1,123 @@
+package com.playhaven.src.common;
+
+import junit.framework.TestCase;
+
+/** Walks a breaker through its states on a test clock*/
+public class PHCircuitBreakerTest extends TestCase {
+
+	private PHTestClock clock;
+
+	private PHCircuitBreaker breaker;
+
+	@Override
+	protected void setUp() throws Exception {
+		clock = new PHTestClock();
+		PHCircuitBreaker.setClock(clock);
+
+		breaker = new PHCircuitBreaker("/v3/test/");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PHCircuitBreaker.setClock(null);
+	}
+
+	private void failRequests(int times) {
+		for (int i = 0; i < times; i++) {
+			assertTrue(breaker.allowRequest());
+			breaker.recordFailure();
+		}
+	}
+
+	public void testStaysClosedBelowTheThreshold() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD - 1);
+
+		assertEquals(PHCircuitBreaker.State.Closed, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	public void testSuccessResetsTheFailureCount() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD - 1);
+		breaker.recordSuccess();
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD - 1);
+
+		assertEquals(PHCircuitBreaker.State.Closed, breaker.getState());
+	}
+
+	public void testOpensAtTheThresholdAndFailsFast() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD);
+
+		assertEquals(PHCircuitBreaker.State.Open, breaker.getState());
+
+		assertFalse(breaker.allowRequest());
+		clock.advance(PHCircuitBreaker.OPEN_DURATION - 1);
+		assertFalse(breaker.allowRequest());
+
+		assertEquals(2, breaker.getRejectedCount());
+	}
+
+	public void testLetsASingleTrialThroughAfterTheCoolDown() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD);
+
+		clock.advance(PHCircuitBreaker.OPEN_DURATION);
+
+		assertTrue(breaker.allowRequest());
+		assertEquals(PHCircuitBreaker.State.HalfOpen, breaker.getState());
+
+		// the trial is still out
+		assertFalse(breaker.allowRequest());
+
+		breaker.recordSuccess();
+
+		assertEquals(PHCircuitBreaker.State.Closed, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	public void testFailedTrialDoublesTheCoolDownUpToTheMaximum() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD);
+
+		long coolDown = PHCircuitBreaker.OPEN_DURATION;
+
+		for (int i = 0; i < 6; i++) {
+			clock.advance(coolDown - 1);
+			assertFalse("Tried early after " + i + " failed trials", breaker.allowRequest());
+
+			clock.advance(1);
+			assertTrue(breaker.allowRequest());
+
+			breaker.recordFailure(); // the trial failed
+			assertEquals(PHCircuitBreaker.State.Open, breaker.getState());
+
+			coolDown = Math.min(coolDown * 2, PHCircuitBreaker.MAX_OPEN_DURATION);
+		}
+
+		assertEquals(PHCircuitBreaker.MAX_OPEN_DURATION, coolDown);
+	}
+
+	public void testSuccessAfterAFailedTrialStartsOverFromTheInitialCoolDown() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD);
+
+		clock.advance(PHCircuitBreaker.OPEN_DURATION);
+		breaker.allowRequest();
+		breaker.recordFailure();
+
+		clock.advance(PHCircuitBreaker.OPEN_DURATION * 2);
+		breaker.allowRequest();
+		breaker.recordSuccess();
+
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD);
+
+		clock.advance(PHCircuitBreaker.OPEN_DURATION);
+		assertTrue(breaker.allowRequest());
+	}
+
+	public void testTrialWhichNeverReportsBackIsReplacedAfterTheCoolDown() {
+		failRequests(PHCircuitBreaker.FAILURE_THRESHOLD);
+
+		clock.advance(PHCircuitBreaker.OPEN_DURATION);
+		assertTrue(breaker.allowRequest()); // cancelled, never reports
+
+		clock.advance(PHCircuitBreaker.OPEN_DURATION);
+		assertTrue(breaker.allowRequest());
+	}
+}
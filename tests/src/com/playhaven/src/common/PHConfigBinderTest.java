@@ -0,0 +1,68 @@
+package com.playhaven.src.common;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Configuration blobs which the reflective loader used to accept still bind, values of the wrong type are rejected*/
+public class PHConfigBinderTest extends TestCase {
+
+	private String token;
+
+	private String secret;
+
+	private String username;
+
+	private String password;
+
+	private int protocol;
+
+	@Override
+	protected void setUp() throws Exception {
+		PHConfig.ensureLoaded();
+
+		token 	 = PHConfig.token;
+		secret 	 = PHConfig.secret;
+		username = PHConfig.username;
+		password = PHConfig.password;
+		protocol = PHConfig.protocol;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PHConfig.token 	  = token;
+		PHConfig.secret   = secret;
+		PHConfig.username = username;
+		PHConfig.password = password;
+		PHConfig.protocol = protocol;
+	}
+
+	public void testLoadConfigBindsCredentials() throws Exception {
+		PHConfig.loadConfig("{\"dev\": {\"token\": \"dev_token\", \"secret\": \"dev_secret\", " +
+							"\"username\": \"dev_user\", \"password\": \"dev_password\", \"protocol\": 3}}", "dev");
+
+		assertEquals("dev_token", 	 PHConfig.token);
+		assertEquals("dev_secret", 	 PHConfig.secret);
+		assertEquals("dev_user", 	 PHConfig.username);
+		assertEquals("dev_password", PHConfig.password);
+		assertEquals(3, 			 PHConfig.protocol);
+	}
+
+	public void testEveryKeyRoundTrips() throws Exception {
+		for (PHConfigBinder.Key key : PHConfigBinder.Key.values()) {
+			Object value = PHConfigBinder.get(key);
+
+			PHConfigBinder.set(key, value);
+			assertEquals(key.name(), value, PHConfigBinder.get(key));
+		}
+	}
+
+	public void testWrongTypeIsRejected() throws Exception {
+		List<String> errors = PHConfigBinder.bind("{\"prod\": {\"token\": 42, \"protocol\": \"four\", \"no_such_key\": 1}}", "prod", false);
+
+		assertEquals(3, errors.size());
+
+		assertEquals(token, 	PHConfig.token);
+		assertEquals(protocol, 	PHConfig.protocol);
+	}
+}
@@ -0,0 +1,109 @@
+package com.playhaven.src.common;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.net.Uri;
+
+import com.jakewharton.DiskLruCache;
+import com.playhaven.src.publishersdk.open.PHPrefetchTask;
+
+/** Counts the sockets a typical session (open, four precached files, content) needs with the shared
+ * pool and with a new client per request (the way the SDK used to work).
+ */
+public class PHHttpClientPoolTest extends TestCase {
+
+	private static final int PRECACHE_FILES = 4;
+
+	private PHStubServer server;
+
+	private File cacheDir;
+
+	/** Exposes the prefetch so we can run it synchronously*/
+	private static class SyncPrefetchTask extends PHPrefetchTask {
+		public Integer fetch() {
+			return doInBackground();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		PHHttpClientPool.shutdown();
+
+		server = new PHStubServer(0);
+		server.setFileSize(16 * 1024);
+
+		cacheDir = File.createTempFile("ph_precache", "");
+		cacheDir.delete();
+		cacheDir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+
+		PHHttpClientPool.shutdown();
+
+		File[] files = cacheDir.listFiles();
+		if (files != null)
+			for (File file : files) file.delete();
+
+		cacheDir.delete();
+	}
+
+	public void testSessionReusesOneConnection() throws Exception {
+		DiskLruCache cache = new DiskLruCache(cacheDir, 1, 1, 1024 * 1024);
+		cache.open();
+
+		assertNotNull(apiRequest("/v3/publisher/open/"));
+
+		for (int i = 0; i < PRECACHE_FILES; i++) {
+			SyncPrefetchTask task = new SyncPrefetchTask();
+			task.setURL(server.getURL() + PHStubServer.FILE_PATH + i);
+			task.setCache(cache);
+
+			assertEquals(Integer.valueOf(200), task.fetch());
+		}
+
+		assertNotNull(apiRequest("/v3/publisher/content/"));
+
+		cache.close();
+
+		assertEquals(PRECACHE_FILES + 2, server.getRequestCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	public void testClientPerRequestOpensASocketEach() throws Exception {
+		String[] paths = new String[PRECACHE_FILES + 2];
+
+		paths[0] = "/v3/publisher/open/";
+		for (int i = 0; i < PRECACHE_FILES; i++)
+			paths[i + 1] = PHStubServer.FILE_PATH + i;
+		paths[paths.length - 1] = "/v3/publisher/content/";
+
+		for (String path : paths) {
+			DefaultHttpClient client = new DefaultHttpClient();
+
+			HttpResponse response = client.execute(new HttpGet(server.getURL() + path));
+			response.getEntity().consumeContent();
+
+			client.getConnectionManager().shutdown();
+		}
+
+		assertEquals(paths.length, server.getRequestCount());
+		assertEquals(paths.length, server.getConnectionCount());
+	}
+
+	private ByteBuffer apiRequest(String path) {
+		PHAsyncRequest request = new PHAsyncRequest(null);
+		request.request_type = PHAsyncRequest.RequestType.Get;
+
+		return request.doInBackground(Uri.parse(server.getURL() + path));
+	}
+}
@@ -0,0 +1,118 @@
+package com.playhaven.src.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import android.net.Uri;
+
+import com.playhaven.src.utils.PHBufferPool;
+
+/** Runs the whole request pipeline (redirect tracking, timeouts, the pooled read) over the in-memory transport*/
+public class PHLoopbackTransportTest extends TestCase {
+
+	private static final String URL = "http://loopback/v3/publisher/content/";
+
+	private PHLoopbackTransport transport;
+
+	/** Keeps a copy of the response, the buffer goes back to the pool once we return*/
+	private static class RecordingDelegate implements PHAsyncRequest.Delegate {
+		private Exception error;
+
+		private byte[] body;
+
+		private int responseCode;
+
+		@Override
+		public void requestFinished(ByteBuffer response, int responseCode) {
+			this.responseCode = responseCode;
+
+			if (response != null) {
+				body = new byte[response.remaining()];
+				response.get(body);
+			}
+		}
+
+		@Override
+		public void requestFailed(Exception e) {
+			error = e;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		transport = new PHLoopbackTransport();
+	}
+
+	/** Runs the request on the test thread, which plays both the background thread and the main looper*/
+	private RecordingDelegate send(PHAsyncRequest request, RecordingDelegate delegate) {
+		request.getPHHttpClient().setTransport(transport);
+
+		ByteBuffer result = request.doInBackground(Uri.parse(URL));
+		request.onPostExecute(result);
+
+		return delegate;
+	}
+
+	private RecordingDelegate send() {
+		RecordingDelegate delegate = new RecordingDelegate();
+
+		return send(new PHAsyncRequest(delegate), delegate);
+	}
+
+	public void testResponseLargerThanThePoolIsReadIntact() throws Exception {
+		byte[] body = new byte[PHBufferPool.MAX_BUFFER_SIZE * 2 + 123];
+		for (int i = 0; i < body.length; i++)
+			body[i] = (byte) i;
+
+		transport.setResponse("/v3/", new PHLoopbackTransport.CannedResponse(200, body));
+
+		RecordingDelegate delegate = send();
+
+		assertNull(delegate.error);
+		assertEquals(200, delegate.responseCode);
+		assertTrue(Arrays.equals(body, delegate.body));
+
+		assertEquals(1, 		  transport.getRequests().size());
+		assertEquals(body.length, transport.getBytesServed());
+	}
+
+	public void testUnmatchedPathIsNotFound() throws Exception {
+		transport.setResponse("/v3/publisher/open/", new PHLoopbackTransport.CannedResponse(200, "{}"));
+
+		RecordingDelegate delegate = send();
+
+		assertNull(delegate.error);
+		assertEquals(404, delegate.responseCode);
+	}
+
+	public void testBandwidthIsSimulated() throws Exception {
+		transport.setResponse("/v3/", new PHLoopbackTransport.CannedResponse(200, new byte[32 * 1024]));
+		transport.setBandwidth(128 * 1024); // 250 ms for the body (a little less, the delay per chunk is rounded down)
+
+		long start = System.currentTimeMillis();
+
+		RecordingDelegate delegate = send();
+
+		assertNull(delegate.error);
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	public void testLatencyBeyondTheReadTimeoutTimesOut() throws Exception {
+		transport.setResponse("/v3/", new PHLoopbackTransport.CannedResponse(200, "{}"));
+		transport.setLatency(5000);
+
+		RecordingDelegate delegate = new RecordingDelegate();
+
+		PHAsyncRequest request = new PHAsyncRequest(delegate);
+		request.setReadTimeout(200);
+
+		long start = System.currentTimeMillis();
+
+		send(request, delegate);
+
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertTrue(String.valueOf(delegate.error), delegate.error instanceof PHTimeoutException);
+	}
+}
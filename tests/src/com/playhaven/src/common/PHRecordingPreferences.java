@@ -0,0 +1,179 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/** In-memory preferences which remember on which thread every commit (the disk write on a device) happened*/
+public class PHRecordingPreferences implements SharedPreferences {
+
+	private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+	private final ArrayList<Thread> commits = new ArrayList<Thread>();
+
+	/** Stages changes until commit(), like the real editor*/
+	private class RecordingEditor implements SharedPreferences.Editor {
+		private final HashMap<String, Object> staged = new HashMap<String, Object>();
+
+		private final HashSet<String> removed = new HashSet<String>();
+
+		private boolean clear;
+
+		private Editor put(String key, Object value) {
+			staged.put(key, value);
+			return this;
+		}
+
+		@Override
+		public Editor putString(String key, String value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor remove(String key) {
+			removed.add(key);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			clear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			synchronized (PHRecordingPreferences.this) {
+				if (clear) values.clear();
+
+				values.keySet().removeAll(removed);
+				values.putAll(staged);
+
+				commits.add(Thread.currentThread());
+				PHRecordingPreferences.this.notifyAll();
+			}
+
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+	}
+
+	////////////////////////////////////////////////////
+	////////////////// Recorded ////////////////////////
+
+	/** How many commits there were so far*/
+	public synchronized int getCommitCount() {
+		return commits.size();
+	}
+
+	/** Did any commit happen on the given thread?*/
+	public synchronized boolean committedOn(Thread thread) {
+		return commits.contains(thread);
+	}
+
+	/** Waits (for real) until there were at least the given number of commits*/
+	public synchronized boolean awaitCommits(int count, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+
+		while (commits.size() < count) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) return false;
+
+			wait(left);
+		}
+
+		return true;
+	}
+
+	////////////////////////////////////////////////////
+	////////////////// Preferences /////////////////////
+
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		return new HashMap<String, Object>(values);
+	}
+
+	@Override
+	public synchronized String getString(String key, String defValue) {
+		return (values.containsKey(key) ? (String)values.get(key) : defValue);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+		return (values.containsKey(key) ? (Set<String>)values.get(key) : defValues);
+	}
+
+	@Override
+	public synchronized int getInt(String key, int defValue) {
+		return (values.containsKey(key) ? (Integer)values.get(key) : defValue);
+	}
+
+	@Override
+	public synchronized long getLong(String key, long defValue) {
+		return (values.containsKey(key) ? (Long)values.get(key) : defValue);
+	}
+
+	@Override
+	public synchronized float getFloat(String key, float defValue) {
+		return (values.containsKey(key) ? (Float)values.get(key) : defValue);
+	}
+
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		return (values.containsKey(key) ? (Boolean)values.get(key) : defValue);
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return values.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new RecordingEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		// pass
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		// pass
+	}
+}
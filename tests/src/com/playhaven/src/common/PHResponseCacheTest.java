@@ -0,0 +1,151 @@
+package com.playhaven.src.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import android.net.Uri;
+
+/** Cached GETs against a server which sends cache headers and answers conditional requests*/
+public class PHResponseCacheTest extends TestCase {
+
+	private static final long WAIT = 5000;
+
+	private static final String ENDPOINT = "/v3/test/";
+
+	private PHStubServer server;
+
+	private PHResponseCache cache;
+
+	private File cacheDir;
+
+	/** Wants the response streamed, remembers how it got it*/
+	private static class StreamingDelegate implements PHAsyncRequest.StreamDelegate {
+		private boolean streamed;
+
+		private boolean buffered;
+
+		@Override
+		public boolean shouldStreamResponse() {
+			return true;
+		}
+
+		@Override
+		public void processStreamInBackground(InputStream in, int responseCode) throws IOException {
+			while (in.read() != -1);
+
+			streamed = true;
+		}
+
+		@Override
+		public void processResponseInBackground(ByteBuffer response, int responseCode) {
+			buffered = true;
+		}
+
+		@Override
+		public void requestFinished(ByteBuffer response, int responseCode) {
+			// pass
+		}
+
+		@Override
+		public void requestFailed(Exception e) {
+			// pass
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new PHStubServer(0);
+
+		cacheDir = File.createTempFile("ph_responses", "");
+		cacheDir.delete();
+		cacheDir.mkdirs();
+
+		cache = new PHResponseCache(cacheDir);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+
+		File[] files = cacheDir.listFiles();
+		if (files != null)
+			for (File file : files) file.delete();
+
+		cacheDir.delete();
+	}
+
+	private PHAsyncRequest createRequest() {
+		return createRequest(null);
+	}
+
+	private PHAsyncRequest createRequest(PHAsyncRequest.Delegate delegate) {
+		PHAsyncRequest request = new PHAsyncRequest(delegate);
+		request.request_type = PHAsyncRequest.RequestType.Get;
+		request.setResponseCache(cache, "test", ENDPOINT);
+
+		return request;
+	}
+
+	/** Runs the request on the test thread, which plays both the background thread and the main looper*/
+	private PHAsyncRequest.CacheStatus send(PHAsyncRequest request) {
+		ByteBuffer result = request.doInBackground(Uri.parse(server.getURL() + ENDPOINT));
+		request.onPostExecute(result);
+
+		return request.getCacheStatus();
+	}
+
+	private static void waitFor(PHResponseCache.Stats stats, int revalidations) throws InterruptedException {
+		long end = System.currentTimeMillis() + WAIT;
+
+		while (stats.getRevalidations() < revalidations && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+
+	public void testStaleResponseIsRevalidatedOnceWithAConditionalRequest() throws Exception {
+		server.setResponseHeader("Cache-Control", "max-age=0, stale-while-revalidate=60");
+		server.setResponseHeader("ETag", "\"v1\"");
+
+		assertEquals(PHAsyncRequest.CacheStatus.Miss,  send(createRequest()));
+		assertEquals(PHAsyncRequest.CacheStatus.Stale, send(createRequest()));
+
+		PHResponseCache.Stats stats = cache.getStats(ENDPOINT);
+		waitFor(stats, 1);
+
+		// give a runaway revalidation loop the chance to show itself
+		Thread.sleep(200);
+
+		assertEquals(1, stats.getRevalidations());
+		assertEquals(1, stats.getStaleHits());
+
+		assertEquals(2, server.getRequestCount());
+		assertEquals(1, server.getNotModifiedCount());
+	}
+
+	public void testResponseWithoutCacheHeadersIsStillStreamed() throws Exception {
+		StreamingDelegate delegate = new StreamingDelegate();
+
+		assertEquals(PHAsyncRequest.CacheStatus.Miss, send(createRequest(delegate)));
+
+		assertTrue(delegate.streamed);
+		assertFalse(delegate.buffered);
+		assertNull(cache.get("test"));
+	}
+
+	public void testCacheableResponseIsBufferedAndStored() throws Exception {
+		server.setResponseHeader("Cache-Control", "max-age=60");
+
+		StreamingDelegate delegate = new StreamingDelegate();
+
+		assertEquals(PHAsyncRequest.CacheStatus.Miss, send(createRequest(delegate)));
+
+		assertFalse(delegate.streamed);
+		assertTrue(delegate.buffered);
+		assertNotNull(cache.get("test"));
+
+		assertEquals(PHAsyncRequest.CacheStatus.Hit, send(createRequest()));
+	}
+}
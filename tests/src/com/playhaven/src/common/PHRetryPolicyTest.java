@@ -0,0 +1,246 @@
+package com.playhaven.src.common;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** The retry decisions on their own, then whole requests against a server which fails on demand (on a test clock)*/
+public class PHRetryPolicyTest extends TestCase {
+
+	private static final long WAIT = 5000;
+
+	private PHTestClock clock;
+
+	private PHRetryPolicy policy;
+
+	private PHStubServer server;
+
+	/** Counts down once the request is done either way*/
+	private static class RecordingDelegate implements PHAPIRequest.Delegate {
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile Exception error;
+
+		private volatile boolean succeeded;
+
+		@Override
+		public void requestSucceeded(PHAPIRequest request, JSONObject responseData) {
+			succeeded = true;
+			done.countDown();
+		}
+
+		@Override
+		public void requestFailed(PHAPIRequest request, Exception e) {
+			error = e;
+			done.countDown();
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		PHConfig.token 	= "test_token";
+		PHConfig.secret = "test_secret";
+
+		clock  = new PHTestClock();
+
+		policy = new PHRetryPolicy(3, 1000, 4000);
+		policy.setRandom(new Random(42));
+		policy.setClock(clock);
+
+		PHCircuitBreaker.resetAll();
+		PHCircuitBreaker.setClock(clock);
+
+		server = new PHStubServer(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		PHCircuitBreaker.setClock(null);
+		PHCircuitBreaker.resetAll();
+	}
+
+	private PHAPIRequest createRequest(final PHAsyncRequest.RequestType type, PHAPIRequest.Delegate delegate) {
+		PHAPIRequest request = new PHAPIRequest(null, delegate) {
+			@Override
+			public PHRetryPolicy getRetryPolicy() {
+				return policy;
+			}
+
+			@Override
+			public PHAsyncRequest.RequestType getRequestType() {
+				return type;
+			}
+		};
+
+		request.setBaseURL(server.getURL() + "/v3/test/");
+
+		return request;
+	}
+
+	/** Waits for the failed attempt to schedule its retry, then lets the clock run it*/
+	private long runNextRetry() throws InterruptedException {
+		assertTrue("Nothing was scheduled", clock.awaitScheduled(WAIT));
+
+		long delay = clock.getNextDelay();
+		clock.advance(delay);
+
+		return delay;
+	}
+
+	////////////////////////////////////////////////////
+	////////////////// Decisions ///////////////////////
+
+	public void testBackoffIsJitteredBelowTheCappedCeiling() {
+		long[] ceilings = {1000, 2000, 4000, 4000, 4000};
+
+		for (int retry = 1; retry <= ceilings.length; retry++) {
+			for (int i = 0; i < 100; i++) {
+				long backoff = policy.getBackoff(retry);
+
+				assertTrue(backoff >= 0);
+				assertTrue("Retry " + retry + " waited " + backoff, backoff < ceilings[retry - 1]);
+			}
+		}
+
+		// the shift doesn't overflow into a negative (or uncapped) delay
+		assertTrue(policy.getBackoff(64) < 4000);
+	}
+
+	public void testSeededRandomGivesTheSameDelays() {
+		PHRetryPolicy other = new PHRetryPolicy(3, 1000, 4000);
+		other.setRandom(new Random(42));
+
+		for (int retry = 1; retry <= 3; retry++)
+			assertEquals(policy.getBackoff(retry), other.getBackoff(retry));
+	}
+
+	public void testOnlyTransientFailuresAreRetried() {
+		assertTrue (policy.isRetryable(new IOException("reset")));
+		assertTrue (policy.isRetryable(new PHTimeoutException("slow")));
+		assertTrue (policy.isRetryable(new PHHttpStatusException(503)));
+		assertTrue (policy.isRetryable(new PHHttpStatusException(429)));
+
+		assertFalse(policy.isRetryable(new PHHttpStatusException(404)));
+		assertFalse(policy.isRetryable(new JSONException("bad response")));
+		assertFalse(policy.isRetryable(new PHCircuitOpenException("open")));
+	}
+
+	public void testGivesUpAfterTheMaximumRetries() {
+		PHAPIRequest request = createRequest(PHAsyncRequest.RequestType.Get, null);
+		Exception error 	 = new PHHttpStatusException(503);
+
+		for (int retry = 1; retry <= 3; retry++)
+			assertTrue(policy.getRetryDelay(request, error, retry) != PHRetryPolicy.NO_RETRY);
+
+		assertEquals(PHRetryPolicy.NO_RETRY, policy.getRetryDelay(request, error, 4));
+	}
+
+	public void testPostIsOnlyRetriedWithAnIdempotencyKey() {
+		PHAPIRequest post = createRequest(PHAsyncRequest.RequestType.Post, null);
+
+		PHAPIRequest keyed = new PHAPIRequest(null) {
+			@Override
+			public PHAsyncRequest.RequestType getRequestType() {
+				return PHAsyncRequest.RequestType.Post;
+			}
+
+			@Override
+			public String getIdempotencyKey() {
+				return "key";
+			}
+		};
+
+		assertFalse(policy.isIdempotent(post));
+		assertTrue (policy.isIdempotent(keyed));
+	}
+
+	////////////////////////////////////////////////////
+	////////////////// Requests ////////////////////////
+
+	public void testTransientFailuresAreRetriedUntilTheRequestSucceeds() throws Exception {
+		server.failNext(2, 503);
+
+		RecordingDelegate delegate = new RecordingDelegate();
+		PHAPIRequest request 	   = createRequest(PHAsyncRequest.RequestType.Get, delegate);
+
+		request.send();
+
+		long first  = runNextRetry();
+		long second = runNextRetry();
+
+		assertTrue(delegate.done.await(WAIT, TimeUnit.MILLISECONDS));
+
+		assertTrue(delegate.succeeded);
+		assertEquals(3, server.getRequestCount());
+		assertEquals(2, request.getRetryCount());
+
+		assertTrue(first < 1000);
+		assertTrue(second < 2000);
+
+		assertEquals(PHCircuitBreaker.State.Closed, request.getCircuitBreaker().getState());
+	}
+
+	public void testClientErrorsAreNotRetried() throws Exception {
+		server.failNext(1, 404);
+
+		RecordingDelegate delegate = new RecordingDelegate();
+		createRequest(PHAsyncRequest.RequestType.Get, delegate).send();
+
+		assertTrue(delegate.done.await(WAIT, TimeUnit.MILLISECONDS));
+
+		assertEquals(404, ((PHHttpStatusException)delegate.error).getStatusCode());
+		assertEquals(1, server.getRequestCount());
+		assertEquals(-1, clock.getNextDelay());
+	}
+
+	public void testOpenCircuitFailsFastWithoutTouchingTheServer() throws Exception {
+		policy = PHRetryPolicy.NONE;
+
+		PHRetryPolicy.NONE.setClock(clock);
+
+		try {
+			server.failNext(PHCircuitBreaker.FAILURE_THRESHOLD, 503);
+
+			for (int i = 0; i < PHCircuitBreaker.FAILURE_THRESHOLD; i++) {
+				RecordingDelegate delegate = new RecordingDelegate();
+				createRequest(PHAsyncRequest.RequestType.Get, delegate).send();
+
+				assertTrue(delegate.done.await(WAIT, TimeUnit.MILLISECONDS));
+			}
+
+			RecordingDelegate delegate = new RecordingDelegate();
+			PHAPIRequest request 	   = createRequest(PHAsyncRequest.RequestType.Get, delegate);
+
+			assertEquals(PHCircuitBreaker.State.Open, request.getCircuitBreaker().getState());
+
+			request.send();
+
+			// reported on the next pass through the (test) main looper, never from within send()
+			assertEquals(1, delegate.done.getCount());
+			clock.advance(0);
+
+			assertTrue(delegate.error instanceof PHCircuitOpenException);
+			assertEquals(PHCircuitBreaker.FAILURE_THRESHOLD, server.getRequestCount());
+
+			// cooled down: the trial goes through and closes the circuit
+			clock.advance(PHCircuitBreaker.OPEN_DURATION);
+
+			delegate = new RecordingDelegate();
+			createRequest(PHAsyncRequest.RequestType.Get, delegate).send();
+
+			assertTrue(delegate.done.await(WAIT, TimeUnit.MILLISECONDS));
+			assertTrue(delegate.succeeded);
+			assertEquals(PHCircuitBreaker.State.Closed, request.getCircuitBreaker().getState());
+
+		} finally {
+			PHRetryPolicy.NONE.setClock(null);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.playhaven.src.common;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/** Checks that saves are coalesced and never written on the caller's thread*/
+public class PHSessionStoreTest extends TestCase {
+
+	private static final long WAIT = 5000;
+
+	private PHRecordingPreferences prefs;
+
+	private PHSessionStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		prefs = new PHRecordingPreferences();
+		store = new PHSessionStore(prefs);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.flush().get(WAIT, TimeUnit.MILLISECONDS);
+	}
+
+	public void testSavesAreHeldBackAndCoalesced() throws Exception {
+		for (int i = 1; i <= 100; i++)
+			store.save(new PHSessionStore.Values(i * 10, i));
+
+		assertEquals(0, prefs.getCommitCount());
+		assertTrue(store.hasPendingWrites());
+
+		assertTrue(prefs.awaitCommits(1, PHSessionStore.WRITE_BEHIND_DELAY + WAIT));
+
+		// the write counts itself right after the commit, let it finish (nothing is left to flush)
+		store.flush().get(WAIT, TimeUnit.MILLISECONDS);
+
+		assertFalse(store.hasPendingWrites());
+		assertEquals(1, store.getWriteCount());
+
+		assertEquals(1000, prefs.getLong(PHSession.SSUM_PREF,   0));
+		assertEquals(100,  prefs.getLong(PHSession.SCOUNT_PREF, 0));
+
+		assertFalse(prefs.committedOn(Thread.currentThread()));
+	}
+
+	public void testFlushWritesWithoutWaitingForTheDelay() throws Exception {
+		store.save(new PHSessionStore.Values(10, 1));
+
+		long start = System.currentTimeMillis();
+		store.flush().get(WAIT, TimeUnit.MILLISECONDS);
+
+		assertTrue(System.currentTimeMillis() - start < PHSessionStore.WRITE_BEHIND_DELAY);
+		assertEquals(1, prefs.getCommitCount());
+		assertFalse(prefs.committedOn(Thread.currentThread()));
+
+		// the delayed write finds nothing left to do
+		Thread.sleep(PHSessionStore.WRITE_BEHIND_DELAY + 500);
+		assertEquals(1, prefs.getCommitCount());
+	}
+
+	public void testLoadSeesUnwrittenSaves() throws Exception {
+		prefs.edit().putLong(PHSession.SSUM_PREF, 5).putLong(PHSession.SCOUNT_PREF, 1).commit();
+
+		assertEquals(5, store.load().totalTime);
+
+		store.save(new PHSessionStore.Values(20, 2));
+
+		PHSessionStore.Values values = store.load();
+		assertEquals(20, values.totalTime);
+		assertEquals(2,  values.sessionCount);
+	}
+
+	public void testClearRemovesTheTotals() throws Exception {
+		store.save(new PHSessionStore.Values(20, 2));
+		store.flush().get(WAIT, TimeUnit.MILLISECONDS);
+
+		store.clear().get(WAIT, TimeUnit.MILLISECONDS);
+
+		assertFalse(prefs.contains(PHSession.SSUM_PREF));
+		assertFalse(prefs.contains(PHSession.SCOUNT_PREF));
+		assertEquals(0, store.load().sessionCount);
+	}
+}
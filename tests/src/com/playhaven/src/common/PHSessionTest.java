@@ -0,0 +1,103 @@
+package com.playhaven.src.common;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Looper;
+
+import junit.framework.TestCase;
+
+/** Pausing activities must never touch the disk on the (main) thread calling us*/
+public class PHSessionTest extends TestCase {
+
+	private static final long WAIT = 5000;
+
+	private PHRecordingPreferences prefs;
+
+	private TestActivity activity;
+
+	private PHSession session;
+
+	/** Unattached activity which hands out the recording preferences*/
+	private static class TestActivity extends Activity {
+		private final SharedPreferences prefs;
+
+		private boolean finishing;
+
+		public TestActivity(SharedPreferences prefs) {
+			this.prefs = prefs;
+		}
+
+		@Override
+		public Context getApplicationContext() {
+			return this;
+		}
+
+		@Override
+		public String getPackageName() {
+			return "com.playhaven.src.common.test";
+		}
+
+		@Override
+		public SharedPreferences getSharedPreferences(String name, int mode) {
+			return prefs;
+		}
+
+		@Override
+		public boolean isFinishing() {
+			return finishing;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		// the activity creates a Handler
+		if (Looper.myLooper() == null) Looper.prepare();
+
+		prefs 	 = new PHRecordingPreferences();
+		activity = new TestActivity(prefs);
+
+		session  = PHSession.regenerateInstance(activity);
+		session.getStore().flush().get();
+
+		session.start();
+	}
+
+	public void testPausingNeverWritesOnTheCallingThread() throws Exception {
+		int before = prefs.getCommitCount();
+
+		for (int i = 0; i < 100; i++) {
+			PHSession.register(activity);
+			PHSession.unregister(activity);
+		}
+
+		assertEquals(before, prefs.getCommitCount());
+		assertTrue(session.getStore().hasPendingWrites());
+
+		// all those pauses end up as a single write, in the background
+		assertTrue(prefs.awaitCommits(before + 1, PHSessionStore.WRITE_BEHIND_DELAY + WAIT));
+		Thread.sleep(500);
+
+		assertEquals(before + 1, prefs.getCommitCount());
+		assertEquals(1, prefs.getLong(PHSession.SCOUNT_PREF, 0));
+
+		assertFalse(prefs.committedOn(Thread.currentThread()));
+	}
+
+	public void testFinishingActivityIsWrittenRightAway() throws Exception {
+		int before = prefs.getCommitCount();
+
+		PHSession.register(activity);
+
+		activity.finishing = true;
+
+		long start = System.currentTimeMillis();
+		PHSession.unregister(activity);
+
+		assertTrue(prefs.awaitCommits(before + 1, WAIT));
+		assertTrue(System.currentTimeMillis() - start < PHSessionStore.WRITE_BEHIND_DELAY);
+
+		assertEquals(1, prefs.getLong(PHSession.SCOUNT_PREF, 0));
+		assertFalse(prefs.committedOn(Thread.currentThread()));
+	}
+}
@@ -0,0 +1,243 @@
+package com.playhaven.src.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Local HTTP server for the tests. API requests get an empty success, files under {@link #FILE_PATH}
+ * are served with the size given by {@link #setFileSize}. Every request waits the given latency before
+ * it is answered to simulate a slow server.
+ *
+ * Connections are kept alive unless the client asks to close them, and every accepted socket is counted
+ * (see {@link #getConnectionCount()}) so we can see how well the client reuses its connections.
+ *
+ * For testing failure handling the server can be told to fail the next requests (see {@link #failNext}).
+ * API responses carry the headers given by {@link #setResponseHeader}. If one of them is an <code>ETag</code>,
+ * requests with a matching <code>If-None-Match</code> get a 304.
+ */
+public class PHStubServer implements Runnable {
+	public static final String FILE_PATH = "/files/";
+
+	/** Idle keep-alive connections are closed after this long (ms)*/
+	public static final int IDLE_TIMEOUT = 5000;
+
+	private static final byte[] EMPTY_RESPONSE = "{\"error\": null, \"errobj\": null, \"response\": {}}".getBytes();
+
+	private final ServerSocket socket;
+
+	private final long latency;
+
+	private final AtomicInteger requestCount 	= new AtomicInteger();
+
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	private final AtomicInteger notModifiedCount = new AtomicInteger();
+
+	private final AtomicInteger failuresLeft 	= new AtomicInteger();
+
+	private final Map<String, String> responseHeaders = new ConcurrentHashMap<String, String>();
+
+	private volatile int failureStatus;
+
+	private volatile int fileSize = 1024;
+
+	public PHStubServer(long latency) throws IOException {
+		this.latency = latency;
+		this.socket  = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread thread = new Thread(this, "Stub Server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public String getURL() {
+		return "http://127.0.0.1:" + socket.getLocalPort();
+	}
+
+	/** Number of HTTP requests (round-trips) served*/
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	/** Number of sockets (TCP connections) accepted*/
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/** Number of conditional requests answered with a 304*/
+	public int getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	public void resetCounts() {
+		requestCount.set(0);
+		connectionCount.set(0);
+		notModifiedCount.set(0);
+	}
+
+	/** Adds a header (such as <code>Cache-Control</code> or <code>ETag</code>) to every API response*/
+	public void setResponseHeader(String name, String value) {
+		responseHeaders.put(name, value);
+	}
+
+	/** Answers the next requests with the given HTTP status (such as 503) and an empty body instead of serving them*/
+	public void failNext(int count, int status) {
+		failureStatus = status;
+		failuresLeft.set(count);
+	}
+
+	/** Size of the files served under {@link #FILE_PATH}*/
+	public void setFileSize(int fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// pass
+		}
+	}
+
+	@Override
+	public void run() {
+		while ( ! socket.isClosed()) {
+			try {
+				final Socket client = socket.accept();
+				connectionCount.incrementAndGet();
+
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				});
+
+				thread.setDaemon(true);
+				thread.start();
+
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(Socket client) {
+		try {
+			client.setSoTimeout(IDLE_TIMEOUT);
+
+			InputStream in   = client.getInputStream();
+			OutputStream out = client.getOutputStream();
+
+			while (serveRequest(in, out));
+
+		} catch (SocketTimeoutException e) {
+			// idle keep-alive connection
+
+		} catch (Exception e) {
+			// the client went away (or aborted on purpose)
+
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// pass
+			}
+		}
+	}
+
+	/** Reads and answers a single request. Returns false once the connection should be closed.*/
+	private boolean serveRequest(InputStream in, OutputStream out) throws Exception {
+		String requestLine = readLine(in);
+		if (requestLine == null) return false; // closed by the client
+
+		int contentLength 	= 0;
+		boolean keepAlive 	= true;
+		String ifNoneMatch 	= null;
+
+		String header;
+		while ((header = readLine(in)) != null && header.length() > 0) {
+			String lower = header.toLowerCase();
+
+			if (lower.startsWith("content-length:"))
+				contentLength = Integer.parseInt(header.substring(15).trim());
+			else if (lower.startsWith("connection:") && lower.contains("close"))
+				keepAlive = false;
+			else if (lower.startsWith("if-none-match:"))
+				ifNoneMatch = header.substring(14).trim();
+		}
+
+		for (int skipped = 0; skipped < contentLength; skipped++)
+			if (in.read() < 0) break;
+
+		requestCount.incrementAndGet();
+
+		String[] parts = requestLine.split(" ");
+
+		byte[] body 	   = EMPTY_RESPONSE;
+		String contentType = "application/json";
+		String status 	   = "200 OK";
+		String extra 	   = "";
+
+		if (takeFailure()) {
+			body   = new byte[0];
+			status = failureStatus + " Injected Failure";
+
+		} else if (parts[1].startsWith(FILE_PATH)) {
+			body 		= new byte[fileSize];
+			contentType = "application/octet-stream";
+
+		} else {
+			for (Map.Entry<String, String> responseHeader : responseHeaders.entrySet())
+				extra += responseHeader.getKey() + ": " + responseHeader.getValue() + "\r\n";
+
+			if (ifNoneMatch != null && ifNoneMatch.equals(responseHeaders.get("ETag"))) {
+				body   = new byte[0];
+				status = "304 Not Modified";
+
+				notModifiedCount.incrementAndGet();
+			}
+		}
+
+		Thread.sleep(latency);
+
+		out.write(("HTTP/1.1 " + status + "\r\n" +
+				   "Content-Type: " + contentType + "\r\n" +
+				   "Content-Length: " + body.length + "\r\n" + extra +
+				   (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes("UTF-8"));
+
+		if ( ! parts[0].equals("HEAD")) out.write(body);
+		out.flush();
+
+		return keepAlive;
+	}
+
+	private boolean takeFailure() {
+		while (true) {
+			int left = failuresLeft.get();
+			if (left <= 0) return false;
+
+			if (failuresLeft.compareAndSet(left, left - 1)) return true;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		int c;
+		while ((c = in.read()) != -1 && c != '\n')
+			if (c != '\r') line.write(c);
+
+		if (c == -1 && line.size() == 0) return null;
+
+		return line.toString("UTF-8");
+	}
+}
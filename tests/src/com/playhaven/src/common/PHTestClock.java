@@ -0,0 +1,91 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+
+/** Clock which only moves when the test says so. Delayed work runs (on the test thread) once time passes it.*/
+public class PHTestClock extends PHClock {
+
+	private long now = 1000000;
+
+	private final ArrayList<Scheduled> scheduled = new ArrayList<Scheduled>();
+
+	private static class Scheduled {
+		private final Runnable runnable;
+
+		private final long due;
+
+		public Scheduled(Runnable runnable, long due) {
+			this.runnable = runnable;
+			this.due 	  = due;
+		}
+	}
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public synchronized void postDelayed(Runnable runnable, long delay) {
+		scheduled.add(new Scheduled(runnable, now + delay));
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void removeCallbacks(Runnable runnable) {
+		for (int i = scheduled.size() - 1; i >= 0; i--)
+			if (scheduled.get(i).runnable == runnable) scheduled.remove(i);
+	}
+
+	/** Moves time forward and runs whatever became due (in order)*/
+	public void advance(long millis) {
+		long target;
+
+		synchronized (this) {
+			target = now + millis;
+		}
+
+		while (true) {
+			Scheduled next = null;
+
+			synchronized (this) {
+				for (Scheduled candidate : scheduled)
+					if (candidate.due <= target && (next == null || candidate.due < next.due)) next = candidate;
+
+				if (next == null) {
+					now = target;
+					return;
+				}
+
+				scheduled.remove(next);
+				now = Math.max(now, next.due);
+			}
+
+			next.runnable.run();
+		}
+	}
+
+	/** Delay (ms) until the earliest scheduled work or -1 if nothing is scheduled*/
+	public synchronized long getNextDelay() {
+		long next = -1;
+
+		for (Scheduled candidate : scheduled)
+			if (next < 0 || candidate.due - now < next) next = candidate.due - now;
+
+		return next;
+	}
+
+	/** Waits (for real) until something is scheduled, for work arriving from a background thread*/
+	public synchronized boolean awaitScheduled(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+
+		while (scheduled.isEmpty()) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) return false;
+
+			wait(left);
+		}
+
+		return true;
+	}
+}
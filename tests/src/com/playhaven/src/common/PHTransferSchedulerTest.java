@@ -0,0 +1,272 @@
+package com.playhaven.src.common;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import com.playhaven.src.common.PHConfig.ConnectionType;
+
+/** Drives the scheduler through a fake connectivity source and a manual clock for the grace period*/
+public class PHTransferSchedulerTest extends TestCase {
+
+	private FakeConnectivity connectivity;
+
+	private TestScheduler scheduler;
+
+	private final ArrayList<FakeJob> started = new ArrayList<FakeJob>();
+
+	/** Lets the test flip the connectivity*/
+	private static class FakeConnectivity implements PHTransferScheduler.ConnectivitySource {
+		private ConnectionType type;
+
+		private PHConnectionManager.ConnectivityListener listener;
+
+		public FakeConnectivity(ConnectionType type) {
+			this.type = type;
+		}
+
+		@Override
+		public ConnectionType getConnectionType() {
+			return type;
+		}
+
+		@Override
+		public void setListener(PHConnectionManager.ConnectivityListener listener) {
+			this.listener = listener;
+		}
+
+		public void change(ConnectionType type) {
+			this.type = type;
+			listener.connectivityChanged(type);
+		}
+	}
+
+	/** Runs the delayed runnables when the test says so instead of on a looper*/
+	private static class TestScheduler extends PHTransferScheduler {
+		private final ArrayList<Runnable> delayed = new ArrayList<Runnable>();
+
+		public TestScheduler(ConnectivitySource source) {
+			super(source);
+		}
+
+		@Override
+		protected void postDelayed(Runnable runnable, long delay) {
+			assertEquals(OFFLINE_GRACE_PERIOD, delay);
+			delayed.add(runnable);
+		}
+
+		public void runDelayed() {
+			ArrayList<Runnable> due = new ArrayList<Runnable>(delayed);
+			delayed.clear();
+
+			for (Runnable runnable : due)
+				runnable.run();
+		}
+	}
+
+	/** Records when it's started, finishes when the test says so*/
+	private class FakeJob implements PHTransferScheduler.Job {
+		private final String host;
+
+		private final int attempt;
+
+		public FakeJob(String host) {
+			this(host, 0);
+		}
+
+		private FakeJob(String host, int attempt) {
+			this.host 	 = host;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public PHNetworkExecutor.Priority getJobClass() {
+			return PHNetworkExecutor.Priority.Precache;
+		}
+
+		@Override
+		public void start(PHTransferScheduler scheduler) {
+			started.add(this);
+		}
+
+		@Override
+		public PHTransferScheduler.Job createRetry() {
+			return new FakeJob(host, attempt + 1);
+		}
+
+		@Override
+		public String getHost() {
+			return host;
+		}
+	}
+
+	private void createScheduler(ConnectionType type) {
+		connectivity = new FakeConnectivity(type);
+		scheduler 	 = new TestScheduler(connectivity);
+	}
+
+	private FakeJob lastStarted() {
+		return started.get(started.size() - 1);
+	}
+
+	////////////////////////////////////////////////////
+
+	public void testOfflinePausesUntilTheNetworkIsBack() {
+		createScheduler(ConnectionType.NO_NETWORK);
+
+		for (int i = 0; i < 5; i++)
+			scheduler.submit(new FakeJob("cdn.example.com"));
+
+		assertEquals(0, started.size());
+		assertEquals(5, scheduler.getPendingCount());
+
+		connectivity.change(ConnectionType.WIFI);
+
+		assertEquals(PHTransferScheduler.PARALLEL_JOBS, started.size());
+		assertEquals(5 - PHTransferScheduler.PARALLEL_JOBS, scheduler.getPendingCount());
+	}
+
+	public void testWifiFansOutAndStartsTheNextJobWhenOneFinishes() {
+		createScheduler(ConnectionType.WIFI);
+
+		for (int i = 0; i < 5; i++)
+			scheduler.submit(new FakeJob("cdn" + i + ".example.com"));
+
+		assertEquals(PHTransferScheduler.PARALLEL_JOBS, scheduler.getRunningCount());
+
+		assertFalse(scheduler.finished(started.get(0), 100, true));
+
+		assertEquals(PHTransferScheduler.PARALLEL_JOBS + 1, started.size());
+		assertEquals(PHTransferScheduler.PARALLEL_JOBS, scheduler.getRunningCount());
+	}
+
+	public void testWifiRespectsTheHostLimit() {
+		createScheduler(ConnectionType.WIFI);
+		scheduler.setParallelJobs(8);
+		scheduler.setJobsPerHost(2);
+
+		for (int i = 0; i < 4; i++)
+			scheduler.submit(new FakeJob("a.example.com"));
+
+		scheduler.submit(new FakeJob("b.example.com"));
+
+		// the job for the other host isn't held up by the blocked ones in front of it
+		assertEquals(3, started.size());
+		assertEquals("b.example.com", lastStarted().getHost());
+	}
+
+	public void testMobileRunsOneAtATimeWithinTheBudget() {
+		createScheduler(ConnectionType.MOBILE);
+		scheduler.setMobileBudget(1000);
+
+		for (int i = 0; i < 3; i++)
+			scheduler.submit(new FakeJob("cdn.example.com"));
+
+		assertEquals(1, started.size());
+
+		scheduler.finished(started.get(0), 600, true);
+		assertEquals(2, started.size());
+
+		// over the budget: the third job waits
+		scheduler.finished(started.get(1), 600, true);
+		assertEquals(2, started.size());
+		assertEquals(1, scheduler.getPendingCount());
+		assertEquals(1200, scheduler.getMobileBytes());
+
+		// a new session gets a new budget
+		scheduler.startSession();
+		assertEquals(3, started.size());
+	}
+
+	public void testWifiBytesDontCountAgainstTheMobileBudget() {
+		createScheduler(ConnectionType.WIFI);
+		scheduler.setMobileBudget(1000);
+
+		scheduler.submit(new FakeJob("cdn.example.com"));
+		scheduler.finished(started.get(0), 5000, true);
+
+		assertEquals(0, scheduler.getMobileBytes());
+		assertEquals(5000, scheduler.getTotalBytes());
+
+		connectivity.change(ConnectionType.MOBILE);
+		scheduler.submit(new FakeJob("cdn.example.com"));
+
+		assertEquals(2, started.size());
+	}
+
+	public void testFailureWhileOfflineRetriesOnceTheNetworkIsBack() {
+		createScheduler(ConnectionType.WIFI);
+
+		scheduler.submit(new FakeJob("cdn.example.com"));
+		FakeJob job = started.get(0);
+
+		connectivity.change(ConnectionType.NO_NETWORK);
+
+		assertTrue(scheduler.finished(job, 0, false));
+		assertEquals(1, started.size());
+		assertEquals(1, scheduler.getPendingCount());
+
+		connectivity.change(ConnectionType.WIFI);
+
+		assertEquals(2, started.size());
+		assertEquals(1, lastStarted().attempt);
+	}
+
+	public void testFailureJustBeforeTheDropIsRetriedOnceTheNetworkIsBack() {
+		createScheduler(ConnectionType.WIFI);
+
+		scheduler.submit(new FakeJob("cdn.example.com"));
+
+		// the read fails before the broadcast arrives
+		assertTrue(scheduler.finished(started.get(0), 0, false));
+		assertEquals(1, scheduler.getSuspendedCount());
+
+		connectivity.change(ConnectionType.NO_NETWORK);
+
+		assertEquals(0, scheduler.getSuspendedCount());
+		assertEquals(1, scheduler.getPendingCount());
+
+		// the grace period running out doesn't start it twice
+		scheduler.runDelayed();
+		assertEquals(1, started.size());
+
+		connectivity.change(ConnectionType.WIFI);
+
+		assertEquals(2, started.size());
+		assertEquals(0, scheduler.getPendingCount());
+	}
+
+	public void testFailureWhileOnlineIsOnlyRetriedOnce() {
+		createScheduler(ConnectionType.WIFI);
+
+		scheduler.submit(new FakeJob("cdn.example.com"));
+
+		assertTrue(scheduler.finished(started.get(0), 0, false));
+		assertEquals(1, started.size());
+
+		// the network never went away: one more try
+		scheduler.runDelayed();
+		assertEquals(2, started.size());
+
+		// and that one failing is final
+		assertFalse(scheduler.finished(lastStarted(), 0, false));
+		assertEquals(0, scheduler.getSuspendedCount());
+		assertEquals(0, scheduler.getPendingCount());
+
+		scheduler.runDelayed();
+		assertEquals(2, started.size());
+	}
+
+	public void testSuspendedRetryDoesntHoldUpOtherJobs() {
+		createScheduler(ConnectionType.MOBILE);
+
+		scheduler.submit(new FakeJob("cdn.example.com"));
+		scheduler.submit(new FakeJob("cdn.example.com"));
+
+		scheduler.finished(started.get(0), 0, false);
+
+		// the throttled lane is free while the retry waits
+		assertEquals(2, started.size());
+		assertEquals(1, scheduler.getSuspendedCount());
+	}
+}
@@ -0,0 +1,101 @@
+package com.playhaven.src.publishersdk.content;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import android.app.Activity;
+
+import com.playhaven.src.common.PHConfig;
+import com.playhaven.src.common.PHDeviceSnapshot;
+
+/** The response of a content request must be parsed on the background thread, the main looper only delivers it*/
+public class PHPublisherContentRequestTest extends TestCase {
+
+	private static final String RESPONSE = "{\"error\": null, \"errobj\": null, \"response\": {"
+										 + "\"url\": \"http://media.example.com/content/template.html\","
+										 + "\"transition\": \"PH_MODAL\","
+										 + "\"context\": {\"content\": {\"close_delay\": 1}, \"image\": {\"url\": \"http://media.example.com/image.png\"}},"
+										 + "\"frame\": \"PH_FULLSCREEN\""
+										 + "}}";
+
+	/** Remembers the threads the response was prepared and delivered on*/
+	private static class RecordingRequest extends PHPublisherContentRequest {
+		private Thread preparedOn;
+
+		private int prepareCount;
+
+		private Thread handledOn;
+
+		public RecordingRequest(Activity activity) {
+			super(activity, "test_placement");
+		}
+
+		@Override
+		public void prepareRequestSuccess(JSONObject response) {
+			preparedOn = Thread.currentThread();
+			prepareCount++;
+
+			super.prepareRequestSuccess(response);
+		}
+
+		@Override
+		public void handleRequestSuccess(JSONObject response) {
+			handledOn = Thread.currentThread();
+
+			super.handleRequestSuccess(response);
+		}
+	}
+
+	private RecordingRequest request;
+
+	@Override
+	protected void setUp() throws Exception {
+		PHConfig.token 	= "test_token";
+		PHConfig.secret = "test_secret";
+
+		PHDeviceSnapshot.install(PHDeviceSnapshot.fromConfig()); // nothing to capture
+
+		request = new RecordingRequest(new Activity());
+	}
+
+	private static ByteBuffer response() {
+		return ByteBuffer.wrap(RESPONSE.getBytes(Charset.forName("UTF-8")));
+	}
+
+	public void testContentIsParsedOnTheBackgroundThread() throws Exception {
+		final ByteBuffer response = response();
+
+		Thread background = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				request.processResponseInBackground(response.duplicate(), 200);
+			}
+		});
+
+		background.start();
+		background.join();
+
+		// the test thread plays the main looper
+		request.requestFinished(response, 200);
+
+		assertEquals(1, request.prepareCount);
+		assertSame(background, request.preparedOn);
+		assertSame(Thread.currentThread(), request.handledOn);
+
+		assertNotNull(request.getContent());
+		assertEquals(PHPublisherContentRequest.PHRequestState.Preloaded, request.getCurrentState());
+	}
+
+	public void testContentIsOnlyParsedOnTheCallingThreadWithoutABackgroundPass() throws Exception {
+		// called directly (not through PHAsyncRequest): there is no other thread to parse on
+		request.requestFinished(response(), 200);
+
+		assertEquals(1, request.prepareCount);
+		assertSame(Thread.currentThread(), request.preparedOn);
+		assertNotNull(request.getContent());
+	}
+}
@@ -0,0 +1,87 @@
+package com.playhaven.src.utils;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** Compares the stream reader against JSONObject and checks it rejects what JSONObject rejects*/
+public class PHJSONStreamReaderTest extends TestCase {
+
+	private static PHJSONStreamReader reader(String json) {
+		return new PHJSONStreamReader(new StringReader(json));
+	}
+
+	private static void assertRejected(String json) throws Exception {
+		try {
+			reader(json).readValue();
+			fail("Accepted " + json);
+
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+
+	public void testReadsTheSameAsJSONObject() throws Exception {
+		String json = "{\"response\": {\"url\": \"http://example.com/a?b=\\\"c\\\"\", \"list\": [1, 2.5, -3e2, true, false, null, \"\\u00e9\"],"
+					+ " \"nested\": {\"empty\": {}, \"none\": []}}, \"error\": null}";
+
+		JSONObject read = (JSONObject) reader(json).readValue();
+
+		assertEquals(new JSONObject(json).toString(), read.toString());
+	}
+
+	public void testSkipsValuesItDoesNotNeed() throws Exception {
+		PHJSONStreamReader reader = reader("{\"skip\": {\"a\": [1, {\"b\": \"]}\"}]}, \"keep\": [1, 2]}");
+
+		JSONArray kept = null;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+
+			if (name.equals("keep"))
+				kept = (JSONArray) reader.readValue();
+			else
+				reader.skipValue();
+		}
+		reader.endObject();
+
+		assertEquals("[1,2]", kept.toString());
+	}
+
+	public void testRejectsMissingSeparators() throws Exception {
+		assertRejected("[1 2]");
+		assertRejected("{\"a\":1 \"b\":2}");
+		assertRejected("{\"a\":{} \"b\":[]}");
+	}
+
+	public void testRejectsMisplacedSeparators() throws Exception {
+		assertRejected("[,1]");
+		assertRejected("{,\"a\":1}");
+		assertRejected("[1,,2]");
+		assertRejected("[1,]");
+		assertRejected("{\"a\":1,}");
+		assertRejected("[,]");
+	}
+
+	public void testNumbers() throws Exception {
+		JSONArray numbers = (JSONArray) reader("[1, 12345678901, 9223372036854775807, 9223372036854775808, -9223372036854775809, 1.5]").readValue();
+
+		assertEquals(Integer.valueOf(1), 					numbers.get(0));
+		assertEquals(Long.valueOf(12345678901L), 			numbers.get(1));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), 			numbers.get(2));
+
+		// too big for a long
+		assertEquals(Double.valueOf(9223372036854775808.0),  numbers.get(3));
+		assertEquals(Double.valueOf(-9223372036854775809.0), numbers.get(4));
+
+		assertEquals(Double.valueOf(1.5), 					numbers.get(5));
+
+		assertRejected("1-2");
+		assertRejected("-");
+	}
+}
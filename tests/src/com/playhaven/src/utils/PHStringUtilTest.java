@@ -0,0 +1,93 @@
+package com.playhaven.src.utils;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Checks the table driven weakUrlEncode against a naive reference encoder on random strings*/
+public class PHStringUtilTest extends TestCase {
+
+	private static final int SAMPLES = 20000;
+
+	private static final String RESERVED = ";? &=$,[]#!'()*";
+
+	private static final String[] ESCAPED = {"%3B", "%3F", "+", "%26", "%3D", "%24", "%2C", "%5B", "%5D", "%23", "%21", "%27", "%28", "%29", "%2A"};
+
+	// reserved characters, plain ASCII, things which look encoded already and non ASCII
+	private static final String ALPHABET = RESERVED + "abcXYZ019%+:/~._-\"{}é中";
+
+	/** One character at a time, straight from the (documented) list*/
+	private static String referenceEncode(String in) {
+		StringBuilder out = new StringBuilder();
+
+		for (int i = 0; i < in.length(); i++) {
+			char c 	  = in.charAt(i);
+			int index = RESERVED.indexOf(c);
+
+			if (index < 0)
+				out.append(c);
+			else
+				out.append(ESCAPED[index]);
+		}
+
+		return out.toString();
+	}
+
+	private static String randomString(Random random) {
+		int length = random.nextInt(64);
+
+		StringBuilder string = new StringBuilder(length);
+
+		for (int i = 0; i < length; i++) {
+			if (random.nextInt(5) == 0)
+				string.append((char)random.nextInt(0x10000)); // anything, including lone surrogates
+			else
+				string.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+
+		return string.toString();
+	}
+
+	public void testMatchesTheReferenceEncoder() {
+		Random random = new Random(42);
+
+		for (int i = 0; i < SAMPLES; i++) {
+			String in = randomString(random);
+
+			assertEquals("Encoding \"" + in + "\"", referenceEncode(in), PHStringUtil.weakUrlEncode(in));
+		}
+	}
+
+	public void testAppendMatchesTheReferenceEncoder() {
+		Random random = new Random(7);
+
+		for (int i = 0; i < SAMPLES; i++) {
+			String in = randomString(random);
+
+			StringBuilder out = new StringBuilder("key=");
+			PHStringUtil.appendWeakUrlEncoded(out, in);
+
+			assertEquals("Appending \"" + in + "\"", "key=" + referenceEncode(in), out.toString());
+		}
+	}
+
+	public void testEveryReservedCharacterHasItsOwnEscape() {
+		for (int i = 0; i < RESERVED.length(); i++)
+			assertEquals(ESCAPED[i], PHStringUtil.weakUrlEncode(RESERVED.substring(i, i + 1)));
+	}
+
+	public void testNothingToEscapeReturnsTheSameString() {
+		String in = "http://media.example.com/path/file.png/already%20encoded";
+
+		assertSame(in, PHStringUtil.weakUrlEncode(in));
+	}
+
+	public void testNull() {
+		assertNull(PHStringUtil.weakUrlEncode(null));
+
+		StringBuilder out = new StringBuilder("key=");
+		PHStringUtil.appendWeakUrlEncoded(out, null);
+
+		assertEquals("key=", out.toString());
+	}
+}